@@ -0,0 +1,104 @@
+package traffic.diy;
+
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+import traffic.core.Phase;
+import traffic.phaseplan.FullyActuatedPhasePlan;
+
+/**
+ * An actuated plan whose splits follow the traffic. A {@link SplitAdapter}
+ * shares the cycle's green time between the green intervals by stream
+ * occupancy, and at the start of each cycle its splits become those phases' min
+ * green intervals, which the actuated plan then extends as usual.
+ *
+ * The traffic classes don't expose what a detector has seen, so occupancy is
+ * reported to the plan with {@link #report(int, long, long)} by whatever
+ * measures it. A cycle with no reports changes nothing, so until something
+ * reports, every phase keeps the min green it was built with.
+ *
+ * Observers of a phase aren't serialized; after deserializing an intersection
+ * call {@link #recoverObservers()} on its adaptive plans as well.
+ */
+public class AdaptivePhasePlan extends FullyActuatedPhasePlan {
+	private static final long serialVersionUID = 1L;
+
+	private final SplitAdapter adapter;
+	private transient Observer cycleStart;
+
+	/**
+	 * @param adapter
+	 *            splits for the phases, in the order they'll be added
+	 */
+	public AdaptivePhasePlan(SplitAdapter adapter) {
+		this.adapter = adapter;
+	}
+
+	public SplitAdapter getAdapter() {
+		return adapter;
+	}
+
+	@Override
+	public void add(Phase p) {
+		super.add(p);
+		if (phases().size() == 1) {
+			recoverObservers();
+		}
+	}
+
+	/**
+	 * Record a stream's detector occupancy. Safe to call from any thread.
+	 *
+	 * @param stream
+	 *            index of the stream
+	 * @param millis
+	 *            how long was watched
+	 * @param occupiedMillis
+	 *            how much of that time the detector saw traffic
+	 */
+	public void report(int stream, long millis, long occupiedMillis) {
+		synchronized (adapter) {
+			adapter.record(stream, millis, occupiedMillis);
+		}
+	}
+
+	/**
+	 * Watch for the start of each cycle again, after deserializing.
+	 */
+	public void recoverObservers() {
+		List<Phase> phases = phases();
+		if (phases.isEmpty()) {
+			return;
+		}
+		if (cycleStart == null) {
+			cycleStart = new Observer() {
+
+				@Override
+				public void update(Observable o, Object arg) {
+					newCycle();
+				}
+			};
+		}
+		phases.get(0).deleteObserver(cycleStart);
+		phases.get(0).addObserver(cycleStart);
+	}
+
+	/**
+	 * The first phase has changed: share out this cycle's green and pass it on
+	 * as min greens, if anything was reported.
+	 */
+	protected void newCycle() {
+		List<Phase> phases = phases();
+		synchronized (adapter) {
+			if (!adapter.endCycle()) {
+				return;
+			}
+			for (int p = 0; p < phases.size() && p < adapter.phaseCount(); p++) {
+				if (adapter.adapts(p)) {
+					phases.get(p).setMinGreenInterval((int) (adapter.duration(p) / 1000));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package traffic.diy;
+
+/**
+ * Where simulated vehicles come from. Each stream has its own sequence of
+ * arrival times, which a source hands out one at a time in order.
+ */
+public interface ArrivalSource {
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @return the time in milliseconds of the stream's next vehicle, no earlier
+	 *         than the one before, or Long.MAX_VALUE if there are no more
+	 */
+	long nextArrival(int stream);
+}
@@ -0,0 +1,233 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import traffic.core.Intersection;
+import traffic.load.TrafficException;
+
+/**
+ * Loads many intersection description files at once, e.g. every junction in a
+ * corridor. Each file is parsed by its own {@link MyIntersectionLoader} on a
+ * bounded pool of worker threads. Results come back in the same order as the
+ * files, each with a diagnostic if that file couldn't be loaded. Given a
+ * {@link SpecCache}, files whose contents it has seen aren't parsed again.
+ */
+public class BulkIntersectionLoader {
+
+	/**
+	 * The outcome of loading one file.
+	 */
+	public static class Result {
+		private final File file;
+		private final IntersectionSpec spec;
+		private final Intersection intersection;
+		private final String diagnostic;
+		private final long loadNanos;
+
+		Result(File file, IntersectionSpec spec, Intersection intersection, String diagnostic, long loadNanos) {
+			this.file = file;
+			this.spec = spec;
+			this.intersection = intersection;
+			this.diagnostic = diagnostic;
+			this.loadNanos = loadNanos;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return the description read from the file, or null if it was
+		 *         invalid
+		 */
+		public IntersectionSpec getSpec() {
+			return spec;
+		}
+
+		/**
+		 * @return the intersection, or null if the file couldn't be loaded
+		 */
+		public Intersection getIntersection() {
+			return intersection;
+		}
+
+		/**
+		 * @return what went wrong, or null if the load succeeded
+		 */
+		public String getDiagnostic() {
+			return diagnostic;
+		}
+
+		public boolean succeeded() {
+			return intersection != null;
+		}
+
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+
+		@Override
+		public String toString() {
+			return file.getName() + (succeeded() ? ": loaded " + intersection.getName() : ": " + diagnostic);
+		}
+	}
+
+	private final int threads;
+	private final SpecCache cache;
+
+	/**
+	 * A loader using one worker per available processor.
+	 */
+	public BulkIntersectionLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads
+	 *            the most files to parse at the same time
+	 */
+	public BulkIntersectionLoader(int threads) {
+		this(threads, null);
+	}
+
+	/**
+	 * @param threads
+	 *            the most files to parse at the same time
+	 * @param cache
+	 *            where to look for descriptions already read, or null
+	 */
+	public BulkIntersectionLoader(int threads, SpecCache cache) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread");
+		}
+		this.threads = threads;
+		this.cache = cache;
+	}
+
+	/**
+	 * Load every readable, non-hidden file in a directory, in file name order.
+	 *
+	 * @param dir
+	 *            the directory holding the description files
+	 * @return one result per file
+	 * @throws IOException
+	 *             if it isn't a directory or can't be listed
+	 * @throws InterruptedException
+	 */
+	public List<Result> loadDirectory(File dir) throws IOException, InterruptedException {
+		if (!dir.isDirectory()) {
+			throw new IOException(dir + " isn't a directory");
+		}
+		File[] files = dir.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && f.canRead() && !f.isHidden();
+			}
+		});
+		if (files == null) {
+			throw new IOException("Can't list the files in " + dir);
+		}
+		Arrays.sort(files);
+		return load(Arrays.asList(files));
+	}
+
+	/**
+	 * Load a list of files concurrently.
+	 *
+	 * @param files
+	 *            the description files
+	 * @return one result per file, in the same order as the files
+	 * @throws InterruptedException
+	 */
+	public List<Result> load(List<File> files) throws InterruptedException {
+		List<Result> results = new ArrayList<Result>(files.size());
+		if (files.isEmpty()) {
+			return results;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+		try {
+			List<Future<Result>> pending = new ArrayList<Future<Result>>(files.size());
+			for (final File f : files) {
+				pending.add(pool.submit(new Callable<Result>() {
+
+					@Override
+					public Result call() {
+						return loadOne(f, cache);
+					}
+				}));
+			}
+			for (int n = 0; n < pending.size(); n++) {
+				try {
+					results.add(pending.get(n).get());
+				} catch (ExecutionException e) {
+					results.add(new Result(files.get(n), null, null, String.valueOf(e.getCause()), 0));
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Load a single file on the calling thread.
+	 *
+	 * @param f
+	 *            the description file
+	 * @return the result
+	 */
+	public static Result loadOne(File f) {
+		return loadOne(f, null);
+	}
+
+	/**
+	 * Load a single file on the calling thread, through a cache.
+	 *
+	 * @param f
+	 *            the description file
+	 * @param cache
+	 *            where to look for descriptions already read, or null
+	 * @return the result
+	 */
+	public static Result loadOne(File f, SpecCache cache) {
+		long start = System.nanoTime();
+		try {
+			if (cache != null) {
+				IntersectionSpec spec = cache.load(f);
+				return new Result(f, spec, spec.build(), null, System.nanoTime() - start);
+			}
+			BufferedReader br = new BufferedReader(new FileReader(f));
+			try {
+				MyIntersectionLoader il = new MyIntersectionLoader(br);
+				IntersectionSpec spec = il.buildSpec();
+				if (spec == null) {
+					String diagnostic = il.getError() == null ? "Malformed intersection" : il.getError().getMessage();
+					return new Result(f, null, null, diagnostic, System.nanoTime() - start);
+				}
+				return new Result(f, spec, spec.build(), null, System.nanoTime() - start);
+			} finally {
+				br.close();
+			}
+		} catch (TrafficException e) {
+			return new Result(f, null, null, e.getMessage(), System.nanoTime() - start);
+		} catch (IOException e) {
+			return new Result(f, null, null, e.toString(), System.nanoTime() - start);
+		} catch (RuntimeException e) {
+			// A truncated file can leave the loader part way through a section
+			return new Result(f, null, null, e.toString(), System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import traffic.core.Intersection;
+import traffic.load.TrafficException;
+
+/**
+ * Compares saving and loading a large generated intersection with Java
+ * serialisation against {@link IntersectionCodec}: time per save, time per
+ * load and file size.
+ *
+ * Usage: CodecBenchmark [streams] [phases] [faces] [iterations]
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws IOException, ClassNotFoundException, TrafficException {
+		int streams = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int phases = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int faces = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+		File text = File.createTempFile("intersection", ".txt");
+		File serialised = File.createTempFile("intersection", ".ser");
+		File binary = File.createTempFile("intersection", ".bin");
+		text.deleteOnExit();
+		serialised.deleteOnExit();
+		binary.deleteOnExit();
+
+		LoaderBenchmark.generate(text, streams, phases, faces);
+		BufferedReader br = new BufferedReader(new FileReader(text));
+		IntersectionSpec spec = new MyIntersectionLoader(br).buildSpec();
+		br.close();
+		if (spec == null) {
+			System.err.println("Generated file failed to load");
+			return;
+		}
+		Intersection intersection = spec.build();
+
+		// Warm up
+		for (int i = 0; i < iterations; i++) {
+			saveSerialised(intersection, serialised);
+			loadSerialised(serialised);
+			saveBinary(spec, binary);
+			loadBinary(binary);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			saveSerialised(intersection, serialised);
+		}
+		long serialisedSave = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			loadSerialised(serialised);
+		}
+		long serialisedLoad = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			saveBinary(spec, binary);
+		}
+		long binarySave = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			loadBinary(binary);
+		}
+		long binaryLoad = System.nanoTime() - start;
+
+		System.out.println(String.format("%-14s %12s %12s %12s", "", "save ms", "load ms", "bytes"));
+		report("Serialisation", serialisedSave, serialisedLoad, iterations, serialised.length());
+		report("Binary", binarySave, binaryLoad, iterations, binary.length());
+	}
+
+	private static void report(String label, long save, long load, int iterations, long bytes) {
+		System.out.println(String.format("%-14s %12.3f %12.3f %12d", label, save / 1e6 / iterations,
+				load / 1e6 / iterations, bytes));
+	}
+
+	private static void saveSerialised(Intersection i, File f) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(f));
+		out.writeObject(i);
+		out.close();
+	}
+
+	private static Intersection loadSerialised(File f) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new FileInputStream(f));
+		Intersection i = (Intersection) in.readObject();
+		in.close();
+		i.recoverObservers();
+		return i;
+	}
+
+	private static void saveBinary(IntersectionSpec spec, File f) throws IOException {
+		FileChannel out = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		IntersectionCodec.write(spec, out);
+		out.close();
+	}
+
+	private static Intersection loadBinary(File f) throws IOException, TrafficException {
+		FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		IntersectionSpec spec = IntersectionCodec.read(in);
+		in.close();
+		return spec.build();
+	}
+}
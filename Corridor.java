@@ -0,0 +1,692 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import traffic.util.State;
+
+/**
+ * Coordinates the pre-timed plans of a line of intersections along an
+ * arterial road so that traffic released by one arrives at the next on green.
+ *
+ * Every plan is stretched to a common cycle length by lengthening its green
+ * intervals (see {@link IntersectionSpec.PlanSpec#isGreenInterval(int)}), so
+ * yellows and clearances keep their times, and each intersection is given an
+ * offset: when, within the cycle, its first phase starts. Offsets are chosen to maximise the green bandwidth,
+ * the width of the window of time in which a vehicle travelling at the link
+ * speeds meets green at every intersection, summed over the outbound and
+ * inbound directions. The search starts from a one-way green wave and then
+ * moves one offset at a time, a second at a time, while the bandwidth grows.
+ *
+ * A coordination is checked by simulating the arterial: vehicles arrive at the
+ * first intersection, and those leaving each intersection reach the next after
+ * the link's travel time. Pre-timed plans don't respond to demand, so each
+ * intersection can be simulated on its own, in order along the road.
+ *
+ * Offsets drive headless {@link PhaseController}s only, through
+ * {@link #schedule(Coordination, IntersectionScheduler)}; nothing links the
+ * live traffic.core Intersections shown in the monitor.
+ *
+ * Usage: Corridor cycleSeconds vehiclesPerHour hours
+ * file:outboundStream:inboundStream[:travelSeconds] ...
+ *
+ * where travelSeconds is the travel time from the previous intersection.
+ */
+public class Corridor {
+
+	/** Bandwidth is measured in steps of this many milliseconds. */
+	private static final int RESOLUTION = 100;
+	private static final int MAX_SWEEPS = 20;
+
+	/**
+	 * One intersection on the corridor.
+	 */
+	public static class Junction {
+		private final IntersectionSpec spec;
+		private final int planIndex;
+		private final int outbound;
+		private final int inbound;
+		private final long travel;
+
+		Junction(IntersectionSpec spec, int planIndex, int outbound, int inbound, long travel) {
+			this.spec = spec;
+			this.planIndex = planIndex;
+			this.outbound = outbound;
+			this.inbound = inbound;
+			this.travel = travel;
+		}
+
+		public IntersectionSpec getSpec() {
+			return spec;
+		}
+
+		public int getPlanIndex() {
+			return planIndex;
+		}
+
+		/**
+		 * @return index of the stream carrying the arterial outbound
+		 */
+		public int getOutbound() {
+			return outbound;
+		}
+
+		/**
+		 * @return index of the stream carrying the arterial inbound, or -1
+		 */
+		public int getInbound() {
+			return inbound;
+		}
+
+		/**
+		 * @return travel time in milliseconds from the previous intersection
+		 */
+		public long getTravel() {
+			return travel;
+		}
+	}
+
+	/**
+	 * Timings and offsets for every intersection on the corridor.
+	 */
+	public static class Coordination {
+		private final long cycle;
+		private final IntersectionSpec[] retimed;
+		private final long[] offsets;
+		private final long outboundBand;
+		private final long inboundBand;
+
+		Coordination(long cycle, IntersectionSpec[] retimed, long[] offsets, long outboundBand, long inboundBand) {
+			this.cycle = cycle;
+			this.retimed = retimed;
+			this.offsets = offsets;
+			this.outboundBand = outboundBand;
+			this.inboundBand = inboundBand;
+		}
+
+		/**
+		 * @return the common cycle length in milliseconds, or 0 if the
+		 *         intersections run their own cycles
+		 */
+		public long getCycle() {
+			return cycle;
+		}
+
+		/**
+		 * @param junction
+		 *            index of the intersection on the corridor
+		 * @return its description with the plan retimed to the cycle
+		 */
+		public IntersectionSpec getRetimed(int junction) {
+			return retimed[junction];
+		}
+
+		/**
+		 * @param junction
+		 *            index of the intersection on the corridor
+		 * @return when its first phase starts, in milliseconds into the cycle
+		 */
+		public long getOffset(int junction) {
+			return offsets[junction];
+		}
+
+		/**
+		 * @return outbound green bandwidth in milliseconds
+		 */
+		public long getOutboundBand() {
+			return outboundBand;
+		}
+
+		/**
+		 * @return inbound green bandwidth in milliseconds
+		 */
+		public long getInboundBand() {
+			return inboundBand;
+		}
+
+		@Override
+		public String toString() {
+			if (cycle == 0) {
+				return "uncoordinated";
+			}
+			StringBuilder sb = new StringBuilder(String.format("cycle %.0f s, bandwidth %.1f s out, %.1f s in, offsets",
+					cycle / 1000.0, outboundBand / 1000.0, inboundBand / 1000.0));
+			for (long o : offsets) {
+				sb.append(String.format(" %.0f", o / 1000.0));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * How traffic fared along the arterial in one direction.
+	 */
+	public static class Performance {
+		private final long throughput;
+		private final long duration;
+		private final double meanDelay;
+		private final double stops;
+
+		Performance(long throughput, long duration, double meanDelay, double stops) {
+			this.throughput = throughput;
+			this.duration = duration;
+			this.meanDelay = meanDelay;
+			this.stops = stops;
+		}
+
+		/**
+		 * @return vehicles that travelled the whole corridor
+		 */
+		public long getThroughput() {
+			return throughput;
+		}
+
+		public double vehiclesPerHour() {
+			return throughput * 3600000.0 / duration;
+		}
+
+		/**
+		 * @return mean time in milliseconds each of those vehicles spent
+		 *         queued
+		 */
+		public double getMeanDelay() {
+			return meanDelay;
+		}
+
+		/**
+		 * @return mean number of times each of those vehicles was stopped
+		 */
+		public double getStops() {
+			return stops;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.0f veh/h, %.1f s delay, %.2f stops", vehiclesPerHour(), meanDelay / 1000,
+					stops);
+		}
+	}
+
+	/**
+	 * Arrivals on one stream at given times, none on the others.
+	 */
+	private static class ListedArrivals implements ArrivalSource {
+		private final int stream;
+		private final long[] times;
+		private final int count;
+		private int next;
+
+		ListedArrivals(int stream, long[] times, int count) {
+			this.stream = stream;
+			this.times = times;
+			this.count = count;
+		}
+
+		@Override
+		public long nextArrival(int s) {
+			return s == stream && next < count ? times[next++] : Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Queues on one intersection, noting when vehicles leave one stream.
+	 */
+	private static class Departures extends QueueDemand {
+		private final int stream;
+		long[] arrived = new long[256];
+		long[] departed = new long[256];
+		int count;
+
+		Departures(ArrivalSource arrivals, int streams, SimulationTiming timing, int stream) {
+			super(arrivals, streams, timing);
+			this.stream = stream;
+		}
+
+		@Override
+		protected void departed(int s, long arrivedAt, long departedAt) {
+			if (s != stream) {
+				return;
+			}
+			if (count == departed.length) {
+				arrived = Arrays.copyOf(arrived, count * 2);
+				departed = Arrays.copyOf(departed, count * 2);
+			}
+			arrived[count] = arrivedAt;
+			departed[count] = departedAt;
+			count++;
+		}
+	}
+
+	private final SimulationTiming timing;
+	private final List<Junction> junctions = new ArrayList<Junction>();
+
+	/**
+	 * @param timing
+	 *            phase timings for phases without a min green, and the
+	 *            saturation headway
+	 */
+	public Corridor(SimulationTiming timing) {
+		this.timing = timing;
+	}
+
+	/**
+	 * Add the next intersection along the road.
+	 *
+	 * @param spec
+	 *            the intersection
+	 * @param planIndex
+	 *            which of its plans to coordinate; must be pre-timed
+	 * @param outbound
+	 *            index of the stream carrying the arterial outbound
+	 * @param inbound
+	 *            index of the stream carrying it inbound, or -1
+	 * @param travel
+	 *            milliseconds to drive from the previous intersection; ignored
+	 *            for the first
+	 * @return the intersection's place on the corridor
+	 */
+	public Junction add(IntersectionSpec spec, int planIndex, int outbound, int inbound, long travel) {
+		if (spec.getPlans().get(planIndex).getType() != IntersectionSpec.PlanType.PRETIMED) {
+			throw new IllegalArgumentException(spec.getName() + ": only pre-timed plans can be coordinated");
+		}
+		if (outbound < 0 || outbound >= spec.getStreams().size() || inbound >= spec.getStreams().size()) {
+			throw new IllegalArgumentException(spec.getName() + ": no such arterial stream");
+		}
+		if (travel < 0) {
+			throw new IllegalArgumentException("Negative travel time");
+		}
+		Junction j = new Junction(spec, planIndex, outbound, inbound, junctions.isEmpty() ? 0 : travel);
+		junctions.add(j);
+		return j;
+	}
+
+	public List<Junction> getJunctions() {
+		return junctions;
+	}
+
+	/**
+	 * @return the shortest cycle every plan can be stretched to, in
+	 *         milliseconds
+	 */
+	public long minimumCycle() {
+		long longest = 0;
+		for (Junction j : junctions) {
+			longest = Math.max(longest, controller(j.spec, j.planIndex).cycleLength());
+		}
+		return longest;
+	}
+
+	/**
+	 * Each intersection running its own plan, all starting together.
+	 */
+	public Coordination uncoordinated() {
+		IntersectionSpec[] specs = new IntersectionSpec[junctions.size()];
+		for (int n = 0; n < specs.length; n++) {
+			specs[n] = junctions.get(n).spec;
+		}
+		return new Coordination(0, specs, new long[specs.length], 0, 0);
+	}
+
+	/**
+	 * Retime every plan to a common cycle and find the offsets giving the
+	 * most bandwidth.
+	 *
+	 * @param cycle
+	 *            cycle length in milliseconds, a whole number of seconds no
+	 *            shorter than {@link #minimumCycle()}
+	 * @return the timings and offsets
+	 */
+	public Coordination coordinate(long cycle) {
+		if (junctions.isEmpty()) {
+			throw new IllegalStateException("No intersections on the corridor");
+		}
+		if (cycle % 1000 != 0) {
+			throw new IllegalArgumentException("Cycle must be a whole number of seconds");
+		}
+		int count = junctions.size();
+		IntersectionSpec[] retimed = new IntersectionSpec[count];
+		boolean[][] outGreen = new boolean[count][];
+		boolean[][] inGreen = new boolean[count][];
+		int[] greenStart = new int[count];
+		for (int n = 0; n < count; n++) {
+			Junction j = junctions.get(n);
+			retimed[n] = retime(j.spec, j.planIndex, cycle);
+			PhaseController c = controller(retimed[n], j.planIndex);
+			outGreen[n] = greenBins(retimed[n], j.planIndex, c, j.outbound, cycle);
+			inGreen[n] = j.inbound < 0 ? null : greenBins(retimed[n], j.planIndex, c, j.inbound, cycle);
+			greenStart[n] = firstGreenBin(outGreen[n]);
+		}
+
+		// Where a vehicle leaving the first intersection is, in bins, when it
+		// gets to each of the others
+		int bins = (int) (cycle / RESOLUTION);
+		int[] reach = new int[count];
+		for (int n = 1; n < count; n++) {
+			reach[n] = reach[n - 1] + (int) (junctions.get(n).travel / RESOLUTION);
+		}
+
+		// Start from a one-way green wave: each outbound green starts as the
+		// first vehicles through the previous one arrive
+		int[] offsets = new int[count];
+		int step = 1000 / RESOLUTION;
+		for (int n = 1; n < count; n++) {
+			int wave = Math.floorMod(reach[n] + greenStart[0] - greenStart[n], bins);
+			offsets[n] = Math.floorMod(Math.round((float) wave / step) * step, bins);
+		}
+		long best = bandwidth(outGreen, reach, offsets, bins, false) + bandwidth(inGreen, reach, offsets, bins, true);
+
+		// Then move one offset at a time while that helps
+		for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+			boolean improved = false;
+			for (int n = 1; n < count; n++) {
+				int kept = offsets[n];
+				for (int o = 0; o < bins; o += step) {
+					offsets[n] = o;
+					long band = bandwidth(outGreen, reach, offsets, bins, false)
+							+ bandwidth(inGreen, reach, offsets, bins, true);
+					if (band > best) {
+						best = band;
+						kept = o;
+						improved = true;
+					}
+				}
+				offsets[n] = kept;
+			}
+			if (!improved) {
+				break;
+			}
+		}
+
+		long[] millis = new long[count];
+		for (int n = 0; n < count; n++) {
+			millis[n] = (long) offsets[n] * RESOLUTION;
+		}
+		return new Coordination(cycle, retimed, millis, bandwidth(outGreen, reach, offsets, bins, false) * RESOLUTION,
+				bandwidth(inGreen, reach, offsets, bins, true) * RESOLUTION);
+	}
+
+	/**
+	 * Simulate the arterial in one direction.
+	 *
+	 * @param c
+	 *            the coordination to run
+	 * @param inbound
+	 *            true for the inbound direction, false for outbound
+	 * @param vehiclesPerHour
+	 *            rate of random arrivals at the first intersection reached
+	 * @param duration
+	 *            how long to simulate, in milliseconds
+	 * @param seed
+	 *            random seed for the arrivals
+	 * @return how the vehicles that got through fared
+	 */
+	public Performance evaluate(Coordination c, boolean inbound, double vehiclesPerHour, long duration, long seed) {
+		int count = junctions.size();
+		// Arrivals at the first intersection
+		PoissonArrivals source = new PoissonArrivals(seed, 1, vehiclesPerHour);
+		long[] times = new long[256];
+		int n = 0;
+		for (long t = source.nextArrival(0); t < duration; t = source.nextArrival(0)) {
+			if (n == times.length) {
+				times = Arrays.copyOf(times, n * 2);
+			}
+			times[n++] = t;
+		}
+		long[] delay = new long[n];
+		int[] stops = new int[n];
+
+		int vehicles = n;
+		for (int k = 0; k < count; k++) {
+			int at = inbound ? count - 1 - k : k;
+			Junction j = junctions.get(at);
+			int stream = inbound ? j.inbound : j.outbound;
+			long link = inbound ? (at > 0 ? j.travel : 0) : (at + 1 < count ? junctions.get(at + 1).travel : 0);
+			if (stream < 0) {
+				// Not signalled in this direction
+				for (int v = 0; v < vehicles; v++) {
+					times[v] += link;
+				}
+				continue;
+			}
+			Departures d = new Departures(new ListedArrivals(stream, times, vehicles), j.spec.getStreams().size(),
+					timing, stream);
+			PhaseController pc = new PhaseController(c.getRetimed(at), j.planIndex, timing, d);
+			long cycle = c.getCycle() > 0 ? c.getCycle() : pc.cycleLength();
+			// Start a cycle early so the plan is under way when traffic comes
+			pc.start(c.getOffset(at) - cycle);
+			while (pc.nextChange() <= duration) {
+				pc.advance();
+			}
+			d.queueLength(stream, duration);
+
+			// Vehicles keep their order, so the i'th to leave is the i'th
+			// to have entered
+			vehicles = d.count;
+			for (int v = 0; v < vehicles; v++) {
+				long waited = d.departed[v] - d.arrived[v];
+				delay[v] += waited;
+				if (waited > 0) {
+					stops[v]++;
+				}
+				times[v] = d.departed[v] + link;
+			}
+		}
+
+		long totalDelay = 0;
+		long totalStops = 0;
+		for (int v = 0; v < vehicles; v++) {
+			totalDelay += delay[v];
+			totalStops += stops[v];
+		}
+		return new Performance(vehicles, duration,
+				vehicles == 0 ? 0 : (double) totalDelay / vehicles, vehicles == 0 ? 0 : (double) totalStops / vehicles);
+	}
+
+	/**
+	 * Run the coordinated plans on a scheduler, each entering its first phase
+	 * at its offset from now. Until then a junction publishes nothing, so the
+	 * first cycle is already coordinated.
+	 *
+	 * @param c
+	 *            the coordination
+	 * @param scheduler
+	 *            where to run them
+	 * @return the handles of the intersections, in corridor order
+	 */
+	public List<IntersectionScheduler.Handle> schedule(Coordination c, IntersectionScheduler scheduler) {
+		List<IntersectionScheduler.Handle> handles = new ArrayList<IntersectionScheduler.Handle>();
+		for (int n = 0; n < junctions.size(); n++) {
+			handles.add(scheduler.add(controller(c.getRetimed(n), junctions.get(n).planIndex)));
+		}
+		for (int n = 0; n < handles.size(); n++) {
+			handles.get(n).start(c.getOffset(n));
+		}
+		return handles;
+	}
+
+	/**
+	 * Copy an intersection with its green intervals lengthened so the plan's
+	 * cycle is the given length. The extra time is shared in proportion to
+	 * their current lengths.
+	 */
+	private IntersectionSpec retime(IntersectionSpec spec, int planIndex, long cycle) {
+		PhaseController c = controller(spec, planIndex);
+		long spare = cycle - c.cycleLength();
+		if (spare < 0) {
+			throw new IllegalArgumentException(String.format("%s needs a cycle of at least %.0f s", spec.getName(),
+					Math.ceil(c.cycleLength() / 1000.0)));
+		}
+		if (spare % 1000 != 0) {
+			throw new IllegalArgumentException(spec.getName() + ": phase times must be whole seconds");
+		}
+		IntersectionSpec out = spec.copy();
+		IntersectionSpec.PlanSpec plan = out.getPlans().get(planIndex);
+		List<IntersectionSpec.PhaseSpec> phases = plan.getPhases();
+		long greenTotal = 0;
+		for (int p = 0; p < phases.size(); p++) {
+			if (plan.isGreenInterval(p)) {
+				greenTotal += c.duration(p);
+			}
+		}
+		if (greenTotal == 0) {
+			if (spare > 0) {
+				throw new IllegalArgumentException(spec.getName() + " has no green intervals to lengthen");
+			}
+			return out;
+		}
+		// Whole seconds to each, largest remainders first
+		int seconds = (int) (spare / 1000);
+		int[] extra = new int[phases.size()];
+		double[] remainder = new double[phases.size()];
+		int given = 0;
+		for (int p = 0; p < phases.size(); p++) {
+			if (plan.isGreenInterval(p)) {
+				double share = (double) seconds * c.duration(p) / greenTotal;
+				extra[p] = (int) share;
+				remainder[p] = share - extra[p];
+				given += extra[p];
+			} else {
+				remainder[p] = -1;
+			}
+		}
+		for (; given < seconds; given++) {
+			int most = 0;
+			for (int p = 1; p < phases.size(); p++) {
+				if (remainder[p] > remainder[most]) {
+					most = p;
+				}
+			}
+			extra[most]++;
+			remainder[most] = -1;
+		}
+		for (int p = 0; p < phases.size(); p++) {
+			if (plan.isGreenInterval(p)) {
+				phases.get(p).setMinGreen((int) (c.duration(p) / 1000) + extra[p]);
+			}
+		}
+		return out;
+	}
+
+	private PhaseController controller(IntersectionSpec spec, int planIndex) {
+		// Pre-timed, so demand is never asked about
+		return new PhaseController(spec, planIndex, timing, new RandomDemand(0, 0));
+	}
+
+	/**
+	 * @return for each bin of the cycle, whether the stream is green
+	 */
+	private static boolean[] greenBins(IntersectionSpec spec, int planIndex, PhaseController c, int stream,
+			long cycle) {
+		boolean[] green = new boolean[(int) (cycle / RESOLUTION)];
+		List<IntersectionSpec.PhaseSpec> phases = spec.getPlans().get(planIndex).getPhases();
+		long start = 0;
+		for (int p = 0; p < phases.size(); p++) {
+			long end = start + c.duration(p);
+			if (phases.get(p).getState(stream) == State.GREEN) {
+				for (long b = start / RESOLUTION; b < end / RESOLUTION; b++) {
+					green[(int) b] = true;
+				}
+			}
+			start = end;
+		}
+		return green;
+	}
+
+	/**
+	 * @return the bin a green period starts in, or 0 if always or never green
+	 */
+	private static int firstGreenBin(boolean[] green) {
+		for (int b = 0; b < green.length; b++) {
+			if (green[b] && !green[(b + green.length - 1) % green.length]) {
+				return b;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return how many bins of the cycle a vehicle can set off in and meet
+	 *         green everywhere along the corridor in one direction
+	 */
+	private static long bandwidth(boolean[][] green, int[] reach, int[] offsets, int bins, boolean inbound) {
+		int count = green.length;
+		boolean signalled = false;
+		for (boolean[] g : green) {
+			signalled |= g != null;
+		}
+		if (!signalled) {
+			return 0;
+		}
+		long band = 0;
+		for (int t = 0; t < bins; t++) {
+			boolean through = true;
+			for (int n = 0; n < count && through; n++) {
+				if (green[n] == null) {
+					continue;
+				}
+				// Inbound vehicles set off from the last intersection
+				int arrival = inbound ? t + reach[count - 1] - reach[n] : t + reach[n];
+				through = green[n][Math.floorMod(arrival - offsets[n], bins)];
+			}
+			if (through) {
+				band++;
+			}
+		}
+		return band;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 5) {
+			System.err.println(
+					"Usage: Corridor cycleSeconds vehiclesPerHour hours file:outbound:inbound[:travelSeconds] ...");
+			return;
+		}
+		long cycle = Long.parseLong(args[0]) * 1000;
+		double vehiclesPerHour = Double.parseDouble(args[1]);
+		long duration = (long) (Double.parseDouble(args[2]) * 3600000);
+
+		Corridor corridor = new Corridor(new SimulationTiming());
+		for (int a = 3; a < args.length; a++) {
+			String[] parts = args[a].split(":");
+			if (parts.length < 3) {
+				System.err.println(args[a] + ": expected file:outbound:inbound[:travelSeconds]");
+				return;
+			}
+			BufferedReader br = new BufferedReader(new FileReader(parts[0]));
+			IntersectionSpec spec = new MyIntersectionLoader(br).buildSpec();
+			br.close();
+			if (spec == null) {
+				System.err.println(parts[0] + " isn't a valid intersection");
+				return;
+			}
+			int out = spec.streamIndex(parts[1]);
+			int in = parts[2].isEmpty() ? -1 : spec.streamIndex(parts[2]);
+			if (out < 0 || (in < 0 && !parts[2].isEmpty())) {
+				System.err.println(parts[0] + ": no stream " + (out < 0 ? parts[1] : parts[2]));
+				return;
+			}
+			long travel = parts.length > 3 ? (long) (Double.parseDouble(parts[3]) * 1000) : 0;
+			corridor.add(spec, 0, out, in, travel);
+		}
+
+		long start = System.nanoTime();
+		Coordination none = corridor.uncoordinated();
+		Coordination wave = corridor.coordinate(Math.max(cycle, (corridor.minimumCycle() + 999) / 1000 * 1000));
+		double took = (System.nanoTime() - start) / 1e6;
+		System.out.println(wave + String.format(" (found in %.1f ms)", took));
+		for (int n = 0; n < corridor.getJunctions().size(); n++) {
+			System.out.println(String.format("  %-30s offset %5.0f s", corridor.getJunctions().get(n).getSpec().getName(),
+					wave.getOffset(n) / 1000.0));
+		}
+		start = System.nanoTime();
+		System.out.println("Outbound uncoordinated: " + corridor.evaluate(none, false, vehiclesPerHour, duration, 1));
+		System.out.println("Outbound coordinated:   " + corridor.evaluate(wave, false, vehiclesPerHour, duration, 1));
+		System.out.println("Inbound uncoordinated:  " + corridor.evaluate(none, true, vehiclesPerHour, duration, 2));
+		System.out.println("Inbound coordinated:    " + corridor.evaluate(wave, true, vehiclesPerHour, duration, 2));
+		System.out.println(String.format("Simulated in %.1f ms", (System.nanoTime() - start) / 1e6));
+	}
+}
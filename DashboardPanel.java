@@ -0,0 +1,163 @@
+package traffic.diy;
+
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import javax.swing.JPanel;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Many intersections at once, as {@link DashboardTile}s in a grid that wraps to
+ * the width it's given. Meant to sit in a JScrollPane.
+ *
+ * Tiles aren't repainted as things change. Every {@link #REFRESH_MILLIS} the
+ * dashboard repaints the tiles that have changed and can be seen; the rest
+ * keep their changes until they're scrolled into view. Double clicking a tile
+ * asks for the full display of its intersection.
+ */
+public class DashboardPanel extends JPanel implements Scrollable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int REFRESH_MILLIS = 250;
+	private static final int GAP = 6;
+
+	/**
+	 * Told when the user wants to see one intersection in full.
+	 */
+	public interface Listener {
+		void drillIn(DashboardTile tile);
+	}
+
+	private final Timer refresh;
+	private Listener listener;
+
+	private final MouseAdapter opener = new MouseAdapter() {
+
+		@Override
+		public void mouseClicked(MouseEvent e) {
+			if (e.getClickCount() == 2 && SwingUtilities.isLeftMouseButton(e) && listener != null) {
+				listener.drillIn((DashboardTile) e.getComponent());
+			}
+		}
+	};
+
+	public DashboardPanel() {
+		super(null);
+		refresh = new Timer(REFRESH_MILLIS, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				repaintChanged();
+			}
+		});
+		refresh.start();
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Add a tile to the end of the grid. Runs on the EDT.
+	 */
+	public void addTile(DashboardTile tile) {
+		tile.addMouseListener(opener);
+		add(tile);
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Take a tile off the grid. Runs on the EDT.
+	 */
+	public void removeTile(DashboardTile tile) {
+		tile.removeMouseListener(opener);
+		remove(tile);
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Stop refreshing; it can't be restarted.
+	 */
+	public void dispose() {
+		refresh.stop();
+	}
+
+	/**
+	 * Repaint the tiles that have changed and are in view.
+	 */
+	private void repaintChanged() {
+		if (!isShowing()) {
+			return;
+		}
+		Rectangle view = getParent() instanceof JViewport ? ((JViewport) getParent()).getViewRect()
+				: new Rectangle(0, 0, getWidth(), getHeight());
+		for (Component c : getComponents()) {
+			if (c.getBounds().intersects(view) && ((DashboardTile) c).takeDirty()) {
+				c.repaint();
+			}
+		}
+	}
+
+	private int columns() {
+		int width = getParent() instanceof JViewport ? getParent().getWidth() : getWidth();
+		Insets in = getInsets();
+		return Math.max(1, (width - in.left - in.right - GAP) / (DashboardTile.WIDTH + GAP));
+	}
+
+	@Override
+	public void doLayout() {
+		int columns = columns();
+		Insets in = getInsets();
+		Component[] tiles = getComponents();
+		for (int n = 0; n < tiles.length; n++) {
+			tiles[n].setBounds(in.left + GAP + (n % columns) * (DashboardTile.WIDTH + GAP),
+					in.top + GAP + (n / columns) * (DashboardTile.HEIGHT + GAP), DashboardTile.WIDTH,
+					DashboardTile.HEIGHT);
+		}
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		int columns = columns();
+		int rows = (getComponentCount() + columns - 1) / columns;
+		Insets in = getInsets();
+		return new Dimension(in.left + in.right + GAP + columns * (DashboardTile.WIDTH + GAP),
+				in.top + in.bottom + GAP + rows * (DashboardTile.HEIGHT + GAP));
+	}
+
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return DashboardTile.HEIGHT / 4;
+	}
+
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return Math.max(DashboardTile.HEIGHT + GAP, visibleRect.height - DashboardTile.HEIGHT);
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		return true;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		return false;
+	}
+}
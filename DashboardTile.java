@@ -0,0 +1,140 @@
+package traffic.diy;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+
+import traffic.core.Intersection;
+import traffic.util.State;
+
+/**
+ * A compact summary of one intersection for the {@link DashboardPanel}: its
+ * name, the running phase and how many streams are in each state, with a bar
+ * in proportion.
+ *
+ * Changes only update counters and mark the tile dirty; the dashboard decides
+ * when, and whether, to repaint it.
+ */
+public class DashboardTile extends JComponent implements SignalListener {
+	private static final long serialVersionUID = 1L;
+
+	public static final int WIDTH = 200;
+	public static final int HEIGHT = 64;
+
+	/** The states counted, in the order they're shown. */
+	private static final State[] SHOWN = { State.GREEN, State.YELLOW, State.RED, State.OFF };
+
+	private final Intersection intersection;
+	private final IntersectionSpec spec;
+	private final PhaseTable table;
+	private final AtomicReferenceArray<State> current;
+	/** Streams in each state, by ordinal. */
+	private final AtomicIntegerArray counts = new AtomicIntegerArray(State.values().length);
+	private volatile int phase = -1;
+	private final AtomicBoolean dirty = new AtomicBoolean(true);
+
+	/**
+	 * @param intersection
+	 *            the intersection
+	 * @param spec
+	 *            its description, or null if there isn't one
+	 * @param table
+	 *            its compiled plan
+	 */
+	public DashboardTile(Intersection intersection, IntersectionSpec spec, PhaseTable table) {
+		this.intersection = intersection;
+		this.spec = spec;
+		this.table = table;
+		this.current = new AtomicReferenceArray<State>(table.streamCount());
+		setPreferredSize(new Dimension(WIDTH, HEIGHT));
+		setToolTipText(intersection.getDescription());
+		setBorder(BorderFactory.createEtchedBorder());
+		setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11));
+		setOpaque(true);
+		setBackground(Color.WHITE);
+	}
+
+	public Intersection getIntersection() {
+		return intersection;
+	}
+
+	public IntersectionSpec getSpec() {
+		return spec;
+	}
+
+	@Override
+	public void phaseChanged(long time, int phase) {
+		this.phase = phase;
+		dirty.set(true);
+	}
+
+	@Override
+	public void streamChanged(long time, int stream, State state) {
+		State previous = current.getAndSet(stream, state);
+		if (previous != state) {
+			if (previous != null) {
+				counts.decrementAndGet(previous.ordinal());
+			}
+			counts.incrementAndGet(state.ordinal());
+			dirty.set(true);
+		}
+	}
+
+	/**
+	 * @return whether it's changed since it was last asked, clearing the mark
+	 */
+	public boolean takeDirty() {
+		return dirty.getAndSet(false);
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		int w = getWidth();
+		int h = getHeight();
+		g.setColor(getBackground());
+		g.fillRect(0, 0, w, h);
+		g.setFont(getFont());
+		FontMetrics fm = g.getFontMetrics();
+		int line = fm.getHeight();
+
+		g.setColor(Color.BLACK);
+		g.setFont(getFont().deriveFont(Font.BOLD));
+		g.drawString(PhaseMatrixView.clip(intersection.getName(), g.getFontMetrics(), w - 8), 4, 2 + line);
+		g.setFont(getFont());
+		int p = phase;
+		g.drawString(PhaseMatrixView.clip(p < 0 ? "Not running" : table.phaseName(p), fm, w - 8), 4, 2 + 2 * line);
+
+		// How many streams are in each state, and a bar in proportion
+		int known = 0;
+		for (State s : SHOWN) {
+			known += counts.get(s.ordinal());
+		}
+		int barTop = h - 14;
+		int x = 4;
+		StringBuilder text = new StringBuilder();
+		for (State s : SHOWN) {
+			int n = counts.get(s.ordinal());
+			if (n == 0) {
+				continue;
+			}
+			int width = known == 0 ? 0 : n * (w - 8) / known;
+			g.setColor(MyIntersectionMonitor.colourForState(s));
+			g.fillRect(x, barTop, width, 10);
+			x += width;
+			text.append(n).append(s.name().charAt(0)).append(' ');
+		}
+		if (known < table.streamCount()) {
+			text.append(table.streamCount() - known).append("? ");
+		}
+		g.setColor(Color.DARK_GRAY);
+		g.drawString(text.toString(), 4, barTop - 3);
+	}
+}
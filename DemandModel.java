@@ -0,0 +1,17 @@
+package traffic.diy;
+
+/**
+ * Says whether traffic is waiting on a stream. Used by simulated actuated
+ * plans to decide whether to extend a green.
+ */
+public interface DemandModel {
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @param time
+	 *            simulated time in milliseconds
+	 * @return true if there's traffic waiting on or approaching the stream
+	 */
+	boolean hasDemand(int stream, long time);
+}
@@ -0,0 +1,232 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import traffic.load.TrafficSyntaxException;
+
+/**
+ * Runs an intersection's phase plan on a virtual clock with no GUI, as fast as
+ * the phases can be stepped. A full day of a timing plan takes a fraction of a
+ * second instead of a day.
+ *
+ * Usage: HeadlessSimulation file [hours [arrivals [csv]]]
+ *
+ * where arrivals is either a vehicles per hour rate, for Poisson arrivals on
+ * every stream, or a log of recorded arrivals (see {@link RecordedArrivals}).
+ * With arrivals, queue and delay figures are printed too, and written to
+ * csv-streams.csv and csv-phases.csv if csv is given. Without them, actuated
+ * plans see coin-flip demand.
+ */
+public class HeadlessSimulation {
+
+	/**
+	 * What happened during a run.
+	 */
+	public static class Result {
+		private final long simulatedMillis;
+		private final long wallNanos;
+		private final long phaseChanges;
+		private final long cycles;
+		private final long[] phaseMillis;
+		private final long[] activations;
+
+		Result(long simulatedMillis, long wallNanos, long phaseChanges, long cycles, long[] phaseMillis,
+				long[] activations) {
+			this.simulatedMillis = simulatedMillis;
+			this.wallNanos = wallNanos;
+			this.phaseChanges = phaseChanges;
+			this.cycles = cycles;
+			this.phaseMillis = phaseMillis;
+			this.activations = activations;
+		}
+
+		public long getSimulatedMillis() {
+			return simulatedMillis;
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		public long getPhaseChanges() {
+			return phaseChanges;
+		}
+
+		/**
+		 * @return how many complete cycles of the plan were run
+		 */
+		public long getCycles() {
+			return cycles;
+		}
+
+		/**
+		 * @param phase
+		 *            index of the phase
+		 * @return total time spent in that phase
+		 */
+		public long getPhaseMillis(int phase) {
+			return phaseMillis[phase];
+		}
+
+		/**
+		 * @param phase
+		 *            index of the phase
+		 * @return how many times the phase started
+		 */
+		public long getActivations(int phase) {
+			return activations[phase];
+		}
+
+		/**
+		 * @return how many times faster than real time the run went
+		 */
+		public double speedup() {
+			return wallNanos == 0 ? Double.POSITIVE_INFINITY : simulatedMillis * 1e6 / wallNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f h simulated in %.3f ms (%.0fx real time), %d phase changes, %d cycles",
+					simulatedMillis / 3.6e6, wallNanos / 1e6, speedup(), phaseChanges, cycles);
+		}
+	}
+
+	private final PhaseController controller;
+
+	/**
+	 * Simulate the first plan of an intersection with default timings and
+	 * coin-flip demand.
+	 *
+	 * @param spec
+	 *            the intersection
+	 */
+	public HeadlessSimulation(IntersectionSpec spec) {
+		this(new PhaseController(spec, 0, new SimulationTiming(), new RandomDemand(1, 0.5)));
+	}
+
+	public HeadlessSimulation(PhaseController controller) {
+		this.controller = controller;
+	}
+
+	public PhaseController getController() {
+		return controller;
+	}
+
+	/**
+	 * Run the plan, starting it first if necessary.
+	 *
+	 * @param duration
+	 *            how long to simulate, in milliseconds
+	 * @return what happened
+	 */
+	public Result run(long duration) {
+		long wallStart = System.nanoTime();
+		if (!controller.isStarted()) {
+			controller.start(0);
+		}
+		long start = controller.phaseStart();
+		long end = start + duration;
+		long[] phaseMillis = new long[controller.phaseCount()];
+		long[] activations = new long[controller.phaseCount()];
+		long changes = 0;
+		long cycles = 0;
+
+		activations[controller.currentPhase()]++;
+		long entered = controller.phaseStart();
+		while (controller.nextChange() <= end) {
+			int p = controller.currentPhase();
+			controller.advance();
+			int now = controller.currentPhase();
+			if (now != p || controller.phaseStart() != entered) {
+				phaseMillis[p] += controller.phaseStart() - entered;
+				entered = controller.phaseStart();
+				activations[now]++;
+				changes++;
+				if (now == 0) {
+					cycles++;
+				}
+			}
+		}
+		phaseMillis[controller.currentPhase()] += end - entered;
+		return new Result(duration, System.nanoTime() - wallStart, changes, cycles, phaseMillis, activations);
+	}
+
+	/**
+	 * Run a plan against queued arrivals and measure how it copes.
+	 *
+	 * @param spec
+	 *            the intersection
+	 * @param planIndex
+	 *            which of its plans to run
+	 * @param timing
+	 *            phase timings
+	 * @param arrivals
+	 *            where vehicles come from
+	 * @param duration
+	 *            how long to simulate, in milliseconds
+	 * @return the figures, caught up to the end of the run
+	 */
+	public static IntersectionMetrics measure(IntersectionSpec spec, int planIndex, SimulationTiming timing,
+			ArrivalSource arrivals, long duration) {
+		IntersectionMetrics metrics = new IntersectionMetrics(arrivals, spec, planIndex, timing);
+		PhaseController controller = new PhaseController(spec, planIndex, timing, metrics);
+		controller.start(0);
+		new HeadlessSimulation(controller).run(duration);
+		metrics.catchUp(duration);
+		return metrics;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: HeadlessSimulation file [hours [arrivals [csv]]]");
+			return;
+		}
+		double hours = args.length > 1 ? Double.parseDouble(args[1]) : 24;
+		BufferedReader br = new BufferedReader(new FileReader(args[0]));
+		IntersectionSpec spec = new MyIntersectionLoader(br).buildSpec();
+		br.close();
+		if (spec == null) {
+			System.err.println(args[0] + " isn't a valid intersection");
+			return;
+		}
+		if (args.length > 2) {
+			ArrivalSource arrivals;
+			try {
+				arrivals = new PoissonArrivals(1, spec.getStreams().size(), Double.parseDouble(args[2]));
+			} catch (NumberFormatException e) {
+				try {
+					arrivals = RecordedArrivals.load(spec, args[2]);
+				} catch (TrafficSyntaxException tse) {
+					System.err.println(args[2] + ": " + tse.getMessage());
+					return;
+				}
+			}
+			IntersectionMetrics m = measure(spec, 0, new SimulationTiming(), arrivals, (long) (hours * 3600000));
+			System.out.println(spec.getName() + ": " + hours + " h measured");
+			m.writeStreamCsv(System.out);
+			m.writePhaseCsv(System.out);
+			if (args.length > 3) {
+				Writer w = new FileWriter(args[3] + "-streams.csv");
+				m.writeStreamCsv(w);
+				w.close();
+				w = new FileWriter(args[3] + "-phases.csv");
+				m.writePhaseCsv(w);
+				w.close();
+			}
+			return;
+		}
+
+		HeadlessSimulation sim = new HeadlessSimulation(spec);
+		Result r = sim.run((long) (hours * 3600000));
+		System.out.println(spec.getName() + ": " + r);
+		for (int p = 0; p < sim.controller.phaseCount(); p++) {
+			IntersectionSpec.PhaseSpec ps = spec.getPlans().get(0).getPhases().get(p);
+			System.out.println(String.format("  %-12s %8d starts %10.1f s", ps.getName(), r.getActivations(p),
+					r.getPhaseMillis(p) / 1000.0));
+		}
+	}
+}
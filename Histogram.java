@@ -0,0 +1,110 @@
+package traffic.diy;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size histogram of non-negative long values with about 3% relative
+ * precision. Recording is a few arithmetic operations and an array increment,
+ * with no allocation, so it can sit on hot paths. Intended for a single
+ * writing thread; readers on other threads see a close but not necessarily
+ * exact snapshot.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int LINEAR = 2 * SUB;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long max;
+
+	/**
+	 * @param value
+	 *            the value to record; negative values count as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[bucket(value)]++;
+		count++;
+		sum += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public long count() {
+		return count;
+	}
+
+	public long max() {
+		return max;
+	}
+
+	public double mean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return a value at least as large as that percentage of those recorded
+	 */
+	public long percentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= target && seen > 0) {
+				return Math.min(upperBound(b), max);
+			}
+		}
+		return max;
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * Add everything recorded by another histogram to this one.
+	 *
+	 * @param other
+	 *            the histogram to add
+	 */
+	public void add(Histogram other) {
+		for (int b = 0; b < BUCKETS; b++) {
+			counts[b] += other.counts[b];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	private static int bucket(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exp - SUB_BITS));
+		return LINEAR + (exp - SUB_BITS - 1) * SUB + mantissa - SUB;
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int exp = (bucket - LINEAR) / SUB + SUB_BITS + 1;
+		long mantissa = (bucket - LINEAR) % SUB + SUB;
+		return ((mantissa + 1) << (exp - SUB_BITS)) - 1;
+	}
+}
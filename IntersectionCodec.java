@@ -0,0 +1,362 @@
+package traffic.diy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+
+import traffic.util.State;
+import traffic.util.TrafficDirection;
+
+/**
+ * Reads and writes intersections in a compact, versioned binary format.
+ *
+ * A file is a 10 byte header (magic number, format version, payload length)
+ * followed by the payload. Counts and indexes are unsigned varints and strings
+ * are UTF-8 with a varint length. The State and TrafficDirection names used
+ * are written once as dictionaries, so the file refers to them by index rather
+ * than by enum ordinal and survives reordering of those enums. Each phase's
+ * states are packed two to a byte.
+ *
+ * Version 2 adds the declared conflicts after the faces, as a count of pairs
+ * and then each pair of stream indexes. Version 1 records are still read.
+ */
+public class IntersectionCodec {
+
+	/** "TRFX" */
+	public static final int MAGIC = 0x54524658;
+	public static final short VERSION = 2;
+	public static final int HEADER_BYTES = 10;
+	/**
+	 * The longest payload read from a channel whose size isn't known, so a
+	 * corrupt length can't ask for more memory than any real record needs.
+	 */
+	public static final int MAX_PAYLOAD_BYTES = 256 << 20;
+
+	/**
+	 * Write an intersection description to a channel.
+	 *
+	 * @param spec
+	 *            the description
+	 * @param out
+	 *            where to write it
+	 * @throws IOException
+	 */
+	public static void write(IntersectionSpec spec, WritableByteChannel out) throws IOException {
+		ByteBuffer buf = encode(spec);
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+	}
+
+	/**
+	 * Read an intersection description from a channel. Reads exactly one
+	 * record, so several can follow one another in the same channel.
+	 *
+	 * @param in
+	 *            where to read it from
+	 * @return the description
+	 * @throws IOException
+	 *             if the data isn't a valid intersection, or its length is
+	 *             more than a file has left or than {@link #MAX_PAYLOAD_BYTES}
+	 */
+	public static IntersectionSpec read(ReadableByteChannel in) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(in, header);
+		header.flip();
+		short version = checkVersion(header);
+		int length = checkLength(header);
+		// Check the length before trusting it with an allocation
+		if (in instanceof FileChannel) {
+			FileChannel file = (FileChannel) in;
+			if (length > file.size() - file.position()) {
+				throw new EOFException("Truncated binary intersection");
+			}
+		} else if (length > MAX_PAYLOAD_BYTES) {
+			throw new IOException("Corrupt binary intersection length " + length);
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(in, payload);
+		payload.flip();
+		return decodePayload(payload, version);
+	}
+
+	/**
+	 * Encode an intersection description, header included.
+	 *
+	 * @param spec
+	 *            the description
+	 * @return a buffer ready to be read or written
+	 */
+	public static ByteBuffer encode(IntersectionSpec spec) {
+		Out out = new Out();
+		out.buf.putInt(MAGIC).putShort(VERSION).putInt(0);
+
+		out.putString(spec.getName());
+		out.putString(spec.getDescription());
+
+		State[] states = State.values();
+		out.putVarInt(states.length);
+		for (State s : states) {
+			out.putString(s.name());
+		}
+		TrafficDirection[] dirs = TrafficDirection.values();
+		out.putVarInt(dirs.length);
+		for (TrafficDirection d : dirs) {
+			out.putString(d.name());
+		}
+
+		List<IntersectionSpec.StreamSpec> streams = spec.getStreams();
+		out.putVarInt(streams.size());
+		for (IntersectionSpec.StreamSpec s : streams) {
+			out.putString(s.getName());
+			out.putString(s.getDescription());
+		}
+
+		out.putVarInt(spec.getPlans().size());
+		for (IntersectionSpec.PlanSpec plan : spec.getPlans()) {
+			out.putVarInt(plan.getType().ordinal());
+			out.putVarInt(plan.getPhases().size());
+			for (IntersectionSpec.PhaseSpec p : plan.getPhases()) {
+				out.putString(p.getName());
+				out.putString(p.getDescription());
+				// NO_MIN_GREEN is -1, so store everything one higher
+				out.putVarInt(p.getMinGreen() + 1);
+				out.ensure((streams.size() + 1) / 2);
+				for (int s = 0; s < streams.size(); s += 2) {
+					int lo = p.getState(s).ordinal();
+					int hi = s + 1 < streams.size() ? p.getState(s + 1).ordinal() : 0;
+					out.buf.put((byte) (lo | hi << 4));
+				}
+			}
+		}
+
+		out.putVarInt(spec.getFaces().size());
+		for (IntersectionSpec.FaceSpec f : spec.getFaces()) {
+			out.putVarInt(f.getLocation().ordinal());
+			out.putVarInt(f.getOrientation().ordinal());
+			out.putVarInt(f.getKind());
+			out.putVarInt(f.streamCount());
+			for (int n = 0; n < f.streamCount(); n++) {
+				out.putVarInt(f.getStream(n));
+			}
+		}
+
+		int pairs = 0;
+		for (int s = 0; s < streams.size(); s++) {
+			pairs += spec.getConflicts(s).get(s + 1, streams.size()).cardinality();
+		}
+		out.putVarInt(pairs);
+		for (int s = 0; s < streams.size(); s++) {
+			BitSet others = spec.getConflicts(s);
+			for (int o = others.nextSetBit(s + 1); o >= 0; o = others.nextSetBit(o + 1)) {
+				out.putVarInt(s);
+				out.putVarInt(o);
+			}
+		}
+
+		ByteBuffer buf = out.buf;
+		buf.putInt(6, buf.position() - HEADER_BYTES);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Decode an intersection description, header included, from the buffer's
+	 * current position. The position is left just after the record.
+	 *
+	 * @param buf
+	 *            the encoded data
+	 * @return the description
+	 * @throws IOException
+	 *             if the data isn't a valid intersection
+	 */
+	public static IntersectionSpec decode(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < HEADER_BYTES) {
+			throw new EOFException("Truncated intersection header");
+		}
+		short version = checkVersion(buf);
+		int length = checkLength(buf);
+		if (buf.remaining() < length) {
+			throw new EOFException("Truncated intersection");
+		}
+		ByteBuffer payload = buf.slice();
+		payload.limit(length);
+		buf.position(buf.position() + length);
+		return decodePayload(payload, version);
+	}
+
+	/**
+	 * @param first
+	 *            the leading bytes of a file
+	 * @return true if they look like the start of this format
+	 */
+	public static boolean isEncoded(ByteBuffer first) {
+		return first.remaining() >= 4 && first.getInt(first.position()) == MAGIC;
+	}
+
+	private static short checkVersion(ByteBuffer header) throws IOException {
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Not a binary intersection");
+		}
+		short version = header.getShort();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported binary intersection version " + version);
+		}
+		return version;
+	}
+
+	private static int checkLength(ByteBuffer header) throws IOException {
+		int length = header.getInt();
+		if (length < 0) {
+			throw new IOException("Corrupt binary intersection length " + length);
+		}
+		return length;
+	}
+
+	private static IntersectionSpec decodePayload(ByteBuffer in, short version) throws IOException {
+		try {
+			IntersectionSpec spec = new IntersectionSpec(getString(in), getString(in));
+
+			State[] states = new State[getCount(in)];
+			for (int n = 0; n < states.length; n++) {
+				states[n] = State.valueOf(getString(in));
+			}
+			TrafficDirection[] dirs = new TrafficDirection[getCount(in)];
+			for (int n = 0; n < dirs.length; n++) {
+				dirs[n] = TrafficDirection.valueOf(getString(in));
+			}
+
+			int streamCount = getVarInt(in);
+			for (int s = 0; s < streamCount; s++) {
+				String name = getString(in);
+				if (spec.addStream(name, getString(in)) < 0) {
+					throw new IOException("Duplicate stream " + name);
+				}
+			}
+
+			IntersectionSpec.PlanType[] types = IntersectionSpec.PlanType.values();
+			int planCount = getVarInt(in);
+			State[] phaseStates = new State[streamCount];
+			for (int p = 0; p < planCount; p++) {
+				IntersectionSpec.PlanSpec plan = spec.addPlan(types[getVarInt(in)]);
+				int phaseCount = getVarInt(in);
+				for (int n = 0; n < phaseCount; n++) {
+					String name = getString(in);
+					String description = getString(in);
+					int minGreen = getVarInt(in) - 1;
+					if (minGreen != IntersectionSpec.NO_MIN_GREEN && minGreen < 1) {
+						throw new IOException("Corrupt binary intersection: min green " + minGreen + " in phase " + name);
+					}
+					for (int s = 0; s < streamCount; s += 2) {
+						int packed = in.get() & 0xff;
+						phaseStates[s] = states[packed & 0x0f];
+						if (s + 1 < streamCount) {
+							phaseStates[s + 1] = states[packed >>> 4];
+						}
+					}
+					spec.addPhase(plan, name, description, phaseStates, minGreen);
+				}
+			}
+
+			int faceCount = getVarInt(in);
+			for (int f = 0; f < faceCount; f++) {
+				TrafficDirection loc = dirs[getVarInt(in)];
+				TrafficDirection orient = dirs[getVarInt(in)];
+				int kind = getVarInt(in);
+				int[] observed = new int[getCount(in)];
+				for (int n = 0; n < observed.length; n++) {
+					observed[n] = getVarInt(in);
+				}
+				spec.addFace(loc, orient, kind, observed);
+			}
+
+			if (version >= 2) {
+				int pairs = getVarInt(in);
+				for (int n = 0; n < pairs; n++) {
+					spec.addConflict(getVarInt(in), getVarInt(in));
+				}
+			}
+			return spec;
+		} catch (RuntimeException e) {
+			// Out of range indexes, unknown enum names, running off the end...
+			throw new IOException("Corrupt binary intersection: " + e, e);
+		}
+	}
+
+	private static void readFully(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (in.read(buf) < 0) {
+				throw new EOFException("Truncated binary intersection");
+			}
+		}
+	}
+
+	private static int getVarInt(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt varint");
+	}
+
+	/**
+	 * A count of things still to be read, each taking at least a byte, so a
+	 * corrupt count is caught before it's allocated.
+	 */
+	private static int getCount(ByteBuffer in) throws IOException {
+		int count = getVarInt(in);
+		if (count < 0 || count > in.remaining()) {
+			throw new IOException("Corrupt count " + count);
+		}
+		return count;
+	}
+
+	private static String getString(ByteBuffer in) throws IOException {
+		int length = getCount(in);
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A buffer that grows as it's written.
+	 */
+	private static class Out {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+
+		void ensure(int bytes) {
+			if (buf.remaining() < bytes) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+				buf.flip();
+				bigger.put(buf);
+				buf = bigger;
+			}
+		}
+
+		void putVarInt(int value) {
+			ensure(5);
+			while ((value & ~0x7f) != 0) {
+				buf.put((byte) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			buf.put((byte) value);
+		}
+
+		void putString(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			putVarInt(bytes.length);
+			ensure(bytes.length);
+			buf.put(bytes);
+		}
+	}
+}
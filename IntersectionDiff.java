@@ -0,0 +1,188 @@
+package traffic.diy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The differences between two descriptions of the same intersection, sorted
+ * into those a running intersection can take on the fly and those it can't.
+ * Min green intervals can be changed or added on the running phases, but the
+ * traffic classes have no way to remove one. Anything else (streams,
+ * conflicts, plans, phase states or names, faces, or a removed min green)
+ * needs the intersection rebuilt.
+ */
+public class IntersectionDiff {
+
+	/**
+	 * A phase whose min green interval has changed.
+	 */
+	public static class TimingChange {
+		private final int plan;
+		private final int phase;
+		private final int minGreen;
+
+		TimingChange(int plan, int phase, int minGreen) {
+			this.plan = plan;
+			this.phase = phase;
+			this.minGreen = minGreen;
+		}
+
+		public int getPlan() {
+			return plan;
+		}
+
+		public int getPhase() {
+			return phase;
+		}
+
+		/**
+		 * @return the new min green, or {@link IntersectionSpec#NO_MIN_GREEN}
+		 */
+		public int getMinGreen() {
+			return minGreen;
+		}
+	}
+
+	private final IntersectionSpec from;
+	private final IntersectionSpec to;
+	private final boolean structural;
+	private final List<TimingChange> timing;
+
+	private IntersectionDiff(IntersectionSpec from, IntersectionSpec to, boolean structural,
+			List<TimingChange> timing) {
+		this.from = from;
+		this.to = to;
+		this.structural = structural;
+		this.timing = timing;
+	}
+
+	/**
+	 * Compare two descriptions.
+	 *
+	 * @param from
+	 *            the one running now
+	 * @param to
+	 *            its replacement
+	 * @return how they differ
+	 */
+	public static IntersectionDiff compare(IntersectionSpec from, IntersectionSpec to) {
+		List<TimingChange> timing = new ArrayList<TimingChange>();
+		if (!sameStructure(from, to)) {
+			return new IntersectionDiff(from, to, true, timing);
+		}
+		for (int pl = 0; pl < from.getPlans().size(); pl++) {
+			List<IntersectionSpec.PhaseSpec> a = from.getPlans().get(pl).getPhases();
+			List<IntersectionSpec.PhaseSpec> b = to.getPlans().get(pl).getPhases();
+			for (int p = 0; p < a.size(); p++) {
+				if (a.get(p).getMinGreen() == b.get(p).getMinGreen()) {
+					continue;
+				}
+				if (b.get(p).getMinGreen() == IntersectionSpec.NO_MIN_GREEN) {
+					// can't be taken off a running phase
+					return new IntersectionDiff(from, to, true, new ArrayList<TimingChange>());
+				}
+				timing.add(new TimingChange(pl, p, b.get(p).getMinGreen()));
+			}
+		}
+		return new IntersectionDiff(from, to, false, timing);
+	}
+
+	public IntersectionSpec getFrom() {
+		return from;
+	}
+
+	public IntersectionSpec getTo() {
+		return to;
+	}
+
+	/**
+	 * @return true if nothing has changed
+	 */
+	public boolean isEmpty() {
+		return !structural && timing.isEmpty();
+	}
+
+	/**
+	 * @return true if the intersection has to be rebuilt to take on the
+	 *         changes
+	 */
+	public boolean isStructural() {
+		return structural;
+	}
+
+	/**
+	 * @return the min green changes, if the change isn't structural
+	 */
+	public List<TimingChange> getTimingChanges() {
+		return Collections.unmodifiableList(timing);
+	}
+
+	@Override
+	public String toString() {
+		if (structural) {
+			return "structural change";
+		}
+		return timing.isEmpty() ? "no change" : timing.size() + " timing change" + (timing.size() == 1 ? "" : "s");
+	}
+
+	private static boolean sameStructure(IntersectionSpec a, IntersectionSpec b) {
+		if (!a.getName().equals(b.getName()) || !a.getDescription().equals(b.getDescription())) {
+			return false;
+		}
+
+		int streams = a.getStreams().size();
+		if (streams != b.getStreams().size()) {
+			return false;
+		}
+		for (int s = 0; s < streams; s++) {
+			IntersectionSpec.StreamSpec x = a.getStreams().get(s);
+			IntersectionSpec.StreamSpec y = b.getStreams().get(s);
+			if (!x.getName().equals(y.getName()) || !x.getDescription().equals(y.getDescription())
+					|| !a.getConflicts(s).equals(b.getConflicts(s))) {
+				return false;
+			}
+		}
+
+		if (a.getPlans().size() != b.getPlans().size()) {
+			return false;
+		}
+		for (int pl = 0; pl < a.getPlans().size(); pl++) {
+			IntersectionSpec.PlanSpec x = a.getPlans().get(pl);
+			IntersectionSpec.PlanSpec y = b.getPlans().get(pl);
+			if (x.getType() != y.getType() || x.getPhases().size() != y.getPhases().size()) {
+				return false;
+			}
+			for (int p = 0; p < x.getPhases().size(); p++) {
+				IntersectionSpec.PhaseSpec xp = x.getPhases().get(p);
+				IntersectionSpec.PhaseSpec yp = y.getPhases().get(p);
+				if (!xp.getName().equals(yp.getName()) || !xp.getDescription().equals(yp.getDescription())) {
+					return false;
+				}
+				for (int s = 0; s < streams; s++) {
+					if (xp.getState(s) != yp.getState(s)) {
+						return false;
+					}
+				}
+			}
+		}
+
+		if (a.getFaces().size() != b.getFaces().size()) {
+			return false;
+		}
+		for (int f = 0; f < a.getFaces().size(); f++) {
+			IntersectionSpec.FaceSpec x = a.getFaces().get(f);
+			IntersectionSpec.FaceSpec y = b.getFaces().get(f);
+			if (x.getLocation() != y.getLocation() || x.getOrientation() != y.getOrientation()
+					|| x.getKind() != y.getKind() || x.streamCount() != y.streamCount()) {
+				return false;
+			}
+			for (int n = 0; n < x.streamCount(); n++) {
+				if (x.getStream(n) != y.getStream(n)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
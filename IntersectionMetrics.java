@@ -0,0 +1,284 @@
+package traffic.diy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import traffic.util.State;
+
+/**
+ * Queue demand that also measures how well the intersection is serving its
+ * traffic: per stream, queue length, vehicles served per green and delay; per
+ * phase, how much of its green was used. Everything is kept in counters and
+ * {@link Histogram}s sized up front, so measuring a long run allocates
+ * nothing.
+ *
+ * Like the controller it's given to, it's meant for a single thread. Call
+ * {@link #catchUp(long)} before reading the figures part way through a run.
+ */
+public class IntersectionMetrics extends QueueDemand {
+	private final IntersectionSpec spec;
+	private final IntersectionSpec.PlanSpec plan;
+	private final long headway;
+	/** Whether each phase shows each stream GREEN. */
+	private final boolean[][] greenIn;
+	private final int[] greenCount;
+
+	private final long[] arrivals;
+	private final int[] queued;
+	private final int[] maxQueue;
+	/** Queue length multiplied by time, for the average. */
+	private final long[] queueArea;
+	private final long[] lastQueueChange;
+	private final boolean[] serving;
+	private final int[] servedThisGreen;
+	private final Histogram[] servedPerGreen;
+	private final Histogram[] delay;
+
+	private final long[] phaseMillis;
+	private final long[] activations;
+	private final long[] phaseServed;
+	private int phase = -1;
+	private long phaseStart;
+	private long start = Long.MIN_VALUE;
+	private long now;
+
+	/**
+	 * @param arrivals
+	 *            where vehicles come from
+	 * @param spec
+	 *            the intersection
+	 * @param planIndex
+	 *            the plan the controller runs
+	 * @param timing
+	 *            gives the saturation headway
+	 */
+	public IntersectionMetrics(ArrivalSource arrivals, IntersectionSpec spec, int planIndex, SimulationTiming timing) {
+		super(arrivals, spec.getStreams().size(), timing);
+		this.spec = spec;
+		this.plan = spec.getPlans().get(planIndex);
+		this.headway = timing.getHeadway();
+
+		int streams = spec.getStreams().size();
+		int phases = plan.getPhases().size();
+		this.greenIn = new boolean[phases][streams];
+		this.greenCount = new int[phases];
+		for (int p = 0; p < phases; p++) {
+			for (int s = 0; s < streams; s++) {
+				if (plan.getPhases().get(p).getState(s) == State.GREEN) {
+					greenIn[p][s] = true;
+					greenCount[p]++;
+				}
+			}
+		}
+
+		this.arrivals = new long[streams];
+		this.queued = new int[streams];
+		this.maxQueue = new int[streams];
+		this.queueArea = new long[streams];
+		this.lastQueueChange = new long[streams];
+		this.serving = new boolean[streams];
+		this.servedThisGreen = new int[streams];
+		this.servedPerGreen = new Histogram[streams];
+		this.delay = new Histogram[streams];
+		for (int s = 0; s < streams; s++) {
+			servedPerGreen[s] = new Histogram();
+			delay[s] = new Histogram();
+		}
+		this.phaseMillis = new long[phases];
+		this.activations = new long[phases];
+		this.phaseServed = new long[phases];
+	}
+
+	public IntersectionSpec getSpec() {
+		return spec;
+	}
+
+	/**
+	 * @return the plan being measured
+	 */
+	public IntersectionSpec.PlanSpec getPlan() {
+		return plan;
+	}
+
+	public int streamCount() {
+		return queued.length;
+	}
+
+	public int phaseCount() {
+		return phaseMillis.length;
+	}
+
+	/**
+	 * Bring every figure up to a time, e.g. the end of a run.
+	 *
+	 * @param time
+	 *            simulated time in milliseconds, no earlier than the last
+	 *            change
+	 */
+	public void catchUp(long time) {
+		for (int s = 0; s < queued.length; s++) {
+			queueLength(s, time);
+			queueArea[s] += (long) queued[s] * (time - lastQueueChange[s]);
+			lastQueueChange[s] = time;
+		}
+		if (phase >= 0) {
+			phaseMillis[phase] += time - phaseStart;
+			phaseStart = time;
+		}
+		now = Math.max(now, time);
+	}
+
+	/**
+	 * @return milliseconds measured, from the start of the plan to the last
+	 *         catch up
+	 */
+	public long measuredMillis() {
+		return start == Long.MIN_VALUE ? 0 : now - start;
+	}
+
+	/**
+	 * @return how many vehicles have arrived on the stream
+	 */
+	public long arrivals(int stream) {
+		return arrivals[stream];
+	}
+
+	/**
+	 * @return the longest the stream's queue has been
+	 */
+	public int maxQueue(int stream) {
+		return maxQueue[stream];
+	}
+
+	/**
+	 * @return the stream's queue length averaged over time
+	 */
+	public double averageQueue(int stream) {
+		long measured = measuredMillis();
+		return measured == 0 ? 0 : (double) queueArea[stream] / measured;
+	}
+
+	/**
+	 * @return how many vehicles left the stream on each of its greens
+	 */
+	public Histogram servedPerGreen(int stream) {
+		return servedPerGreen[stream];
+	}
+
+	/**
+	 * @return how long, in milliseconds, vehicles on the stream waited
+	 */
+	public Histogram delay(int stream) {
+		return delay[stream];
+	}
+
+	/**
+	 * @return total time spent in the phase, in milliseconds
+	 */
+	public long phaseMillis(int phase) {
+		return phaseMillis[phase];
+	}
+
+	/**
+	 * @return how many times the phase started
+	 */
+	public long activations(int phase) {
+		return activations[phase];
+	}
+
+	/**
+	 * @return the fraction of the phase's green capacity that was used: the
+	 *         time its green streams spent moving vehicles, over its duration
+	 *         times its number of green streams. 0 for a phase with no green
+	 */
+	public double greenUtilisation(int phase) {
+		long capacity = phaseMillis[phase] * greenCount[phase];
+		return capacity == 0 ? 0 : Math.min(1.0, (double) phaseServed[phase] * headway / capacity);
+	}
+
+	@Override
+	public void phaseChanged(long time, int p) {
+		if (start == Long.MIN_VALUE) {
+			start = time;
+		}
+		// Charge departures so far to the phase that's ending
+		catchUp(time);
+		phase = p;
+		phaseStart = time;
+		activations[p]++;
+	}
+
+	@Override
+	public void streamChanged(long time, int stream, State state) {
+		super.streamChanged(time, stream, state);
+		boolean nowServing = state == State.GREEN || state == State.OFF;
+		if (serving[stream] && !nowServing) {
+			servedPerGreen[stream].record(servedThisGreen[stream]);
+			servedThisGreen[stream] = 0;
+		}
+		serving[stream] = nowServing;
+	}
+
+	@Override
+	protected void arrived(int stream, long time, int length) {
+		arrivals[stream]++;
+		queueArea[stream] += (long) queued[stream] * (time - lastQueueChange[stream]);
+		lastQueueChange[stream] = time;
+		queued[stream] = length;
+		if (length > maxQueue[stream]) {
+			maxQueue[stream] = length;
+		}
+	}
+
+	@Override
+	protected void departed(int stream, long arrived, long departed) {
+		queueArea[stream] += (long) queued[stream] * (departed - lastQueueChange[stream]);
+		lastQueueChange[stream] = departed;
+		queued[stream]--;
+		delay[stream].record(departed - arrived);
+		servedThisGreen[stream]++;
+		if (phase >= 0 && greenIn[phase][stream]) {
+			phaseServed[phase]++;
+		}
+	}
+
+	/**
+	 * Write the per stream figures as CSV, one row per stream. Delays are in
+	 * seconds.
+	 */
+	public void writeStreamCsv(Appendable out) throws IOException {
+		out.append("stream,arrivals,served,avg_queue,max_queue,served_per_green,avg_delay_s,p95_delay_s\n");
+		List<IntersectionSpec.StreamSpec> streams = spec.getStreams();
+		for (int s = 0; s < queued.length; s++) {
+			out.append(csv(streams.get(s).getName())).append(',');
+			out.append(String.valueOf(arrivals[s])).append(',');
+			out.append(String.valueOf(served(s))).append(',');
+			out.append(String.format(Locale.ROOT, "%.2f", averageQueue(s))).append(',');
+			out.append(String.valueOf(maxQueue[s])).append(',');
+			out.append(String.format(Locale.ROOT, "%.2f", servedPerGreen[s].mean())).append(',');
+			out.append(String.format(Locale.ROOT, "%.1f", delay[s].mean() / 1000)).append(',');
+			out.append(String.format(Locale.ROOT, "%.1f", delay[s].percentile(95) / 1000.0)).append('\n');
+		}
+	}
+
+	/**
+	 * Write the per phase figures as CSV, one row per phase.
+	 */
+	public void writePhaseCsv(Appendable out) throws IOException {
+		out.append("phase,activations,seconds,green_utilisation\n");
+		for (int p = 0; p < phaseMillis.length; p++) {
+			out.append(csv(plan.getPhases().get(p).getName())).append(',');
+			out.append(String.valueOf(activations[p])).append(',');
+			out.append(String.format(Locale.ROOT, "%.1f", phaseMillis[p] / 1000.0)).append(',');
+			out.append(String.format(Locale.ROOT, "%.3f", greenUtilisation(p))).append('\n');
+		}
+	}
+
+	private static String csv(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+			return field;
+		}
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,438 @@
+package traffic.diy;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import traffic.util.State;
+
+/**
+ * Runs the phase timers of many intersections on a small, fixed set of
+ * threads rather than a thread per junction. Each intersection is a
+ * {@link PhaseController}; they're spread across shards, and each shard's
+ * thread keeps its controllers in a priority queue ordered by when they next
+ * change, sleeping until the earliest is due.
+ *
+ * Scheduler time runs at real time multiplied by the time scale, so a scale
+ * above 1 runs faster than real time.
+ *
+ * A controller's changes are made under its shard's lock but published after
+ * it's released, in the order they were made, usually on the shard's thread.
+ * A slow listener still delays that thread, but no other thread waits on the
+ * lock for it, and a listener may start, stop or pause intersections itself.
+ * The controller's demand model is still told of changes at once.
+ *
+ * Only PhaseControllers run here. A live {@link traffic.core.Intersection}
+ * still runs its cycle on a thread of its own.
+ */
+public class IntersectionScheduler {
+
+	private enum RunState {
+		STOPPED, RUNNING, PAUSED
+	}
+
+	/**
+	 * Control of one intersection on the scheduler.
+	 */
+	public class Handle {
+		private final PhaseController controller;
+		private final Shard shard;
+		private RunState state = RunState.STOPPED;
+		/** Scheduler time at which the controller's clock reads 0. */
+		private long offset;
+		/** Scheduler time at which it was paused. */
+		private long pausedAt;
+		/** System.nanoTime() at which the next change is due. */
+		private long due;
+		private boolean queued;
+		/** Started with a delay that hasn't run out, so not yet in phase 0. */
+		private boolean starting;
+		/** Changes made under the lock and not yet published. */
+		private Changes held = new Changes();
+		/** Emptied changes, swapped with held to publish them. */
+		private Changes spare = new Changes();
+		/** Whether a thread is publishing this handle's changes. */
+		private boolean publishing;
+
+		Handle(PhaseController controller, Shard shard) {
+			this.controller = controller;
+			this.shard = shard;
+			controller.setOutput(new SignalListener() {
+
+				@Override
+				public void phaseChanged(long time, int phase) {
+					held.add(time, phase, null);
+				}
+
+				@Override
+				public void streamChanged(long time, int stream, State state) {
+					held.add(time, stream, state);
+				}
+			});
+		}
+
+		public PhaseController getController() {
+			return controller;
+		}
+
+		/**
+		 * Start the cycle from its first phase now.
+		 */
+		public void start() {
+			start(0);
+		}
+
+		/**
+		 * Start the cycle from its first phase after a delay. The first phase
+		 * is entered, and published, when the delay runs out.
+		 *
+		 * @param delay
+		 *            scheduler milliseconds to wait before the first phase
+		 */
+		public void start(long delay) {
+			shard.lock.lock();
+			try {
+				shard.unschedule(this);
+				offset = now() + delay;
+				starting = delay > 0;
+				if (!starting) {
+					controller.start(0);
+				}
+				state = RunState.RUNNING;
+				shard.schedule(this);
+			} finally {
+				shard.lock.unlock();
+			}
+			publish();
+		}
+
+		/**
+		 * Stop the cycle. It can be started again from its first phase.
+		 */
+		public void stop() {
+			shard.lock.lock();
+			try {
+				shard.unschedule(this);
+				state = RunState.STOPPED;
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+
+		/**
+		 * Freeze the cycle where it is.
+		 */
+		public void pause() {
+			shard.lock.lock();
+			try {
+				if (state == RunState.RUNNING) {
+					shard.unschedule(this);
+					pausedAt = now();
+					state = RunState.PAUSED;
+				}
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+
+		/**
+		 * Carry on a paused cycle, with the time it spent paused added to the
+		 * current phase.
+		 */
+		public void resume() {
+			shard.lock.lock();
+			try {
+				if (state == RunState.PAUSED) {
+					offset += now() - pausedAt;
+					state = RunState.RUNNING;
+					shard.schedule(this);
+				}
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+
+		public boolean isRunning() {
+			return state == RunState.RUNNING;
+		}
+
+		public boolean isPaused() {
+			return state == RunState.PAUSED;
+		}
+
+		/**
+		 * @return the controller's own clock, in milliseconds
+		 */
+		public long controllerTime() {
+			return (state == RunState.PAUSED ? pausedAt : now()) - offset;
+		}
+
+		/**
+		 * Publish the changes held so far. Called without the lock. If another
+		 * thread is already publishing them, such as a listener restarting
+		 * its own intersection, that thread publishes these too.
+		 */
+		private void publish() {
+			shard.lock.lock();
+			try {
+				if (publishing || held.size == 0) {
+					return;
+				}
+				publishing = true;
+			} finally {
+				shard.lock.unlock();
+			}
+			boolean done = false;
+			try {
+				while (!done) {
+					Changes batch = null;
+					shard.lock.lock();
+					try {
+						if (held.size == 0) {
+							publishing = false;
+							done = true;
+						} else {
+							batch = held;
+							held = spare;
+							spare = batch;
+						}
+					} finally {
+						shard.lock.unlock();
+					}
+					if (batch != null) {
+						batch.publishTo(controller.getBus());
+					}
+				}
+			} finally {
+				if (!done) {
+					// A listener threw; let the next change try again
+					shard.lock.lock();
+					publishing = false;
+					shard.lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Phase and stream changes kept to publish later. A null state marks a
+	 * phase change.
+	 */
+	private static class Changes {
+		long[] times = new long[16];
+		int[] indexes = new int[16];
+		State[] states = new State[16];
+		int size;
+
+		void add(long time, int index, State state) {
+			if (size == times.length) {
+				times = Arrays.copyOf(times, 2 * size);
+				indexes = Arrays.copyOf(indexes, 2 * size);
+				states = Arrays.copyOf(states, 2 * size);
+			}
+			times[size] = time;
+			indexes[size] = index;
+			states[size] = state;
+			size++;
+		}
+
+		/**
+		 * Publish the changes and empty this, even if a listener throws.
+		 */
+		void publishTo(SignalListener l) {
+			try {
+				for (int n = 0; n < size; n++) {
+					if (states[n] == null) {
+						l.phaseChanged(times[n], indexes[n]);
+					} else {
+						l.streamChanged(times[n], indexes[n], states[n]);
+					}
+				}
+			} finally {
+				Arrays.fill(states, 0, size, null);
+				size = 0;
+			}
+		}
+	}
+
+	/**
+	 * One thread and the controllers it runs.
+	 */
+	private class Shard implements Runnable {
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition wake = lock.newCondition();
+		final PriorityQueue<Handle> queue = new PriorityQueue<Handle>(64, new Comparator<Handle>() {
+
+			@Override
+			public int compare(Handle a, Handle b) {
+				return Long.compare(a.due, b.due);
+			}
+		});
+		final Histogram lateness = new Histogram();
+		long fired;
+
+		/**
+		 * Queue a running handle for its next change. Caller holds the lock.
+		 */
+		void schedule(Handle h) {
+			long at = (h.starting ? 0 : h.controller.nextChange()) + h.offset;
+			h.due = epoch + (long) (at * 1e6 / timeScale);
+			h.queued = true;
+			queue.add(h);
+			if (queue.peek() == h) {
+				wake.signal();
+			}
+		}
+
+		/**
+		 * Take a handle out of the queue. Caller holds the lock.
+		 */
+		void unschedule(Handle h) {
+			if (h.queued) {
+				queue.remove(h);
+				h.queued = false;
+			}
+		}
+
+		@Override
+		public void run() {
+			lock.lock();
+			try {
+				while (running) {
+					Handle h = queue.peek();
+					if (h == null) {
+						wake.await();
+						continue;
+					}
+					long late = System.nanoTime() - h.due;
+					if (late < 0) {
+						wake.awaitNanos(-late);
+						continue;
+					}
+					queue.poll();
+					h.queued = false;
+					lateness.record(late / 1000);
+					fired++;
+					if (h.starting) {
+						h.starting = false;
+						h.controller.start(0);
+					} else {
+						h.controller.advance();
+					}
+					if (h.state == RunState.RUNNING && !h.queued) {
+						schedule(h);
+					}
+					lock.unlock();
+					try {
+						h.publish();
+					} finally {
+						lock.lock();
+					}
+				}
+			} catch (InterruptedException e) {
+				// shutting down
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private final Shard[] shards;
+	private final Thread[] threads;
+	private final double timeScale;
+	private final long epoch = System.nanoTime();
+	private final AtomicInteger nextShard = new AtomicInteger();
+	private volatile boolean running = true;
+
+	/**
+	 * A real time scheduler with one thread per available processor.
+	 */
+	public IntersectionScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), 1.0);
+	}
+
+	/**
+	 * @param threadCount
+	 *            how many threads to share the intersections between
+	 * @param timeScale
+	 *            how many times faster than real time to run
+	 */
+	public IntersectionScheduler(int threadCount, double timeScale) {
+		if (threadCount < 1 || timeScale <= 0) {
+			throw new IllegalArgumentException("Need at least one thread and a positive time scale");
+		}
+		this.timeScale = timeScale;
+		this.shards = new Shard[threadCount];
+		this.threads = new Thread[threadCount];
+		for (int n = 0; n < threadCount; n++) {
+			shards[n] = new Shard();
+			threads[n] = new Thread(shards[n], "IntersectionScheduler-" + n);
+			threads[n].setDaemon(true);
+			threads[n].start();
+		}
+	}
+
+	/**
+	 * Take on an intersection. It doesn't run until its handle is started.
+	 *
+	 * @param controller
+	 *            the intersection's controller, not yet started
+	 * @return the handle to control it with
+	 */
+	public Handle add(PhaseController controller) {
+		Shard shard = shards[(nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+		return new Handle(controller, shard);
+	}
+
+	/**
+	 * @return scheduler time in milliseconds since it was created
+	 */
+	public long now() {
+		return (long) ((System.nanoTime() - epoch) / 1e6 * timeScale);
+	}
+
+	/**
+	 * @return how many phase changes and extensions have been handled
+	 */
+	public long eventsFired() {
+		long total = 0;
+		for (Shard s : shards) {
+			s.lock.lock();
+			try {
+				total += s.fired;
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return how late, in real microseconds, changes have been handled
+	 */
+	public Histogram lateness() {
+		Histogram all = new Histogram();
+		for (Shard s : shards) {
+			s.lock.lock();
+			try {
+				all.add(s.lateness);
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Stop every thread. Intersections stay where they are.
+	 */
+	public void shutdown() {
+		running = false;
+		for (Thread t : threads) {
+			t.interrupt();
+		}
+	}
+}
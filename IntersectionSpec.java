@@ -0,0 +1,477 @@
+package traffic.diy;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Observer;
+
+import traffic.core.Intersection;
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.load.TrafficException;
+import traffic.misc.Detector;
+import traffic.misc.RandomDetector;
+import traffic.phaseplan.FullyActuatedPhasePlan;
+import traffic.phaseplan.PhasePlan;
+import traffic.phaseplan.PretimedPhasePlan;
+import traffic.signal.SignalFace;
+import traffic.util.State;
+import traffic.util.TrafficDirection;
+
+/**
+ * A plain description of an intersection: its traffic streams, phase plans and
+ * signal faces, with phases and faces referring to streams by index. A built
+ * {@link Intersection} doesn't expose which streams each face observes, so
+ * anything that needs to store, compare or analyse an intersection works from
+ * one of these instead. {@link #build()} turns it into a live Intersection.
+ */
+public class IntersectionSpec {
+
+	/**
+	 * Value of a phase's min green interval when the description doesn't set
+	 * one.
+	 */
+	public static final int NO_MIN_GREEN = -1;
+
+	/**
+	 * The kinds of PhasePlan a description can ask for. Binary files store the
+	 * ordinal, so new kinds go on the end.
+	 */
+	public enum PlanType {
+		PRETIMED, ACTUATED, ADAPTIVE
+	}
+
+	/**
+	 * One traffic stream.
+	 */
+	public static class StreamSpec {
+		private final String name;
+		private final String description;
+
+		StreamSpec(String name, String description) {
+			this.name = name;
+			this.description = description;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	/**
+	 * One phase: a state for every stream, in stream order.
+	 */
+	public static class PhaseSpec {
+		private final String name;
+		private final String description;
+		private final State[] states;
+		private int minGreen;
+
+		PhaseSpec(String name, String description, State[] states, int minGreen) {
+			this.name = name;
+			this.description = description;
+			this.states = states;
+			this.minGreen = minGreen;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * @param stream
+		 *            index of the stream
+		 * @return the state of that stream during this phase
+		 */
+		public State getState(int stream) {
+			return states[stream];
+		}
+
+		/**
+		 * @param state
+		 *            a state
+		 * @return how many streams are in that state during this phase
+		 */
+		public int countOf(State state) {
+			int count = 0;
+			for (State s : states) {
+				if (s == state) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * @return the min green interval, or {@link IntersectionSpec#NO_MIN_GREEN}
+		 */
+		public int getMinGreen() {
+			return minGreen;
+		}
+
+		public void setMinGreen(int minGreen) {
+			this.minGreen = minGreen;
+		}
+	}
+
+	/**
+	 * One phase plan: its type and phases in cycle order.
+	 */
+	public static class PlanSpec {
+		private final PlanType type;
+		private final List<PhaseSpec> phases = new ArrayList<PhaseSpec>();
+
+		PlanSpec(PlanType type) {
+			this.type = type;
+		}
+
+		public PlanType getType() {
+			return type;
+		}
+
+		public List<PhaseSpec> getPhases() {
+			return Collections.unmodifiableList(phases);
+		}
+
+		/**
+		 * Whether a phase is a green interval, whose length can be changed
+		 * without cutting a yellow or a clearance short: it shows something
+		 * GREEN, nothing YELLOW, and doesn't follow a phase that showed
+		 * YELLOW, so it isn't the clearance after one.
+		 *
+		 * @param phase
+		 *            index of the phase
+		 * @return true if it's a green interval
+		 */
+		public boolean isGreenInterval(int phase) {
+			PhaseSpec p = phases.get(phase);
+			PhaseSpec previous = phases.get((phase + phases.size() - 1) % phases.size());
+			return p.countOf(State.GREEN) > 0 && p.countOf(State.YELLOW) == 0 && previous.countOf(State.YELLOW) == 0;
+		}
+	}
+
+	/**
+	 * One signal face and the streams it shows.
+	 */
+	public static class FaceSpec {
+		private final TrafficDirection location;
+		private final TrafficDirection orientation;
+		private final int kind;
+		private final int[] streams;
+
+		FaceSpec(TrafficDirection location, TrafficDirection orientation, int kind, int[] streams) {
+			this.location = location;
+			this.orientation = orientation;
+			this.kind = kind;
+			this.streams = streams;
+		}
+
+		public TrafficDirection getLocation() {
+			return location;
+		}
+
+		public TrafficDirection getOrientation() {
+			return orientation;
+		}
+
+		/**
+		 * @return the SignalFace kind, e.g. {@link SignalFace#STANDARD}
+		 */
+		public int getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return how many streams this face observes
+		 */
+		public int streamCount() {
+			return streams.length;
+		}
+
+		/**
+		 * @param n
+		 *            which of this face's streams
+		 * @return the stream's index in the intersection
+		 */
+		public int getStream(int n) {
+			return streams[n];
+		}
+	}
+
+	private final String name;
+	private final String description;
+	private final List<StreamSpec> streams = new ArrayList<StreamSpec>();
+	private final Map<String, Integer> streamIndex = new HashMap<String, Integer>();
+	/** For each stream, the streams that must never be GREEN with it. */
+	private final List<BitSet> conflicts = new ArrayList<BitSet>();
+	private final List<PlanSpec> plans = new ArrayList<PlanSpec>();
+	private final List<FaceSpec> faces = new ArrayList<FaceSpec>();
+
+	public IntersectionSpec(String name, String description) {
+		this.name = name;
+		this.description = description;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public List<StreamSpec> getStreams() {
+		return Collections.unmodifiableList(streams);
+	}
+
+	public List<PlanSpec> getPlans() {
+		return Collections.unmodifiableList(plans);
+	}
+
+	public List<FaceSpec> getFaces() {
+		return Collections.unmodifiableList(faces);
+	}
+
+	/**
+	 * Add a stream.
+	 *
+	 * @param name
+	 *            the stream name, unique without regard to case
+	 * @param description
+	 *            what the stream is
+	 * @return the index of the new stream, or -1 if the name is already used
+	 */
+	public int addStream(String name, String description) {
+		String key = name.toLowerCase(Locale.ROOT);
+		if (streamIndex.containsKey(key)) {
+			return -1;
+		}
+		streamIndex.put(key, streams.size());
+		streams.add(new StreamSpec(name, description));
+		conflicts.add(new BitSet());
+		return streams.size() - 1;
+	}
+
+	/**
+	 * Declare that two streams cross, so must never both be GREEN.
+	 *
+	 * @param a
+	 *            index of one stream
+	 * @param b
+	 *            index of the other
+	 */
+	public void addConflict(int a, int b) {
+		if (a == b || a < 0 || b < 0 || a >= streams.size() || b >= streams.size()) {
+			throw new IllegalArgumentException("No conflict between streams " + a + " and " + b);
+		}
+		conflicts.get(a).set(b);
+		conflicts.get(b).set(a);
+	}
+
+	/**
+	 * @param stream
+	 *            index of a stream
+	 * @return the streams declared to conflict with it; a copy
+	 */
+	public BitSet getConflicts(int stream) {
+		return (BitSet) conflicts.get(stream).clone();
+	}
+
+	/**
+	 * @return true if any conflicts have been declared
+	 */
+	public boolean hasConflicts() {
+		for (BitSet c : conflicts) {
+			if (!c.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Look up a stream by name, without regard to case.
+	 *
+	 * @param name
+	 *            the stream name
+	 * @return the stream's index, or -1 if there's no such stream
+	 */
+	public int streamIndex(String name) {
+		Integer n = streamIndex.get(name.toLowerCase(Locale.ROOT));
+		return n == null ? -1 : n;
+	}
+
+	/**
+	 * Start a new phase plan. Phases are added to the most recent plan.
+	 *
+	 * @param type
+	 *            what kind of plan
+	 * @return the new plan
+	 */
+	public PlanSpec addPlan(PlanType type) {
+		PlanSpec plan = new PlanSpec(type);
+		plans.add(plan);
+		return plan;
+	}
+
+	/**
+	 * Add a phase to a plan.
+	 *
+	 * @param plan
+	 *            the plan, from {@link #addPlan(PlanType)}
+	 * @param name
+	 *            the phase name
+	 * @param description
+	 *            what the phase does
+	 * @param states
+	 *            one state per stream, in stream order
+	 * @param minGreen
+	 *            the min green interval, or {@link #NO_MIN_GREEN}
+	 * @return the new phase
+	 */
+	public PhaseSpec addPhase(PlanSpec plan, String name, String description, State[] states, int minGreen) {
+		if (states.length != streams.size()) {
+			throw new IllegalArgumentException(
+					"Phase " + name + " has " + states.length + " states for " + streams.size() + " streams");
+		}
+		PhaseSpec phase = new PhaseSpec(name, description, states.clone(), minGreen);
+		plan.phases.add(phase);
+		return phase;
+	}
+
+	/**
+	 * Add a signal face.
+	 *
+	 * @param location
+	 *            where the face is
+	 * @param orientation
+	 *            which way it faces
+	 * @param kind
+	 *            the SignalFace kind
+	 * @param observed
+	 *            indexes of the streams it shows
+	 * @return the new face
+	 */
+	public FaceSpec addFace(TrafficDirection location, TrafficDirection orientation, int kind, int[] observed) {
+		for (int s : observed) {
+			if (s < 0 || s >= streams.size()) {
+				throw new IllegalArgumentException("No stream " + s);
+			}
+		}
+		FaceSpec face = new FaceSpec(location, orientation, kind, observed.clone());
+		faces.add(face);
+		return face;
+	}
+
+	/**
+	 * @return a copy of this description that can be changed independently
+	 */
+	public IntersectionSpec copy() {
+		IntersectionSpec out = new IntersectionSpec(name, description);
+		// Streams, faces and phase states never change once added, so they're
+		// shared; only conflicts and phases, whose min greens can change, are
+		// copied
+		out.streams.addAll(streams);
+		out.streamIndex.putAll(streamIndex);
+		for (BitSet c : conflicts) {
+			out.conflicts.add((BitSet) c.clone());
+		}
+		for (PlanSpec plan : plans) {
+			PlanSpec copied = out.addPlan(plan.type);
+			for (PhaseSpec ps : plan.phases) {
+				copied.phases.add(new PhaseSpec(ps.name, ps.description, ps.states, ps.minGreen));
+			}
+		}
+		out.faces.addAll(faces);
+		return out;
+	}
+
+	/**
+	 * Build a live intersection from this description. Every call builds a new
+	 * one, so the result can be started independently of any other. Its plans
+	 * aren't checked; see {@link PlanValidator}.
+	 *
+	 * @return the intersection
+	 * @throws TrafficException
+	 *             if the traffic classes reject part of it
+	 */
+	public Intersection build() throws TrafficException {
+		return build(null);
+	}
+
+	/**
+	 * Build a live intersection, noting which Phase was built for each phase
+	 * of the description so it can be adjusted later.
+	 *
+	 * @param builtPhases
+	 *            filled in with the Phase built for each PhaseSpec, or null
+	 * @return the intersection
+	 * @throws TrafficException
+	 *             if the traffic classes reject part of it
+	 */
+	public Intersection build(Map<PhaseSpec, Phase> builtPhases) throws TrafficException {
+		Intersection intersect = new Intersection(name, description);
+
+		TrafficStream[] built = new TrafficStream[streams.size()];
+		for (int s = 0; s < built.length; s++) {
+			built[s] = new TrafficStream(streams.get(s).name, streams.get(s).description);
+		}
+
+		// One detector per stream, shared by every actuated or adaptive plan.
+		// Random, as in the library; queued arrivals only drive PhaseController
+		for (PlanSpec ps : plans) {
+			if (ps.type != PlanType.PRETIMED) {
+				for (TrafficStream ts : built) {
+					ts.addDetector((Detector) new RandomDetector());
+				}
+				break;
+			}
+		}
+
+		for (PlanSpec ps : plans) {
+			PhasePlan plan;
+			if (ps.type == PlanType.ACTUATED) {
+				plan = new FullyActuatedPhasePlan();
+			} else if (ps.type == PlanType.ADAPTIVE) {
+				plan = new AdaptivePhasePlan(SplitAdapter.forPlan(ps, built.length, new SimulationTiming()));
+			} else {
+				plan = new PretimedPhasePlan();
+			}
+			for (PhaseSpec p : ps.phases) {
+				Phase currPhase = new Phase(p.name, p.description);
+				for (int s = 0; s < built.length; s++) {
+					currPhase.addStream(built[s], p.states[s]);
+				}
+				if (p.minGreen != NO_MIN_GREEN) {
+					currPhase.setMinGreenInterval(p.minGreen);
+				}
+				plan.add(currPhase);
+				if (builtPhases != null) {
+					builtPhases.put(p, currPhase);
+				}
+			}
+			intersect.addPlan(plan);
+		}
+
+		for (FaceSpec f : faces) {
+			SignalFace currFace = new SignalFace(f.location, f.orientation, f.kind);
+			for (int s : f.streams) {
+				built[s].addObserver((Observer) currFace);
+			}
+			intersect.addSignalFace(currFace);
+		}
+		return intersect;
+	}
+}
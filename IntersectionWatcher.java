@@ -0,0 +1,157 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches an intersection description file and reloads it whenever it's
+ * saved. Editors often write a file in several steps, so a reload waits until
+ * the file has been quiet for a moment. Listeners are called on the watcher's
+ * own thread.
+ */
+public class IntersectionWatcher {
+
+	/**
+	 * Told about each reload.
+	 */
+	public interface Listener {
+
+		/**
+		 * The file has changed and loaded cleanly.
+		 *
+		 * @param spec
+		 *            the new description
+		 */
+		void reloaded(IntersectionSpec spec);
+
+		/**
+		 * The file has changed but no longer loads.
+		 *
+		 * @param error
+		 *            why not
+		 */
+		void reloadFailed(Exception error);
+	}
+
+	/** How long the file must be left alone before it's reloaded. */
+	private static final long QUIET_MILLIS = 250;
+
+	private final File file;
+	private final Listener listener;
+	private final WatchService watcher;
+	private final Thread thread;
+
+	/**
+	 * Start watching a file.
+	 *
+	 * @param file
+	 *            the description file
+	 * @param listener
+	 *            told about each reload
+	 * @throws IOException
+	 *             if the file's directory can't be watched
+	 */
+	public IntersectionWatcher(File file, Listener listener) throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.listener = listener;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.file.getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "IntersectionWatcher-" + file.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Stop watching.
+	 */
+	public void close() {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void watch() {
+		Path name = file.toPath().getFileName();
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = touches(key, name);
+				// Wait for the writes to settle, taking in any that follow
+				while (true) {
+					key.reset();
+					key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+					if (key == null) {
+						break;
+					}
+					changed |= touches(key, name);
+				}
+				if (changed) {
+					reload();
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	private static boolean touches(WatchKey key, Path name) {
+		boolean found = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (name.equals(event.context())) {
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	private void reload() {
+		MyIntersectionLoader loader;
+		IntersectionSpec spec;
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(file));
+			try {
+				loader = new MyIntersectionLoader(br);
+				spec = loader.buildSpec();
+			} finally {
+				br.close();
+			}
+		} catch (IOException e) {
+			listener.reloadFailed(e);
+			return;
+		} catch (RuntimeException e) {
+			// e.g. caught part way through being written
+			listener.reloadFailed(e);
+			return;
+		}
+		if (spec == null) {
+			listener.reloadFailed(loader.getError());
+		} else {
+			listener.reloaded(spec);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package traffic.diy;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import traffic.load.Tag;
+import traffic.load.TrafficException;
+import traffic.signal.SignalFace;
+import traffic.util.State;
+import traffic.util.TrafficDirection;
+
+/**
+ * Writes an intersection description back out in the text format read by
+ * {@link MyIntersectionLoader}, so a description changed in memory (e.g. by
+ * {@link TimingOptimiser}) can be saved and loaded again.
+ *
+ * Plans with many states can be written as a packed
+ * {@link MyIntersectionLoader#PHASE_MATRIX} section instead of a state string
+ * per phase; see {@link #setPackThreshold(int)}.
+ */
+public class IntersectionWriter {
+
+	/** Characters to try when working out how each State is written. */
+	private static final String STATE_CHARS = "RYGOrygoXxAaFf-.";
+
+	private static final Map<State, Character> stateChars = new EnumMap<State, Character>(State.class);
+
+	static {
+		// The loader goes through State.stateFor, so ask it rather than guess
+		for (int i = 0; i < STATE_CHARS.length(); i++) {
+			char c = STATE_CHARS.charAt(i);
+			try {
+				State s = State.stateFor(c);
+				if (!stateChars.containsKey(s)) {
+					stateChars.put(s, c);
+				}
+			} catch (TrafficException e) {
+				// not a state character
+			}
+		}
+	}
+
+	/** Characters of base64 per line of a packed phase matrix. */
+	private static final int PACKED_LINE = 76;
+
+	private final Writer out;
+	private int packThreshold = Integer.MAX_VALUE;
+	private boolean compress;
+
+	public IntersectionWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write plans with at least this many states (phases times streams) as a
+	 * packed phase matrix. By default none are.
+	 *
+	 * @param states
+	 *            the threshold; 0 packs every plan
+	 * @return this
+	 */
+	public IntersectionWriter setPackThreshold(int states) {
+		this.packThreshold = states;
+		return this;
+	}
+
+	/**
+	 * @param compress
+	 *            whether packed phase matrices are gzipped before base64
+	 * @return this
+	 */
+	public IntersectionWriter setCompress(boolean compress) {
+		this.compress = compress;
+		return this;
+	}
+
+	/**
+	 * Write a description to a file.
+	 */
+	public static void write(IntersectionSpec spec, String fileName) throws IOException {
+		Writer w = new BufferedWriter(new FileWriter(fileName));
+		try {
+			new IntersectionWriter(w).write(spec);
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Write a description. The writer isn't closed.
+	 *
+	 * @param spec
+	 *            the description
+	 * @throws IOException
+	 *             if writing fails, or a state can't be written in a form the
+	 *             loader reads
+	 */
+	public void write(IntersectionSpec spec) throws IOException {
+		line(Tag.INTERSECTION);
+		line(spec.getName() + "\t" + spec.getDescription());
+		line(Tag.END_INTERSECTION);
+
+		line(Tag.TRAFFIC_STREAMS);
+		for (IntersectionSpec.StreamSpec s : spec.getStreams()) {
+			line(s.getName() + "\t" + s.getDescription());
+		}
+		line(Tag.END_TRAFFIC_STREAMS);
+
+		if (spec.hasConflicts()) {
+			line(MyIntersectionLoader.CONFLICTS);
+			for (int s = 0; s < spec.getStreams().size(); s++) {
+				// Each pair once, from its lower stream
+				BitSet others = spec.getConflicts(s);
+				others.clear(0, s + 1);
+				if (others.isEmpty()) {
+					continue;
+				}
+				StringBuilder conflict = new StringBuilder(spec.getStreams().get(s).getName());
+				for (int o = others.nextSetBit(0); o >= 0; o = others.nextSetBit(o + 1)) {
+					conflict.append('\t').append(spec.getStreams().get(o).getName());
+				}
+				line(conflict.toString());
+			}
+			line(MyIntersectionLoader.END_CONFLICTS);
+		}
+
+		int streamCount = spec.getStreams().size();
+		StringBuilder states = new StringBuilder(streamCount);
+		line(Tag.PHASEPLAN);
+		for (IntersectionSpec.PlanSpec plan : spec.getPlans()) {
+			line(Tag.PHASES);
+			line(planTag(plan.getType()));
+			if ((long) plan.getPhases().size() * streamCount >= packThreshold) {
+				packed(plan.getPhases(), streamCount);
+				line(Tag.END_PHASES);
+				continue;
+			}
+			for (IntersectionSpec.PhaseSpec p : plan.getPhases()) {
+				states.setLength(0);
+				for (int s = 0; s < streamCount; s++) {
+					states.append(stateChar(p.getState(s)));
+				}
+				String phase = p.getName() + "\t" + p.getDescription() + "\t" + states;
+				if (p.getMinGreen() != IntersectionSpec.NO_MIN_GREEN) {
+					phase += "\t" + p.getMinGreen();
+				}
+				line(phase);
+			}
+			line(Tag.END_PHASES);
+		}
+		line(Tag.END_PHASEPLAN);
+
+		line(Tag.SIGNAL_FACES);
+		for (IntersectionSpec.FaceSpec f : spec.getFaces()) {
+			StringBuilder face = new StringBuilder();
+			face.append(direction(f.getLocation())).append('\t').append(direction(f.getOrientation())).append('\t')
+					.append(kindName(f.getKind()));
+			for (int n = 0; n < f.streamCount(); n++) {
+				face.append('\t').append(spec.getStreams().get(f.getStream(n)).getName());
+			}
+			line(face.toString());
+		}
+		line(Tag.END_SIGNAL_FACES);
+		out.flush();
+	}
+
+	private void line(String text) throws IOException {
+		out.write(text);
+		out.write('\n');
+	}
+
+	/**
+	 * Write phases as a packed phase matrix: a line per phase without its
+	 * states, then the states of every phase as base64.
+	 */
+	private void packed(List<IntersectionSpec.PhaseSpec> phases, int streamCount) throws IOException {
+		// The states used, in the order the packed nibbles refer to them
+		StringBuilder alphabet = new StringBuilder();
+		byte[] index = new byte[State.values().length];
+		for (IntersectionSpec.PhaseSpec p : phases) {
+			for (int s = 0; s < streamCount; s++) {
+				State state = p.getState(s);
+				if (index[state.ordinal()] == 0) {
+					alphabet.append(stateChar(state));
+					index[state.ordinal()] = (byte) alphabet.length();
+				}
+			}
+		}
+		if (alphabet.length() > 16) {
+			throw new IOException("Too many states to pack: " + alphabet.length());
+		}
+
+		line(MyIntersectionLoader.PHASE_MATRIX + "\t" + alphabet
+				+ (compress ? "\t" + MyIntersectionLoader.GZIP : ""));
+		for (IntersectionSpec.PhaseSpec p : phases) {
+			String phase = p.getName() + "\t" + p.getDescription();
+			if (p.getMinGreen() != IntersectionSpec.NO_MIN_GREEN) {
+				phase += "\t" + p.getMinGreen();
+			}
+			line(phase);
+		}
+		line(MyIntersectionLoader.PACKED);
+
+		// Two states a byte, low nibble first, each phase starting a byte
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream data = compress ? new GZIPOutputStream(bytes) : bytes;
+		byte[] row = new byte[(streamCount + 1) / 2];
+		for (IntersectionSpec.PhaseSpec p : phases) {
+			for (int s = 0; s < streamCount; s += 2) {
+				int packed = index[p.getState(s).ordinal()] - 1;
+				if (s + 1 < streamCount) {
+					packed |= (index[p.getState(s + 1).ordinal()] - 1) << 4;
+				}
+				row[s / 2] = (byte) packed;
+			}
+			data.write(row);
+		}
+		data.close();
+
+		String text = Base64.getUrlEncoder().encodeToString(bytes.toByteArray());
+		for (int n = 0; n < text.length(); n += PACKED_LINE) {
+			out.write(text, n, Math.min(PACKED_LINE, text.length() - n));
+			out.write('\n');
+		}
+		line(MyIntersectionLoader.END_PHASE_MATRIX);
+	}
+
+	private static char stateChar(State state) throws IOException {
+		Character c = stateChars.get(state);
+		if (c == null) {
+			throw new IOException("No character for State " + state);
+		}
+		return c;
+	}
+
+	private static String planTag(IntersectionSpec.PlanType type) {
+		switch (type) {
+		case ACTUATED:
+			return MyIntersectionLoader.ACTUATED;
+		case ADAPTIVE:
+			return MyIntersectionLoader.ADAPTIVE;
+		default:
+			return MyIntersectionLoader.PRETIMED;
+		}
+	}
+
+	/**
+	 * The direction's label if the loader reads that back, otherwise its name.
+	 */
+	private static String direction(TrafficDirection dir) {
+		try {
+			if (TrafficDirection.directionFor(dir.label()) == dir) {
+				return dir.label();
+			}
+		} catch (TrafficException e) {
+			// fall back to the name
+		} catch (IllegalArgumentException e) {
+			// fall back to the name
+		}
+		return dir.toString();
+	}
+
+	private static String kindName(int kind) throws IOException {
+		if (kind == SignalFace.STANDARD) {
+			return "STANDARD";
+		} else if (kind == SignalFace.LEFT_ARROW) {
+			return "LEFT_ARROW";
+		} else if (kind == SignalFace.RIGHT_ARROW) {
+			return "RIGHT_ARROW";
+		}
+		throw new IOException("Unknown SignalFace kind " + kind);
+	}
+}
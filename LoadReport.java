@@ -0,0 +1,150 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything {@link MyIntersectionLoader#diagnose()} found wrong with a
+ * description file, with as much of the description as could be read around
+ * the problems.
+ *
+ * Run from the command line it checks each file named and prints every
+ * problem as file:line:column: message, exiting with status 1 if there were
+ * any. {@link PlanValidator} findings are printed as warnings, or counted as
+ * problems with -strict.
+ */
+public class LoadReport {
+
+	/**
+	 * One problem, and where it is.
+	 */
+	public static class Problem {
+		private final int line;
+		private final int column;
+		private final String message;
+
+		public Problem(int line, int column, String message) {
+			this.line = line;
+			this.column = column;
+			this.message = message;
+		}
+
+		/**
+		 * @return the 1-based line, or 0 if it's about the whole description
+		 */
+		public int getLine() {
+			return line;
+		}
+
+		/**
+		 * @return the 1-based column, or 0 if it's about the whole description
+		 */
+		public int getColumn() {
+			return column;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return line == 0 ? message : "Line " + line + ", column " + column + ": " + message;
+		}
+	}
+
+	private final IntersectionSpec spec;
+	private final List<Problem> problems;
+	private final List<String> warnings;
+
+	LoadReport(IntersectionSpec spec, List<Problem> problems, List<String> warnings) {
+		this.spec = spec;
+		this.problems = Collections.unmodifiableList(problems);
+		this.warnings = Collections.unmodifiableList(warnings);
+	}
+
+	/**
+	 * @return what could be read; complete only if {@link #isClean()}
+	 */
+	public IntersectionSpec getSpec() {
+		return spec;
+	}
+
+	/**
+	 * @return the problems, in the order they were found
+	 */
+	public List<Problem> getProblems() {
+		return problems;
+	}
+
+	/**
+	 * @return what {@link PlanValidator} found unsafe in a description that
+	 *         otherwise read cleanly, unless the loader was strict
+	 */
+	public List<String> getWarnings() {
+		return warnings;
+	}
+
+	/**
+	 * @return true if there were no problems; there may still be warnings
+	 */
+	public boolean isClean() {
+		return problems.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		if (problems.isEmpty() && warnings.isEmpty()) {
+			return "No problems";
+		}
+		StringBuilder text = new StringBuilder();
+		for (Problem p : problems) {
+			text.append(p).append('\n');
+		}
+		for (String w : warnings) {
+			text.append("Warning: ").append(w).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Check description files.
+	 *
+	 * Usage: LoadReport [-strict] file...
+	 */
+	public static void main(String[] args) {
+		boolean strict = args.length > 0 && args[0].equals("-strict");
+		int first = strict ? 1 : 0;
+		int failed = 0;
+		for (int n = first; n < args.length; n++) {
+			String file = args[n];
+			LoadReport report;
+			try {
+				BufferedReader br = new BufferedReader(new FileReader(file));
+				try {
+					report = new MyIntersectionLoader(br).setStrict(strict).diagnose();
+				} finally {
+					br.close();
+				}
+			} catch (IOException e) {
+				System.out.println(file + ": " + e.getMessage());
+				failed++;
+				continue;
+			}
+			for (Problem p : report.getProblems()) {
+				System.out.println(file + ":" + p.getLine() + ":" + p.getColumn() + ": " + p.getMessage());
+			}
+			for (String w : report.getWarnings()) {
+				System.out.println(file + ": warning: " + w);
+			}
+			if (!report.isClean()) {
+				failed++;
+			}
+		}
+		System.err.println(failed + " of " + (args.length - first) + " files with problems");
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}
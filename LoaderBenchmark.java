@@ -0,0 +1,205 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Scanner;
+
+import traffic.core.Intersection;
+import traffic.load.TrafficSyntaxException;
+import traffic.util.TrafficDirection;
+
+/**
+ * Times loading of large generated intersection description files, comparing
+ * the old Scanner-per-line tokenising with {@link TabTokenizer}, then timing
+ * a full build through {@link MyIntersectionLoader}, then reading the same
+ * description with its phases as a text line each, as a packed
+ * {@link MyIntersectionLoader#PHASE_MATRIX} and as a gzipped one.
+ *
+ * Usage: LoaderBenchmark [streams] [phases] [faces] [iterations]
+ */
+public class LoaderBenchmark {
+
+	/** Each stream steps GREEN, YELLOW, RED from one phase to the next. */
+	private static final char[] STATES = { 'G', 'Y', 'R' };
+
+	public static void main(String[] args) throws IOException, TrafficSyntaxException {
+		int streams = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int phases = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int faces = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+		File f = File.createTempFile("intersection", ".txt");
+		f.deleteOnExit();
+		generate(f, streams, phases, faces);
+		System.out.println("Generated " + f + " (" + f.length() / 1024 + " KiB)");
+
+		// Warm up both paths before timing anything
+		for (int i = 0; i < iterations; i++) {
+			scannerFields(f);
+			tokenizerFields(f);
+		}
+
+		long fields = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			fields += scannerFields(f);
+		}
+		report("Scanner per line", System.nanoTime() - start, iterations, fields);
+
+		fields = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			fields += tokenizerFields(f);
+		}
+		report("TabTokenizer", System.nanoTime() - start, iterations, fields);
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			BufferedReader br = new BufferedReader(new FileReader(f));
+			Intersection built = new MyIntersectionLoader(br).buildIntersection();
+			br.close();
+			if (built == null) {
+				System.err.println("Generated file failed to load");
+				return;
+			}
+		}
+		report("Full load", System.nanoTime() - start, iterations, 0);
+
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		IntersectionSpec spec = new MyIntersectionLoader(br).buildSpec();
+		br.close();
+		File packed = writePacked(spec, false);
+		File gzipped = writePacked(spec, true);
+		System.out.println("Packed " + packed.length() / 1024 + " KiB, gzipped " + gzipped.length() / 1024 + " KiB");
+		for (int i = 0; i < iterations; i++) {
+			specFrom(f);
+			specFrom(packed);
+			specFrom(gzipped);
+		}
+		File[] files = { f, packed, gzipped };
+		String[] labels = { "Spec, text", "Spec, packed", "Spec, gzipped" };
+		for (int n = 0; n < files.length; n++) {
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				specFrom(files[n]);
+			}
+			report(labels[n], System.nanoTime() - start, iterations, 0);
+		}
+	}
+
+	private static File writePacked(IntersectionSpec spec, boolean compress) throws IOException {
+		File f = File.createTempFile("packed", ".txt");
+		f.deleteOnExit();
+		BufferedWriter out = new BufferedWriter(new FileWriter(f));
+		new IntersectionWriter(out).setPackThreshold(0).setCompress(compress).write(spec);
+		out.close();
+		return f;
+	}
+
+	private static IntersectionSpec specFrom(File f) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		IntersectionSpec spec = new MyIntersectionLoader(br).buildSpec();
+		br.close();
+		if (spec == null) {
+			throw new IOException(f + " failed to load");
+		}
+		return spec;
+	}
+
+	/**
+	 * The tokenising the loader used to do: a fresh Scanner for every line.
+	 */
+	private static long scannerFields(File f) throws IOException {
+		long count = 0;
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		String line;
+		while ((line = br.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("//")) {
+				continue;
+			}
+			Scanner scan = new Scanner(line);
+			scan.useDelimiter("\t");
+			while (scan.hasNext()) {
+				scan.next();
+				count++;
+			}
+			scan.close();
+		}
+		br.close();
+		return count;
+	}
+
+	private static long tokenizerFields(File f) throws IOException, TrafficSyntaxException {
+		long count = 0;
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		TabTokenizer scan = new TabTokenizer(br);
+		while (scan.nextLine() != null) {
+			while (scan.hasNext()) {
+				scan.next();
+				count++;
+			}
+		}
+		br.close();
+		return count;
+	}
+
+	private static void report(String label, long nanos, int iterations, long fields) {
+		double ms = nanos / 1e6 / iterations;
+		String line = String.format("%-18s %10.3f ms/file", label, ms);
+		if (fields > 0) {
+			line += String.format("  %8.1f ns/field", (double) nanos / fields);
+		}
+		System.out.println(line);
+	}
+
+	/**
+	 * Writes a valid intersection description of the given size. The last two
+	 * phases clear everything to red so the plan passes {@link PlanValidator}.
+	 */
+	static void generate(File f, int streams, int phases, int faces) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(f));
+		out.write(traffic.load.Tag.INTERSECTION + "\n");
+		out.write("Generated\t" + streams + " streams, " + phases + " phases\n");
+		out.write(traffic.load.Tag.END_INTERSECTION + "\n");
+
+		out.write(traffic.load.Tag.TRAFFIC_STREAMS + "\n");
+		for (int s = 0; s < streams; s++) {
+			out.write("S" + s + "\tGenerated stream " + s + "\n");
+		}
+		out.write(traffic.load.Tag.END_TRAFFIC_STREAMS + "\n");
+
+		out.write(traffic.load.Tag.PHASEPLAN + "\n");
+		out.write(traffic.load.Tag.PHASES + "\n");
+		out.write(MyIntersectionLoader.PRETIMED + "\n");
+		StringBuilder states = new StringBuilder(streams);
+		for (int p = 0; p < phases; p++) {
+			states.setLength(0);
+			for (int s = 0; s < streams; s++) {
+				if (p < phases - 2) {
+					states.append(STATES[(p + s) % STATES.length]);
+				} else if (p == phases - 2 && p > 0 && STATES[(p - 1 + s) % STATES.length] == 'G') {
+					states.append('Y');
+				} else {
+					states.append('R');
+				}
+			}
+			out.write("P" + p + "\tGenerated phase " + p + "\t" + states + "\t" + (5 + p % 10) + "\n");
+		}
+		out.write(traffic.load.Tag.END_PHASES + "\n");
+		out.write(traffic.load.Tag.END_PHASEPLAN + "\n");
+
+		out.write(traffic.load.Tag.SIGNAL_FACES + "\n");
+		TrafficDirection[] dirs = TrafficDirection.values();
+		for (int i = 0; i < faces; i++) {
+			out.write(dirs[i % dirs.length] + "\t" + dirs[(i / dirs.length) % dirs.length] + "\tSTANDARD\tS"
+					+ (i % streams) + "\tS" + ((i + 1) % streams) + "\n");
+		}
+		out.write(traffic.load.Tag.END_SIGNAL_FACES + "\n");
+		out.close();
+	}
+}
@@ -0,0 +1,77 @@
+package traffic.diy;
+
+import java.awt.Dimension;
+import java.awt.GridLayout;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.swing.JFileChooser;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.DefaultTableModel;
+
+/**
+ * Shows the figures from a measured run of an intersection: a table of its
+ * streams and a table of its phases.
+ */
+public class MetricsPanel extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String[] STREAM_COLUMNS = { "Stream", "Arrivals", "Served", "Avg queue", "Max queue",
+			"Served/green", "Avg delay (s)", "p95 delay (s)" };
+	private static final String[] PHASE_COLUMNS = { "Phase", "Starts", "Time (s)", "Green used" };
+
+	private final IntersectionMetrics metrics;
+
+	public MetricsPanel(IntersectionMetrics metrics) {
+		super(new GridLayout(2, 1));
+		this.metrics = metrics;
+
+		DefaultTableModel streams = new DefaultTableModel(STREAM_COLUMNS, 0);
+		for (int s = 0; s < metrics.streamCount(); s++) {
+			Histogram delay = metrics.delay(s);
+			streams.addRow(new Object[] { metrics.getSpec().getStreams().get(s).getName(), metrics.arrivals(s),
+					metrics.served(s), String.format("%.2f", metrics.averageQueue(s)), metrics.maxQueue(s),
+					String.format("%.1f", metrics.servedPerGreen(s).mean()),
+					String.format("%.1f", delay.mean() / 1000), String.format("%.1f", delay.percentile(95) / 1000.0) });
+		}
+
+		DefaultTableModel phases = new DefaultTableModel(PHASE_COLUMNS, 0);
+		IntersectionSpec.PlanSpec plan = metrics.getPlan();
+		for (int p = 0; p < metrics.phaseCount(); p++) {
+			phases.addRow(new Object[] { plan.getPhases().get(p).getName(), metrics.activations(p),
+					String.format("%.1f", metrics.phaseMillis(p) / 1000.0),
+					String.format("%.0f%%", metrics.greenUtilisation(p) * 100) });
+		}
+
+		add(new JScrollPane(new JTable(streams)));
+		add(new JScrollPane(new JTable(phases)));
+		setPreferredSize(new Dimension(700, 360));
+	}
+
+	/**
+	 * Ask for a file and write both tables to it as CSV, streams first.
+	 *
+	 * @return the file written, or null if cancelled
+	 */
+	public File exportCsv() throws IOException {
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return null;
+		}
+		File f = jfc.getSelectedFile();
+		Writer w = new FileWriter(f);
+		try {
+			metrics.writeStreamCsv(w);
+			w.write('\n');
+			metrics.writePhaseCsv(w);
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+}
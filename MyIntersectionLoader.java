@@ -1,21 +1,19 @@
 package traffic.diy;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
-import java.util.Observer;
-import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
 import traffic.core.Intersection;
-import traffic.core.Phase;
-import traffic.core.TrafficStream;
+import traffic.load.Tag;
 import traffic.load.TrafficException;
 import traffic.load.TrafficSyntaxException;
-import traffic.misc.Detector;
-import traffic.misc.RandomDetector;
-import traffic.phaseplan.FullyActuatedPhasePlan;
-import traffic.phaseplan.PhasePlan;
-import traffic.phaseplan.PretimedPhasePlan;
 import traffic.signal.SignalFace;
 import traffic.util.State;
 import traffic.util.TrafficDirection;
@@ -24,302 +22,756 @@ import traffic.util.TrafficDirection;
 /**
  * Read an intersection description file and build an intersection from the data
  * it contains.
+ *
+ * A plan's phases are normally one line each, with a character per stream
+ * giving its state. Large plans can instead use a {@link #PHASE_MATRIX}
+ * section: a header naming the state characters used, a line per phase with
+ * its name, description and optional min green, then after {@link #PACKED}
+ * the states of every phase packed two to a byte (low nibble first, each
+ * phase starting a new byte, a nibble indexing the state characters) as
+ * URL-safe base64, optionally gzipped first. The URL-safe alphabet has no
+ * '/', so no line of it can be mistaken for a comment.
+ *
+ * {@link #buildSpec()} stops at the first error. {@link #diagnose()} reads
+ * the whole file instead: a bad line is reported and skipped, and a missing
+ * or unexpected tag is reported and reading picks up again at the next
+ * section tag.
+ *
+ * Plans that fail {@link PlanValidator} checks still load, as they always
+ * have, unless the loader is made strict; diagnosing lists the findings as
+ * warnings.
  *@author bja90 46376139
  *@since 27/05/2016
  */
 public class MyIntersectionLoader {
-    private BufferedReader buffReader;
-    private Scanner scan;
+    private TabTokenizer scan;
     private String currentLine;
-    private Intersection intersect;
-    private List<TrafficStream> tstream;
+    private IntersectionSpec spec;
+    private Exception error;
+    /** Problems found so far when diagnosing, otherwise null. */
+    private List<LoadReport.Problem> problems;
+    /** PlanValidator findings when diagnosing and not strict. */
+    private List<String> warnings;
+    private boolean strict;
     public static final String ACTUATED = "<Actuated>";
     public static final String PRETIMED = "<PreTimed>";
-    
+    public static final String ADAPTIVE = "<Adaptive>";
+    public static final String CONFLICTS = "<Conflicts>";
+    public static final String END_CONFLICTS = "</Conflicts>";
+    public static final String PHASE_MATRIX = "<PhaseMatrix>";
+    public static final String PACKED = "<Packed>";
+    public static final String END_PHASE_MATRIX = "</PhaseMatrix>";
+    /** Encoding field of a PhaseMatrix header for gzipped states. */
+    public static final String GZIP = "gzip";
+
+    /** The opening tags of the sections, in the order they come in a file. */
+    private static final String[] SECTIONS = { Tag.INTERSECTION, Tag.TRAFFIC_STREAMS, CONFLICTS, Tag.PHASEPLAN,
+            Tag.SIGNAL_FACES };
+    /** Tags that begin or end a section, where reading can pick up again. */
+    private static final List<String> STRUCTURE = Arrays.asList(Tag.INTERSECTION, Tag.END_INTERSECTION,
+            Tag.TRAFFIC_STREAMS, Tag.END_TRAFFIC_STREAMS, CONFLICTS, END_CONFLICTS, Tag.PHASEPLAN, Tag.END_PHASEPLAN,
+            Tag.PHASES, Tag.END_PHASES, Tag.SIGNAL_FACES, Tag.END_SIGNAL_FACES);
+
     public MyIntersectionLoader(BufferedReader br) {
-        this.intersect = null;
-        this.tstream = new ArrayList<TrafficStream>();
-        this.buffReader = br;
+        this.spec = null;
+        this.error = null;
+        this.scan = new TabTokenizer(br);
+    }
+
+    /**
+     * Whether to reject plans that fail {@link PlanValidator} checks. Off by
+     * default, so descriptions that loaded before the checks existed still do.
+     *
+     * @param strict true to reject unsafe plans
+     * @return MyIntersectionLoader this
+     */
+    public MyIntersectionLoader setStrict(boolean strict) {
+        this.strict = strict;
+        return this;
     }
-    
+
     /**
      * Builds the intersection.
      *
      * @return Intersection	the Intersection constructed from data file
      */
     public Intersection buildIntersection() {
+        IntersectionSpec description = this.buildSpec();
+        if (description == null) {
+            return null;
+        }
+        try {
+            return description.build();
+        }
+        catch (TrafficException e) {
+            this.loadFailed(e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the data file into a description of the intersection without
+     * building the live traffic objects.
+     *
+     * @return IntersectionSpec the description, or null if the file is invalid
+     */
+    public IntersectionSpec buildSpec() {
     	try {
             this.currentLine = this.parseNextLine();
-            if (!this.currentLine.equals(traffic.load.Tag.INTERSECTION)) {
-                throw new TrafficSyntaxException("Invalid Tag. Expected: " + traffic.load.Tag.INTERSECTION + " Received: " + this.currentLine);
-            }
-            this.currentLine = this.parseNextLine();
-            this.scan = new Scanner(this.currentLine);
-            this.scan.useDelimiter("\t");
-            this.intersect = new Intersection(this.scan.next(), this.scan.next());
-            this.currentLine = this.parseNextLine();
-            if (!this.currentLine.equals(traffic.load.Tag.END_INTERSECTION)) 
-            {
-                throw new TrafficSyntaxException("Invalid Tag. Expected: " + traffic.load.Tag.END_INTERSECTION + " Received: " + this.currentLine);
-            }
+            this.buildHeader();
             this.buildStreams();
+            if (CONFLICTS.equals(this.currentLine)) {
+                this.buildConflicts();
+            }
             this.buildPP();
             this.buildSignals();
-        	
+            if (this.problems == null) {
+                if (this.strict) {
+                    PlanValidator.validate(this.spec);
+                }
+            }
+            else if (this.problems.isEmpty()) {
+                // A partial plan would only give knock-on problems
+                for (String finding : PlanValidator.check(this.spec)) {
+                    if (this.strict) {
+                        this.problems.add(new LoadReport.Problem(0, 0, finding));
+                    }
+                    else {
+                        this.warnings.add(finding);
+                    }
+                }
+            }
         }
-        catch (TrafficSyntaxException e) 
+        catch (TrafficException e)
     	{
-            e.printStackTrace();
-            intersect = null;
-        } 
-    	return this.intersect;
+            this.loadFailed(e);
+        }
+    	return this.spec;
+
+    }
 
+    /**
+     * Reads the whole data file, noting every problem rather than stopping
+     * at the first. Use a new loader for each file.
+     *
+     * @return LoadReport the problems, with as much of the description as
+     *         could be read around them
+     */
+    public LoadReport diagnose() {
+        this.problems = new ArrayList<LoadReport.Problem>();
+        this.warnings = new ArrayList<String>();
+        this.buildSpec();
+        return new LoadReport(this.spec, this.problems, this.warnings);
     }
-    
+
     /**
-     * Builds the TrafficStream.
+     * The first problem met while building, if any.
+     *
+     * @return Exception the first error, or null if the load succeeded
      */
-    private void buildStreams() {
-        try {
+    public Exception getError() {
+        return this.error;
+    }
+
+    /**
+     * Records a failed load. Only the first error is kept as later ones
+     * are usually a consequence of it.
+     *
+     * @param e the error
+     */
+    private void loadFailed(Exception e) {
+        if (this.problems != null) {
+            this.problems.add(this.problem(e));
+            return;
+        }
+        e.printStackTrace();
+        if (this.error == null) {
+            this.error = e;
+        }
+        spec = null;
+    }
+
+    /**
+     * Deals with a problem that can be read past: rethrows it normally, or
+     * notes it when diagnosing so the caller can carry on.
+     *
+     * @param e the problem
+     * @throws E the problem, when not diagnosing
+     */
+    private <E extends TrafficException> void recover(E e) throws E {
+        if (this.problems == null) {
+            throw e;
+        }
+        this.problems.add(this.problem(e));
+    }
+
+    /**
+     * @return the problem, placed where the tokenizer is
+     */
+    private LoadReport.Problem problem(Exception e) {
+        String message = e.getMessage();
+        // TabTokenizer puts the place in the message too
+        String place = "Line " + this.scan.lineNumber() + ", column " + this.scan.column() + ": ";
+        if (message != null && message.startsWith(place)) {
+            message = message.substring(place.length());
+        }
+        return new LoadReport.Problem(this.scan.lineNumber(), this.scan.column(), message);
+    }
+
+    /**
+     * Checks that the current line is a section's opening tag. When
+     * diagnosing a missing one, skips ahead to the next section that could
+     * follow it.
+     *
+     * @param tag the opening tag
+     * @return true if the section is there to read
+     * @throws TrafficSyntaxException if it isn't and not diagnosing
+     */
+    private boolean expect(String tag) throws TrafficSyntaxException {
+        if (tag.equals(this.currentLine)) {
+            return true;
+        }
+        this.recover(this.currentLine == null
+                ? this.scan.error("Unexpected end of file. Expected: " + tag)
+                : this.scan.error("Invalid Tag. Expected: " + tag + " Received: " + this.currentLine));
+        int order = order(tag);
+        while (this.currentLine != null && order(this.currentLine) < order) {
+            this.currentLine = this.parseNextLine();
+        }
+        return tag.equals(this.currentLine);
+    }
+
+    /**
+     * Whether the current line belongs to a section. A section ends at its
+     * closing tag; meeting the end of file or another structural tag first
+     * means the closing tag is missing.
+     *
+     * @param end the section's closing tag
+     * @return true if the current line is part of the section
+     * @throws TrafficSyntaxException if the closing tag is missing and not
+     *         diagnosing
+     */
+    private boolean inSection(String end) throws TrafficSyntaxException {
+        if (end.equals(this.currentLine)) {
+            return false;
+        }
+        if (this.currentLine != null && !STRUCTURE.contains(this.currentLine)) {
+            return true;
+        }
+        this.recover(this.scan.error("Missing " + end
+                + (this.currentLine == null ? " before end of file" : " before " + this.currentLine)));
+        return false;
+    }
+
+    /**
+     * Moves past a section's closing tag, if it's there.
+     */
+    private void endSection(String end) {
+        if (end.equals(this.currentLine)) {
             this.currentLine = this.parseNextLine();
-            if (!this.currentLine.equals(traffic.load.Tag.TRAFFIC_STREAMS))
+        }
+    }
+
+    /**
+     * @return where a section's opening tag comes in a file, or -1 if the
+     *         line isn't one
+     */
+    private static int order(String line) {
+        for (int n = 0; n < SECTIONS.length; n++) {
+            if (SECTIONS[n].equals(line)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the intersection's name and description.
+     *
+     * @throws TrafficSyntaxException
+     */
+    private void buildHeader() throws TrafficSyntaxException {
+        if (this.expect(Tag.INTERSECTION)) {
+            this.currentLine = this.parseNextLine();
+            try {
+                this.spec = new IntersectionSpec(this.scan.next(), this.scan.next());
+            }
+            catch (TrafficSyntaxException e) {
+                this.recover(e);
+            }
+            if (this.currentLine != null && !STRUCTURE.contains(this.currentLine)) {
+                this.currentLine = this.parseNextLine();
+            }
+            if (Tag.END_INTERSECTION.equals(this.currentLine)) {
+                this.currentLine = this.parseNextLine();
+            }
+            else {
+                this.recover(this.scan.error("Invalid Tag. Expected: " + Tag.END_INTERSECTION + " Received: "
+                        + this.currentLine));
+            }
+        }
+        if (this.spec == null) {
+            // Diagnosing without a name: carry on with an anonymous one
+            this.spec = new IntersectionSpec("", "");
+        }
+    }
+
+    /**
+     * Builds the TrafficStream.
+     *
+     * @throws TrafficSyntaxException
+     */
+    private void buildStreams() throws TrafficSyntaxException {
+        if (!this.expect(Tag.TRAFFIC_STREAMS))
+        {
+            return;
+        }
+
+        this.currentLine = this.parseNextLine();
+
+        while (this.inSection(Tag.END_TRAFFIC_STREAMS))
+        {
+            String name = null;
+            try
             {
-                throw new TrafficSyntaxException("Invalid Tag. Expected: " + traffic.load.Tag.TRAFFIC_STREAMS + " Received: " + this.currentLine);
+                name = this.scan.next();
+                //Streams are indexed by name so faces can find them directly
+                if (this.spec.addStream(name, this.scan.next()) < 0)
+                {
+                    throw this.scan.error("Duplicate TrafficStream: " + name);
+                }
+            }
+            catch (TrafficSyntaxException e)
+            {
+                this.recover(e);
+                //Hold the stream's place so the phases' states still line up,
+                //under its name if that can be had; no name read from a file
+                //has a tab in it
+                if (name == null || this.spec.addStream(name, "") < 0)
+                {
+                    this.spec.addStream("\t" + this.scan.lineNumber(), "");
+                }
             }
-            
             this.currentLine = this.parseNextLine();
-            
-            while (!this.currentLine.equals(traffic.load.Tag.END_TRAFFIC_STREAMS))
+        }
+        this.endSection(Tag.END_TRAFFIC_STREAMS);
+    }
+
+    /**
+     * Reads the optional list of conflicting streams. Each line names a
+     * stream followed by the streams it conflicts with.
+     *
+     * @throws TrafficSyntaxException
+     */
+    private void buildConflicts() throws TrafficSyntaxException {
+        this.currentLine = this.parseNextLine();
+
+        while (this.inSection(END_CONFLICTS))
+        {
+            try
             {
-            	this.scan = new Scanner(this.currentLine);
-            	this.scan.useDelimiter("\t");
-                this.tstream.add(new TrafficStream(this.scan.next(), this.scan.next()));
-                this.currentLine = this.parseNextLine();
+                int stream = this.conflictStream(this.scan.next());
+                do
+                {
+                    int other = this.conflictStream(this.scan.next());
+                    if (other == stream)
+                    {
+                        throw this.scan.error("A TrafficStream can't conflict with itself");
+                    }
+                    this.spec.addConflict(stream, other);
+                }
+                while (this.scan.hasNext());
+            }
+            catch (TrafficSyntaxException e)
+            {
+                this.recover(e);
             }
+            this.currentLine = this.parseNextLine();
         }
-        catch (TrafficSyntaxException e) {
-        	e.printStackTrace();
-            intersect = null;
+        this.endSection(END_CONFLICTS);
+    }
+
+    private int conflictStream(String name) throws TrafficSyntaxException {
+        int n = this.spec.streamIndex(name);
+        if (n < 0)
+        {
+            throw this.scan.error("Unknown TrafficStream: " + name);
         }
+        return n;
     }
-    
+
     /**
-     * Builds the PhasePlans and adds to Intersection.
+     * Builds the PhasePlans and adds to Intersection. The opening tag is the
+     * current line.
+     *
+     * @throws TrafficException
      */
-    private void buildPP()
+    private void buildPP() throws TrafficException
     {
-    	{
-    		try
-    		{
-    			PhasePlan plan;
-    			this.currentLine = this.parseNextLine();
-    			if (!this.currentLine.equals(traffic.load.Tag.PHASEPLAN)) 
-    			{
-    				throw new TrafficSyntaxException("Invalid Tag. Expected: " + traffic.load.Tag.PHASEPLAN + " Received: " + this.currentLine);
-    			}
-    			this.currentLine = this.parseNextLine();
-    			do
-    			{
-    				if (!this.currentLine.equals(traffic.load.Tag.PHASES)) 
-    				{
-    					throw new TrafficSyntaxException("Invalid Tag. Expected: " + traffic.load.Tag.PHASES + " Received: " + this.currentLine);
-    				}
-    			
-    				this.currentLine = this.parseNextLine();
-    			
-    				switch (this.currentLine)
-    				{
-    				case (ACTUATED):
-    					//Consume token, build PhasePlan
-    					this.currentLine = this.parseNextLine();
-    					plan = this.buildPhases(true);
-    					break;
-    				case (PRETIMED):
-    					//Consume token, build PhasePlan
-    					this.currentLine = this.parseNextLine();
-    					plan = this.buildPhases(false);
-    					break;
-    				default:
-    					plan = this.buildPhases(false);
-    					break;
-    				}
-    				
-    			//Add to intersection
-    			this.intersect.addPlan(plan);
-    			this.currentLine = this.parseNextLine();
-    			}
-    			while (!this.currentLine.equals(traffic.load.Tag.END_PHASEPLAN));
-    		}
-    		catch (TrafficSyntaxException e)
-    		{
-    			e.printStackTrace();
-    			intersect = null;
-    		}
-    	}
-    	}
-
-	/**
-	 * Builds a fully actuated PhasePlan.
-	 *
-	 * @param boolean actuated, The type of actuation, true = actuated, false = timed
-	 * @return PhasePlan the completed phase plan
-	 */
-	private PhasePlan buildPhases(Boolean actuated){
-		PhasePlan plan;
-		if (actuated.equals(true))
+		if (!this.expect(Tag.PHASEPLAN))
 		{
-			plan = new FullyActuatedPhasePlan();
+			return;
 		}
-		else
+		this.currentLine = this.parseNextLine();
+		do
 		{
-			plan = new PretimedPhasePlan();
-		}
-    	try {
-    	while (!this.currentLine.equals(traffic.load.Tag.END_PHASES)) 
-		{
-    		this.scan = new Scanner(this.currentLine);
-    		this.scan.useDelimiter("\t");
-			Phase currPhase = new Phase(this.scan.next(), this.scan.next());
-			String states = this.scan.next();
-			//Need to check there is a state for each stream
-			if (!(this.tstream.size() == states.length()))
+			if (!Tag.PHASES.equals(this.currentLine))
+			{
+				this.recover(this.scan.error("Invalid Tag. Expected: " + Tag.PHASES + " Received: " + this.currentLine));
+				//Skip to the next plan, or whatever else comes
+				while (this.currentLine != null && !STRUCTURE.contains(this.currentLine))
+				{
+					this.currentLine = this.parseNextLine();
+				}
+				continue;
+			}
+
+			this.currentLine = this.parseNextLine();
+
+			if (ACTUATED.equals(this.currentLine))
+			{
+				//Consume token, build PhasePlan
+				this.currentLine = this.parseNextLine();
+				this.buildPhases(IntersectionSpec.PlanType.ACTUATED);
+			}
+			else if (PRETIMED.equals(this.currentLine))
+			{
+				//Consume token, build PhasePlan
+				this.currentLine = this.parseNextLine();
+				this.buildPhases(IntersectionSpec.PlanType.PRETIMED);
+			}
+			else if (ADAPTIVE.equals(this.currentLine))
+			{
+				//Consume token, build PhasePlan
+				this.currentLine = this.parseNextLine();
+				this.buildPhases(IntersectionSpec.PlanType.ADAPTIVE);
+			}
+			else
 			{
-				throw new TrafficSyntaxException("Phase error. Not enough States");
+				this.buildPhases(IntersectionSpec.PlanType.PRETIMED);
 			}
-			int count = 0;
-			
-			//Match State to Stream
-			for (TrafficStream trafstream : this.tstream)
+
+			this.endSection(Tag.END_PHASES);
+		}
+		while (Tag.PHASES.equals(this.currentLine) || this.inSection(Tag.END_PHASEPLAN));
+		this.endSection(Tag.END_PHASEPLAN);
+	}
+
+	/**
+	 * Builds a PhasePlan and adds it to the intersection.
+	 *
+	 * @param type, The type of plan: pre-timed, actuated or adaptive
+	 * @throws TrafficException
+	 */
+	private void buildPhases(IntersectionSpec.PlanType type) throws TrafficException {
+		IntersectionSpec.PlanSpec plan = this.spec.addPlan(type);
+		int streamCount = this.spec.getStreams().size();
+		State[] states = new State[streamCount];
+
+		while (this.inSection(Tag.END_PHASES))
+		{
+			int line = this.scan.lineNumber();
+			boolean matrix = false;
+			try
 			{
-				if (actuated.equals(true))
+				String name = this.scan.next();
+				matrix = name.equals(PHASE_MATRIX);
+				if (matrix)
 				{
-					trafstream.addDetector((Detector)new RandomDetector());
+					this.buildPhaseMatrix(plan, streamCount);
+				}
+				else
+				{
+					String description = this.scan.next();
+					String stateChars = this.scan.next();
+					//Need to check there is a state for each stream
+					if (!(streamCount == stateChars.length()))
+					{
+						throw this.scan.error("Phase error. Expected " + streamCount + " States, found " + stateChars.length());
+					}
+
+					//Match State to Stream by position
+					for (int count = 0; count < streamCount; count++)
+					{
+						states[count] = State.stateFor(stateChars.charAt(count));
+					}
+
+					this.spec.addPhase(plan, name, description, states, this.minGreen());
 				}
-				currPhase.addStream(trafstream, State.stateFor(states.charAt(count++)));
 			}
-			
-			if (this.scan.hasNextInt()) 
+			catch (TrafficException e)
 			{
-				currPhase.setMinGreenInterval(this.scan.nextInt());
+				this.recover(e);
+				if (matrix)
+				{
+					//Carry on after the matrix, or at whatever tag cut it short
+					if (this.scan.lineNumber() == line)
+					{
+						this.currentLine = this.parseNextLine();
+					}
+					while (this.currentLine != null && !this.currentLine.equals(END_PHASE_MATRIX)
+							&& !STRUCTURE.contains(this.currentLine))
+					{
+						this.currentLine = this.parseNextLine();
+					}
+					if (!END_PHASE_MATRIX.equals(this.currentLine))
+					{
+						continue;
+					}
+				}
 			}
-			
-			plan.add(currPhase);
 			this.currentLine = this.parseNextLine();
 		}
     }
-    	catch (TrafficSyntaxException e)
-    	{
-			e.printStackTrace();
-			intersect = null;
-			
-		} 
-    	catch (TrafficException e)
-    	{
-			e.printStackTrace();
-			intersect = null;
-		}
-    
-    	return plan;
-    }
-    
+
     /**
-     * Builds the Intersection signal faces.
+     * Reads a packed phase matrix section into phases of the plan. The
+     * header line has been read as far as its tag. Leaves the closing tag as
+     * the current line.
+     *
+     * @param plan the plan to add the phases to
+     * @param streamCount how many streams each phase has a state for
+     * @throws TrafficException
      */
-    private void buildSignals() {
-        SignalFace currFace = null;
-        try {
-            this.currentLine = this.parseNextLine();
-            if (!this.currentLine.equals(traffic.load.Tag.SIGNAL_FACES)) {
-            	 throw new TrafficSyntaxException("Invalid Tag. Expected: " + traffic.load.Tag.SIGNAL_FACES + " Received: " + this.currentLine);
+    private void buildPhaseMatrix(IntersectionSpec.PlanSpec plan, int streamCount) throws TrafficException
+    {
+        String alphabet = this.scan.next();
+        boolean gzip = false;
+        if (this.scan.hasNext())
+        {
+            String encoding = this.scan.next();
+            if (!encoding.equals(GZIP))
+            {
+                throw this.scan.error("Unknown PhaseMatrix encoding: " + encoding);
             }
+            gzip = true;
+        }
+        if (alphabet.length() == 0 || alphabet.length() > 16)
+        {
+            throw this.scan.error("A PhaseMatrix needs 1 to 16 state characters, found " + alphabet.length());
+        }
+        State[] dictionary = new State[alphabet.length()];
+        for (int n = 0; n < dictionary.length; n++)
+        {
+            dictionary[n] = State.stateFor(alphabet.charAt(n));
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<String> descriptions = new ArrayList<String>();
+        List<Integer> minGreens = new ArrayList<Integer>();
+        this.currentLine = this.parseNextLine();
+        while (this.currentLine != null && !this.currentLine.equals(PACKED) && !STRUCTURE.contains(this.currentLine))
+        {
+            names.add(this.scan.next());
+            descriptions.add(this.scan.next());
+            minGreens.add(this.minGreen());
             this.currentLine = this.parseNextLine();
-            
-            while (!this.currentLine.equals(traffic.load.Tag.END_SIGNAL_FACES)) 
+        }
+        if (!PACKED.equals(this.currentLine))
+        {
+            throw this.scan.error("Missing " + PACKED);
+        }
+
+        State[] states = new State[streamCount];
+        byte[] row = new byte[(streamCount + 1) / 2];
+        try
+        {
+            byte[] packed = Base64.getUrlDecoder().decode(this.packedText());
+            DataInputStream data = new DataInputStream(gzip
+                    ? new GZIPInputStream(new ByteArrayInputStream(packed)) : new ByteArrayInputStream(packed));
+            for (int p = 0; p < names.size(); p++)
             {
-            	this.scan = new Scanner(this.currentLine);
-                this.scan.useDelimiter("\t");
-                TrafficDirection loc = TrafficDirection.directionFor(this.scan.next());
-                TrafficDirection orient = TrafficDirection.directionFor(this.scan.next());
-                int intkind = 0;
-                switch (this.scan.next())
+                data.readFully(row);
+                for (int s = 0; s < streamCount; s++)
                 {
-                	case "STANDARD": 
-                	{
-                		intkind = SignalFace.STANDARD;
-                		break;
-                	}
-                	case "LEFT_ARROW": 
-                	{
-                		intkind = SignalFace.LEFT_ARROW;
-                    	break;
-                	}
-                	case "RIGHT_ARROW":
-                	{
-                		intkind = SignalFace.RIGHT_ARROW;
-                		break;
-                	}
-                	default:
-                	{
-                		throw new TrafficSyntaxException("Invalid SignalFace");
-                	}
+                    int n = (row[s / 2] >> ((s & 1) * 4)) & 0x0f;
+                    if (n >= dictionary.length)
+                    {
+                        throw this.scan.error("PhaseMatrix state " + n + " out of range in phase " + names.get(p));
+                    }
+                    states[s] = dictionary[n];
                 }
-                
-                currFace = new SignalFace(loc, orient, intkind);
-                while (this.scan.hasNext()) 
+                this.spec.addPhase(plan, names.get(p), descriptions.get(p), states, minGreens.get(p));
+            }
+            if (data.read() != -1)
+            {
+                throw this.scan.error("PhaseMatrix has more states than phases");
+            }
+        }
+        catch (EOFException e)
+        {
+            throw this.scan.error("PhaseMatrix ends before its last phase");
+        }
+        catch (IOException e)
+        {
+            throw this.scan.error("Corrupt PhaseMatrix: " + e.getMessage());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw this.scan.error("Corrupt PhaseMatrix: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a phase's optional min green interval.
+     *
+     * @return the min green in seconds, or NO_MIN_GREEN if there isn't one
+     * @throws TrafficSyntaxException if it's less than a second
+     */
+    private int minGreen() throws TrafficSyntaxException
+    {
+        if (!this.scan.hasNextInt())
+        {
+            return IntersectionSpec.NO_MIN_GREEN;
+        }
+        int minGreen = this.scan.nextInt();
+        if (minGreen < 1)
+        {
+            throw this.scan.error("Min green must be at least 1 second, found " + minGreen);
+        }
+        return minGreen;
+    }
+
+    /**
+     * Reads the lines after {@link #PACKED} up to the end of the phase
+     * matrix, joined without line breaks.
+     *
+     * @return the characters of the lines, as bytes
+     * @throws TrafficSyntaxException if the matrix isn't closed, or has a
+     *         character that isn't ASCII
+     */
+    private byte[] packedText() throws TrafficSyntaxException
+    {
+        byte[] text = new byte[4096];
+        int length = 0;
+        this.currentLine = this.parseNextLine();
+        while (this.currentLine != null && !this.currentLine.equals(END_PHASE_MATRIX)
+                && !STRUCTURE.contains(this.currentLine))
+        {
+            int n = this.currentLine.length();
+            if (length + n > text.length)
+            {
+                text = Arrays.copyOf(text, Math.max(2 * text.length, length + n));
+            }
+            for (int i = 0; i < n; i++)
+            {
+                char c = this.currentLine.charAt(i);
+                if (c > 0x7f)
                 {
-                	
-                	//Find TrafficStream in ArrayList, add Observer
-                	
-                	String streamName = this.scan.next();
-                	
-                    for(int n = 0; n < tstream.size(); n++)
-                   	    {
-                        if(tstream.get(n).getname().equalsIgnoreCase(streamName))
-                        { 
-                   	       	 tstream.get(n).addObserver((Observer)currFace);
-                    	         }
-                    	    }
+                    //Would be cut to a different byte, so decode wrongly
+                    throw this.scan.error("PhaseMatrix has a non-ASCII character: " + String.format("U+%04X", (int) c));
                 }
-                this.intersect.addSignalFace(currFace);
-                this.currentLine = this.parseNextLine();
+                text[length++] = (byte) c;
             }
-            if (!this.currentLine.equals(traffic.load.Tag.END_SIGNAL_FACES)) {
-                throw new TrafficSyntaxException("Invalid Tag. Expected: " + traffic.load.Tag.END_SIGNAL_FACES + " Received: " + this.currentLine);
+            this.currentLine = this.parseNextLine();
+        }
+        if (!END_PHASE_MATRIX.equals(this.currentLine))
+        {
+            throw this.scan.error("Missing " + END_PHASE_MATRIX);
+        }
+        return Arrays.copyOf(text, length);
+    }
+
+    /**
+     * Builds the Intersection signal faces.
+     *
+     * @throws TrafficException
+     */
+    private void buildSignals() throws TrafficException {
+        if (!this.expect(Tag.SIGNAL_FACES)) {
+            return;
+        }
+        this.currentLine = this.parseNextLine();
+        List<Integer> observed = new ArrayList<Integer>();
+
+        while (this.inSection(Tag.END_SIGNAL_FACES))
+        {
+            try
+            {
+                this.buildSignal(observed);
             }
-        
-        }
-        catch (TrafficSyntaxException e) {
-        	e.printStackTrace();
-            intersect = null;
-        } catch (TrafficException e) {
-			e.printStackTrace();
-			intersect = null;
-		}
+            catch (TrafficException e)
+            {
+                this.recover(e);
+            }
+            this.currentLine = this.parseNextLine();
+        }
+        this.endSection(Tag.END_SIGNAL_FACES);
     }
-    
+
+    /**
+     * Builds the signal face on the current line.
+     *
+     * @param observed somewhere to collect the streams it shows
+     * @throws TrafficException
+     */
+    private void buildSignal(List<Integer> observed) throws TrafficException {
+        TrafficDirection loc = TrafficDirection.directionFor(this.scan.next());
+        TrafficDirection orient = TrafficDirection.directionFor(this.scan.next());
+        int intkind = 0;
+        switch (this.scan.next())
+        {
+        	case "STANDARD":
+        	{
+        		intkind = SignalFace.STANDARD;
+        		break;
+        	}
+        	case "LEFT_ARROW":
+        	{
+        		intkind = SignalFace.LEFT_ARROW;
+            	break;
+        	}
+        	case "RIGHT_ARROW":
+        	{
+        		intkind = SignalFace.RIGHT_ARROW;
+        		break;
+        	}
+        	default:
+        	{
+        		throw this.scan.error("Invalid SignalFace");
+        	}
+        }
+
+        observed.clear();
+        while (this.scan.hasNext())
+        {
+        	//Find TrafficStream in index, observe it
+        	String streamName = this.scan.next();
+        	int n = this.spec.streamIndex(streamName);
+        	if (n < 0)
+        	{
+        		throw this.scan.error("Unknown TrafficStream: " + streamName);
+        	}
+        	observed.add(n);
+        }
+        int[] streams = new int[observed.size()];
+        for (int i = 0; i < streams.length; i++)
+        {
+        	streams[i] = observed.get(i);
+        }
+        this.spec.addFace(loc, orient, intkind, streams);
+    }
+
     /**
-     * Reads the next line from the buffered reader, discarding 
+     * Reads the next line from the buffered reader, discarding
      * whitespace and comments.
      *
-     * @return String the parsed string
+     * @return String the parsed string, or null at the end of the file
      */
     private String parseNextLine() {
         String inputLine = null;
         try {
-            do {
-                inputLine = this.buffReader.readLine();
-                
-                //Check for EOF
-                if (inputLine == null) 
-                {
-                    return inputLine;
-                }
-                //Clean up whitespace
-                inputLine = inputLine.trim(); 
-            } while (inputLine.length() == 0 || inputLine.startsWith("//"));
+            inputLine = this.scan.nextLine();
         }
         catch (IOException e) {
+            if (this.problems != null) {
+                this.problems.add(this.problem(e));
+                return null;
+            }
             e.printStackTrace();
+            if (this.error == null) {
+                this.error = e;
+            }
         }
         return inputLine;
     }
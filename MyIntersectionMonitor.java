@@ -5,27 +5,34 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.GridLayout;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JComponent;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -36,6 +43,9 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.border.BevelBorder;
 import javax.swing.border.EtchedBorder;
 import javax.swing.border.SoftBevelBorder;
@@ -44,14 +54,13 @@ import traffic.core.Intersection;
 import traffic.core.Phase;
 import traffic.core.TrafficStream;
 import traffic.demo.DemoClydeCreyke;
+import traffic.load.TrafficException;
 import traffic.load.TrafficIOException;
 import traffic.load.TrafficSyntaxException;
-import traffic.misc.TranscriptPane;
-import traffic.phaseplan.PhasePlan;
 import traffic.signal.SignalFace;
 import traffic.util.State;
 
-public class MyIntersectionMonitor extends JFrame implements Observer {
+public class MyIntersectionMonitor extends JFrame {
 
 	/**
 	 * 
@@ -89,14 +98,105 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	 */
 	protected JTextArea transcript;
 
-	protected TranscriptPane tp;
+	protected TranscriptView tp;
 
 	private static Intersection myIntersection;
 
-	private HashMap<TrafficStream, ArrayList<JPanel>> streamStateChips = new HashMap<TrafficStream, ArrayList<JPanel>>();
+	/**
+	 * What myIntersection was built from, or null if it didn't come from a
+	 * description (e.g. the supplied demo or an old serialised save).
+	 */
+	private static IntersectionSpec mySpec;
+
+	/**
+	 * The display of myIntersection, and the Phase built for each of its
+	 * description's phases (null if there's no description).
+	 */
+	private JPanel myPanel;
+	private Map<IntersectionSpec.PhaseSpec, Phase> myPhases;
+	/**
+	 * Where myIntersection's cycle starts; changes from a reload wait for it.
+	 */
+	private Phase myFirstPhase;
+	private boolean running;
+
+	/**
+	 * Watches the file myIntersection was loaded from, when asked to.
+	 */
+	private IntersectionWatcher watcher;
+	/**
+	 * Changes from the watched file waiting for the next cycle boundary.
+	 */
+	private PendingReload pendingReload;
+
+	/**
+	 * Writing the changes of the intersection behind recording, if recording.
+	 */
+	private SignalRecorder recorder;
+	private ObservableBridge recording;
+	/**
+	 * Playing a signal log into the display, if replaying.
+	 */
+	private SignalReplay replay;
+
+	/**
+	 * The lights of the signal faces showing each stream, repainted when it
+	 * changes.
+	 */
+	private ConcurrentHashMap<TrafficStream, List<JComponent>> streamFaces = new ConcurrentHashMap<TrafficStream, List<JComponent>>();
+
+	private ConcurrentHashMap<Phase, JPanel> phasePanels = new ConcurrentHashMap<Phase, JPanel>();
+	/**
+	 * Publishes each displayed intersection's changes to the display.
+	 */
+	private ConcurrentHashMap<Intersection, ObservableBridge> bridges = new ConcurrentHashMap<Intersection, ObservableBridge>();
+	/**
+	 * Everything displaying each intersection listens here, whether the
+	 * changes are live or replayed.
+	 */
+	private ConcurrentHashMap<Intersection, SignalBus> displays = new ConcurrentHashMap<Intersection, SignalBus>();
+
+	/**
+	 * Above this many phase/stream cells, or faces, an intersection is drawn
+	 * rather than built from components.
+	 */
+	private static final int LARGE_CELLS = 2500;
+	private static final int LARGE_FACES = 250;
 
-	private HashMap<Phase, JPanel> phasePanels = new HashMap<Phase, JPanel>();
-	private Phase thePhase = null;
+	/**
+	 * A tile for every intersection loaded, shown instead of mainPanel in
+	 * dashboard mode. While in that mode intersections get an empty holder in
+	 * mainPanel, filled in with their full display when it's asked for.
+	 */
+	private final DashboardPanel dashboard = new DashboardPanel();
+	private ConcurrentHashMap<Intersection, DashboardTile> tiles = new ConcurrentHashMap<Intersection, DashboardTile>();
+	private ConcurrentHashMap<Intersection, JPanel> panels = new ConcurrentHashMap<Intersection, JPanel>();
+	private ConcurrentHashMap<Intersection, JPanel> unbuilt = new ConcurrentHashMap<Intersection, JPanel>();
+	private volatile boolean dashboardMode;
+	private JScrollPane mainScroll;
+	private JScrollPane dashboardScroll;
+	/**
+	 * The phase highlighted in each intersection's display, by its plan.
+	 */
+	private final Map<PhaseTable, Phase> currentPhases = new IdentityHashMap<PhaseTable, Phase>();
+
+	/**
+	 * Descriptions already read, so reopening an unchanged file doesn't parse
+	 * it again.
+	 */
+	private final SpecCache specCache = new SpecCache(SpecCache.DEFAULT_MAX_BYTES);
+
+	/**
+	 * How often queued state changes are applied to the display.
+	 */
+	private static final int FRAME_MILLIS = 40;
+
+	/**
+	 * State changes notified by running intersections, waiting for the next
+	 * frame.
+	 */
+	private final ConcurrentLinkedQueue<PendingChange> pendingChanges = new ConcurrentLinkedQueue<PendingChange>();
+	private Timer frameTimer;
 	private Color labelBackground = Color.orange;
 	private Color phasePanelBackground = Color.pink;
 	private Color streamBackground = Color.magenta;
@@ -142,6 +242,26 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			}
 		});
 
+		// How to open a whole directory of intersection files
+		JMenuItem fmod = new JMenuItem("Open directory...");
+		fmod.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				openIntersectionDirectory();
+			}
+		});
+
+		// How to keep an intersection in step with its file
+		JMenuItem fmw = new JMenuItem("Watch and reload...");
+		fmw.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				watchIntersection();
+			}
+		});
+
 		// How to save a serialised intersection
 		JMenuItem fms = new JMenuItem("Save intersection...");
 		fms.addActionListener(new ActionListener() {
@@ -163,6 +283,25 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			}
 		});
 
+		// How to keep many intersections in one snapshot store
+		JMenuItem fmss = new JMenuItem("Save to snapshot store...");
+		fmss.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				saveToSnapshotStore();
+			}
+		});
+
+		JMenuItem fmso = new JMenuItem("Open from snapshot store...");
+		fmso.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				openFromSnapshotStore();
+			}
+		});
+
 		JMenuItem tms = new JMenuItem("Save Transcript...");
 		// How to save transcript
 		tms.addActionListener(new ActionListener() {
@@ -206,16 +345,15 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				myIntersection = DemoClydeCreyke.pretimedMultiPhase();
+				new IntersectionWorker("Malformed Intersection",
+						"This intersection isn't valid and can't be displayed") {
 
-				if (myIntersection == null) {
-					// not good :-(
-					JOptionPane.showMessageDialog(null, "This intersection isn't valid and can't be displayed",
-							"Malformed Intersection", JOptionPane.ERROR_MESSAGE);
-					return;
-				}
-				mainPanel.add(intersectionGUI(myIntersection));
-				getContentPane().validate();
+					@Override
+					protected Intersection load() {
+						publish("Building demo intersection");
+						return DemoClydeCreyke.pretimedMultiPhase();
+					}
+				}.execute();
 			}
 		});
 
@@ -224,6 +362,8 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		fmDemoMenu.add(fmDemoTimed);
 		JMenuItem fmDemoActuated = new JMenuItem("Fully Actuated");
 		fmDemoMenu.add(fmDemoActuated);
+		JMenuItem fmDemoAdaptive = new JMenuItem("Adaptive");
+		fmDemoMenu.add(fmDemoAdaptive);
 
 		//fmMine.setBackground(diyColour);
 		// How to run the demo I wrote myself
@@ -232,15 +372,14 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				// for example...
-				myIntersection = ModelIntersection.preTimedIntersection();
-				if (myIntersection == null) {
-					// not good :-(
-					JOptionPane.showMessageDialog(null, "My demo failed --- keep trying!", "Null Intersection",
-							JOptionPane.ERROR_MESSAGE);
-					return;
-				}
-				mainPanel.add(intersectionGUI(myIntersection));
-				getContentPane().validate();
+				new IntersectionWorker("Null Intersection", "My demo failed --- keep trying!") {
+
+					@Override
+					protected Intersection load() throws TrafficException {
+						publish("Building pre-timed demo intersection");
+						return fromSpec(ModelIntersection.preTimedSpec());
+					}
+				}.execute();
 			}
 		});
 		
@@ -249,23 +388,41 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				// for example...
-				myIntersection = ModelIntersection.fullyActivatedIntersection();
-				if (myIntersection == null) {
-					// not good :-(
-					JOptionPane.showMessageDialog(null, "My demo failed --- keep trying!", "Null Intersection",
-							JOptionPane.ERROR_MESSAGE);
-					return;
-				}
-				mainPanel.add(intersectionGUI(myIntersection));
-				getContentPane().validate();
+				new IntersectionWorker("Null Intersection", "My demo failed --- keep trying!") {
+
+					@Override
+					protected Intersection load() throws TrafficException {
+						publish("Building fully actuated demo intersection");
+						return fromSpec(ModelIntersection.fullyActivatedSpec());
+					}
+				}.execute();
+			}
+		});
+
+		fmDemoAdaptive.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				new IntersectionWorker("Null Intersection", "My demo failed --- keep trying!") {
+
+					@Override
+					protected Intersection load() throws TrafficException {
+						publish("Building adaptive demo intersection");
+						return fromSpec(ModelIntersection.adaptiveSpec());
+					}
+				}.execute();
 			}
 		});
 
 		mb.add(fm);
 
 		fm.add(fmo);
+		fm.add(fmod);
+		fm.add(fmw);
 		fm.add(fml);
 		fm.add(fms);
+		fm.add(fmso);
+		fm.add(fmss);
 		fm.addSeparator();
 		fm.add(fmd);
 		fm.addSeparator();
@@ -283,6 +440,7 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				if (myIntersection != null) {
+					stopReplay();
 					start();
 				}
 			}
@@ -297,13 +455,97 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
+				stopReplay();
 				if (myIntersection != null) {
 					tp.log("Stopping");
 					myIntersection.finish();
+					running = false;
 				}
 			}
 		});
 
+		JMenuItem iMeasure = new JMenuItem("Measure...");
+		im.add(iMeasure);
+		iMeasure.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				measureIntersection();
+			}
+		});
+
+		im.addSeparator();
+		JMenuItem iRecord = new JMenuItem("Record...");
+		im.add(iRecord);
+		iRecord.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				startRecording();
+			}
+		});
+
+		JMenuItem iStopRecording = new JMenuItem("Stop Recording");
+		im.add(iStopRecording);
+		iStopRecording.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				stopRecording();
+			}
+		});
+
+		JMenuItem iReplay = new JMenuItem("Replay...");
+		im.add(iReplay);
+		iReplay.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				replayRecording();
+			}
+		});
+
+		JMenuItem iStartAll = new JMenuItem("Start All");
+		iStartAll.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				startAll();
+			}
+		});
+		JMenuItem iStopAll = new JMenuItem("Stop All");
+		iStopAll.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				stopAll();
+			}
+		});
+		im.add(iStartAll, 2);
+		im.add(iStopAll, 3);
+
+		JMenu vm = new JMenu("View");
+		final JCheckBoxMenuItem vDashboard = new JCheckBoxMenuItem("Dashboard");
+		vm.add(vDashboard);
+		vDashboard.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showDashboard(vDashboard.isSelected());
+			}
+		});
+		dashboard.setListener(new DashboardPanel.Listener() {
+
+			@Override
+			public void drillIn(DashboardTile tile) {
+				vDashboard.setSelected(false);
+				showDashboard(false);
+				JPanel panel = detailFor(tile.getIntersection());
+				panel.scrollRectToVisible(new Rectangle(0, 0, panel.getWidth(), panel.getHeight()));
+			}
+		});
+		mb.add(vm);
+
 		JMenu tm = new JMenu("Transcript");
 		tm.add(tms);
 		tm.add(tmc);
@@ -311,11 +553,23 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		mb.add(tm);
 
 		this.setLayout(new BoxLayout(this.getContentPane(), BoxLayout.Y_AXIS));
-		add(new JScrollPane(mainPanel));
+		mainScroll = new JScrollPane(mainPanel);
+		dashboardScroll = new JScrollPane(dashboard);
+		add(mainScroll);
 
-		tp = new TranscriptPane(5);
+		tp = new TranscriptView(5);
 		add(tp);
 
+		// Apply queued state changes once per frame
+		frameTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				drainChanges();
+			}
+		});
+		frameTimer.start();
+
 	}
 
 	/**
@@ -324,11 +578,18 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	 * followed by the signal faces. ToolTips are used to reduce the amount of
 	 * text displayed.
 	 * 
+	 * Intersections with more than {@link #LARGE_CELLS} phase/stream cells or
+	 * {@link #LARGE_FACES} faces are drawn by a single {@link PhaseMatrixView}
+	 * instead, since a component per cell takes too long to lay out and too
+	 * much memory.
+	 * 
 	 * @param i
 	 *            The intersection to display.
+	 * @param spec
+	 *            Its description, or null if there isn't one.
 	 * @return
 	 */
-	private JPanel intersectionGUI(Intersection i) {
+	private JPanel intersectionGUI(Intersection i, IntersectionSpec spec) {
 		JPanel thisIntersection = new JPanel();
 		thisIntersection.setLayout(new BoxLayout(thisIntersection, BoxLayout.Y_AXIS));
 
@@ -343,11 +604,24 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		labels.setBackground(labelBackground);
 		thisIntersection.add(labels);
 
-		// Now assemble the SignalFaces
+		SignalBus display = displayFor(i, spec);
+		PhaseTable table = bridges.get(i).getTable();
+
 		List<SignalFace> faces = i.getSignalFaces();
+		if ((long) table.phaseCount() * table.streamCount() > LARGE_CELLS || faces.size() > LARGE_FACES) {
+			PhaseMatrixView matrix = new PhaseMatrixView(table, faces, spec == null ? null : spec.getFaces(),
+					activePhaseBackground, inactivePhaseBackground);
+			display.subscribe(matrix);
+			matrix.setBorder(BorderFactory.createEtchedBorder(EtchedBorder.RAISED));
+			thisIntersection.add(matrix);
+			return thisIntersection;
+		}
+
+		// Now assemble the SignalFaces
 		JPanel physicalSignalFaces = new JPanel();
 
-		for (SignalFace sf : faces) {
+		for (int f = 0; f < faces.size(); f++) {
+			SignalFace sf = faces.get(f);
 			JPanel thisFacePanel = new JPanel();
 			thisFacePanel.setLayout(new BoxLayout(thisFacePanel, BoxLayout.Y_AXIS));
 
@@ -364,7 +638,19 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			faceLabels.add(facingLabel);
 
 			thisFacePanel.add(faceLabels);
-			thisFacePanel.add(sf.getGUI()); // the 3 lights
+			JComponent lights = sf.getGUI(); // the 3 lights
+			thisFacePanel.add(lights);
+			if (spec != null && f < spec.getFaces().size()) {
+				IntersectionSpec.FaceSpec fs = spec.getFaces().get(f);
+				for (int n = 0; n < fs.streamCount(); n++) {
+					addFace(table.stream(fs.getStream(n)), lights);
+				}
+			} else {
+				// Which streams it shows isn't known, so any of them
+				for (int s = 0; s < table.streamCount(); s++) {
+					addFace(table.stream(s), lights);
+				}
+			}
 
 			thisFacePanel.setBorder(BorderFactory.createEtchedBorder());
 
@@ -377,15 +663,14 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		// Each phase gets same vertical space. (1 column)
 		// One row per phase
 		phasesPanel.setLayout(new BoxLayout(phasesPanel, BoxLayout.Y_AXIS));
-		PhasePlan plan = i.getPlan();
 
 		// Collect the GUI representation for each phase in plan
-		for (Phase currPhase : plan.phases()) {
+		for (int p = 0; p < table.phaseCount(); p++) {
+			Phase currPhase = table.phase(p);
 			JPanel currPhasePanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
 			currPhasePanel.setBackground(phasePanelBackground);
 			currPhasePanel.setBorder(BorderFactory.createSoftBevelBorder(BevelBorder.RAISED));
 			// We'll need to keep up to date as phases change
-			currPhase.addObserver(this);
 			phasePanels.put(currPhase, currPhasePanel);
 
 			// Name and description in a text area
@@ -399,10 +684,12 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 
 			JPanel currPhaseStreams = new JPanel();
 			// For each phase, collect the traffic stream info...
-			Collection<TrafficStream> streams = currPhase.getTrafficStreams();
-
-			for (TrafficStream ts : streams) {
-				ts.addObserver(this);
+			for (int s = 0; s < table.streamCount(); s++) {
+				State state = table.state(p, s);
+				if (state == null) {
+					continue;
+				}
+				TrafficStream ts = table.stream(s);
 				JPanel streamPanel = new JPanel(new BorderLayout());
 				String si = ts.toString();
 				String sii = si.substring(si.indexOf(" ") + 1, si.length() - 1);
@@ -415,9 +702,7 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 				streamPanel.setBorder(BorderFactory.createSoftBevelBorder(SoftBevelBorder.RAISED));
 				JPanel streamPanelChip = new JPanel();
 				streamPanelChip.setPreferredSize(new Dimension(25, 25));
-				streamPanelChip.setBackground(colourForState(currPhase.streamStates().get(ts)));
-
-				addChip(ts, streamPanelChip);
+				streamPanelChip.setBackground(colourForState(state));
 
 				streamPanel.add(streamPanelChip);
 				currPhaseStreams.add(streamPanel);
@@ -432,6 +717,102 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		return thisIntersection;
 	}
 
+	/**
+	 * The bus an intersection's displays listen to, set up the first time
+	 * it's asked for. Each stream and phase is observed once, however many
+	 * phases a stream is in, and its changes arrive as typed events. Streams
+	 * are numbered as the description numbers them, if there is one.
+	 */
+	private synchronized SignalBus displayFor(Intersection i, IntersectionSpec spec) {
+		SignalBus display = displays.get(i);
+		if (display == null) {
+			PhaseTable table = PhaseTable.compile(i.getPlan(), spec);
+			ObservableBridge bridge = new ObservableBridge(table);
+			display = new SignalBus();
+			bridge.getBus().subscribe(display);
+			display.subscribe(new DisplayListener(bridge));
+			bridges.put(i, bridge);
+			displays.put(i, display);
+		}
+		return display;
+	}
+
+	/**
+	 * Give a newly loaded intersection a dashboard tile and its place in
+	 * mainPanel: its full display, or in dashboard mode an empty holder for
+	 * it. Runs on the EDT.
+	 * 
+	 * @return what to add to mainPanel
+	 */
+	private JPanel display(Intersection i, IntersectionSpec spec) {
+		SignalBus display = displayFor(i, spec);
+		DashboardTile tile = new DashboardTile(i, spec, bridges.get(i).getTable());
+		display.subscribe(tile);
+		tiles.put(i, tile);
+		dashboard.addTile(tile);
+		JPanel holder = new JPanel(new BorderLayout());
+		if (dashboardMode) {
+			holder.add(new JLabel(i.getName() + " (open it from the dashboard to see it in full)", JLabel.CENTER));
+			unbuilt.put(i, holder);
+		} else {
+			holder.add(intersectionGUI(i, spec));
+		}
+		panels.put(i, holder);
+		return holder;
+	}
+
+	/**
+	 * An intersection's place in mainPanel, with its full display built if it
+	 * hasn't been yet. Runs on the EDT.
+	 */
+	private JPanel detailFor(Intersection i) {
+		JPanel holder = panels.get(i);
+		if (unbuilt.remove(i) != null) {
+			holder.removeAll();
+			holder.add(intersectionGUI(i, tiles.get(i).getSpec()));
+			getContentPane().validate();
+		}
+		return holder;
+	}
+
+	/**
+	 * Switch between the dashboard and the full displays in mainPanel.
+	 */
+	private void showDashboard(boolean show) {
+		if (show == dashboardMode) {
+			return;
+		}
+		dashboardMode = show;
+		getContentPane().remove(show ? mainScroll : dashboardScroll);
+		getContentPane().add(show ? dashboardScroll : mainScroll, 0);
+		getContentPane().validate();
+		repaint();
+	}
+
+	/**
+	 * Start the cycle of every intersection loaded.
+	 */
+	private void startAll() {
+		stopReplay();
+		for (Intersection i : tiles.keySet()) {
+			if (i == myIntersection) {
+				start();
+			} else {
+				i.start();
+			}
+		}
+		tp.log("Started " + tiles.size() + " intersections");
+	}
+
+	private void stopAll() {
+		stopReplay();
+		for (Intersection i : tiles.keySet()) {
+			i.finish();
+		}
+		running = false;
+		tp.log("Stopped " + tiles.size() + " intersections");
+	}
+
 	/**
 	 * Open menu item selected so go ahead and load the corresponding file.
 	 * Doesn't start its cycle.
@@ -449,23 +830,16 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			f = jfc.getSelectedFile();
 			if (f.exists() && f.isFile() && f.canRead()) {
 				// so far, so good
-				try {
-					BufferedReader br = new BufferedReader(new FileReader(f.getPath()));
-					// OK, file is opened so read & process content
-					MyIntersectionLoader il = new MyIntersectionLoader(br);
-					myIntersection = il.buildIntersection();
-					if (myIntersection == null) {
-						// not good :-(
-						JOptionPane.showMessageDialog(null, "This intersection isn't valid and can't be displayed",
-								"Malformed Intersection", JOptionPane.ERROR_MESSAGE);
-						return;
+				final File chosen = f;
+				new IntersectionWorker("Malformed Intersection",
+						"This intersection isn't valid and can't be displayed") {
+
+					@Override
+					protected Intersection load() throws IOException, TrafficException {
+						publish("Loading " + chosen.getName());
+						return fromSpec(specCache.load(chosen));
 					}
-					mainPanel.add(intersectionGUI(myIntersection));
-					// super.validate();
-					super.getContentPane().validate();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-				}
+				}.execute();
 			}
 			break;
 		case JFileChooser.CANCEL_OPTION:
@@ -476,10 +850,55 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	}
 
 	/**
-	 * Save the current intersection to file system in serialised form.
+	 * Open directory menu item selected so load every intersection file in
+	 * the chosen directory. Files are parsed and built in parallel off the
+	 * event dispatch thread, and each is displayed as soon as it's ready. The
+	 * last one becomes the current intersection, the one Start, Save and
+	 * Measure act on; Start All runs them all. Doesn't start any cycles.
+	 */
+	private void openIntersectionDirectory() {
+		String cwd = System.getProperty("user.dir");
+		JFileChooser jfc = new JFileChooser(cwd);
+		jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		final File dir = jfc.getSelectedFile();
+		tp.log("Loading intersections from " + dir);
+
+		new IntersectionWorker("No Intersections", "No valid intersections found in " + dir) {
+
+			@Override
+			protected Intersection load() throws IOException, InterruptedException {
+				Intersection last = null;
+				for (BulkIntersectionLoader.Result r : new BulkIntersectionLoader(
+						Runtime.getRuntime().availableProcessors(), specCache).loadDirectory(dir)) {
+					publish(r.toString());
+					if (r.succeeded()) {
+						warnAbout(PlanValidator.check(r.getSpec()));
+						if (last != null) {
+							// Every junction but the last is attached as we go
+							attach(last, spec);
+						}
+						last = r.getIntersection();
+						spec = r.getSpec();
+					}
+				}
+				return last;
+			}
+		}.execute();
+	}
+
+	/**
+	 * Save the current intersection to file system, in binary form if we know
+	 * its description and serialised form otherwise.
 	 */
 	private void saveSerialisedIntersection() {
+		if (myIntersection == null) {
+			return;
+		}
 		myIntersection.finish();
+		running = false;
 		try {
 			JFileChooser jfc = new JFileChooser();
 	        String cwd = System.getProperty("user.dir");
@@ -494,11 +913,23 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	            } 
 	            else 
 	            {
-	            	FileOutputStream fileOut = new FileOutputStream(chosenFile.getPath());
-	    	        ObjectOutputStream out = new ObjectOutputStream(fileOut);
-	    	        out.writeObject(myIntersection);
-	    	        out.close();
-	    	        fileOut.close();
+	            	if (mySpec != null)
+	            	{
+	            		// Compact binary form
+	            		FileChannel out = FileChannel.open(chosenFile.toPath(), StandardOpenOption.CREATE_NEW,
+	            				StandardOpenOption.WRITE);
+	            		IntersectionCodec.write(mySpec, out);
+	            		out.close();
+	            	}
+	            	else
+	            	{
+	            		// No description to hand (e.g. the supplied demo) so fall back on Java serialisation
+	            		FileOutputStream fileOut = new FileOutputStream(chosenFile.getPath());
+	            		ObjectOutputStream out = new ObjectOutputStream(fileOut);
+	            		out.writeObject(myIntersection);
+	            		out.close();
+	            		fileOut.close();
+	            	}
 	                jfc.rescanCurrentDirectory();
 	            }
 	        }
@@ -510,7 +941,288 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	}
 
 	/**
-	 * Load intersection from file system in serialised form.
+	 * Append the current intersection to a snapshot store as a new revision.
+	 */
+	private void saveToSnapshotStore() {
+		if (mySpec == null) {
+			JOptionPane.showMessageDialog(null, "Only intersections loaded from a description can be stored",
+					"No Description", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		try {
+			SnapshotStore store = new SnapshotStore(jfc.getSelectedFile());
+			try {
+				SnapshotStore.Revision rev = store.append(mySpec);
+				tp.log("Stored " + mySpec.getName() + " revision " + rev.getNumber());
+			} finally {
+				store.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Pick an intersection out of a snapshot store and load its latest
+	 * revision.
+	 */
+	private void openFromSnapshotStore() {
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		final SnapshotStore store;
+		try {
+			store = new SnapshotStore(jfc.getSelectedFile(), false);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		Object[] names = store.names().toArray();
+		final Object name = names.length == 0 ? null
+				: JOptionPane.showInputDialog(this, "Intersection:", "Open from snapshot store",
+						JOptionPane.QUESTION_MESSAGE, null, names, names[0]);
+		if (name == null) {
+			try {
+				store.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		new IntersectionWorker("Malformed Intersection", "This intersection isn't valid and can't be displayed") {
+
+			@Override
+			protected Intersection load() throws IOException, TrafficException {
+				try {
+					publish("Loading " + name + " from snapshot store");
+					return fromSpec(store.load((String) name));
+				} finally {
+					store.close();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Simulate an hour of the current intersection's first plan against
+	 * random arrivals and show its queues, delays and green utilisation.
+	 */
+	private void measureIntersection() {
+		if (mySpec == null) {
+			JOptionPane.showMessageDialog(null, "Only intersections loaded from a description can be measured",
+					"No Description", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		String rate = JOptionPane.showInputDialog(this, "Vehicles per hour on each stream:", "400");
+		if (rate == null) {
+			return;
+		}
+		final double vehiclesPerHour;
+		try {
+			vehiclesPerHour = Double.parseDouble(rate.trim());
+		} catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(null, rate + " isn't a number", "Bad Rate", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		final IntersectionSpec spec = mySpec;
+		tp.log("Measuring " + spec.getName() + " at " + rate.trim() + " vehicles/h");
+		new SwingWorker<IntersectionMetrics, Void>() {
+
+			@Override
+			protected IntersectionMetrics doInBackground() {
+				return HeadlessSimulation.measure(spec, 0, new SimulationTiming(),
+						new PoissonArrivals(System.nanoTime(), spec.getStreams().size(), vehiclesPerHour), 3600000);
+			}
+
+			@Override
+			protected void done() {
+				MetricsPanel panel;
+				try {
+					panel = new MetricsPanel(get());
+				} catch (InterruptedException e) {
+					return;
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+					return;
+				}
+				Object[] options = { "Export CSV...", "Close" };
+				int choice = JOptionPane.showOptionDialog(MyIntersectionMonitor.this, panel,
+						spec.getName() + " over one hour", JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE,
+						null, options, options[1]);
+				if (choice == 0) {
+					try {
+						File f = panel.exportCsv();
+						if (f != null) {
+							tp.log("Exported measurements to " + f);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Record every change of the current intersection to a signal log, until
+	 * told to stop.
+	 */
+	private void startRecording() {
+		ObservableBridge bridge = myIntersection == null ? null : bridges.get(myIntersection);
+		if (bridge == null) {
+			return;
+		}
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		stopRecording();
+		File f = jfc.getSelectedFile();
+		try {
+			recorder = new SignalRecorder(f, myIntersection.getName(), bridge.getTable()) {
+
+				@Override
+				protected void failed(final IOException e) {
+					final SignalRecorder failing = this;
+					SwingUtilities.invokeLater(new Runnable() {
+
+						@Override
+						public void run() {
+							if (recorder == failing) {
+								tp.log("Recording failed: " + e.getMessage());
+								stopRecording();
+								JOptionPane.showMessageDialog(null, e.getMessage(), "Recording Stopped",
+										JOptionPane.ERROR_MESSAGE);
+							}
+						}
+					});
+				}
+			};
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(null, e.getMessage(), "Can't Record", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		recording = bridge;
+		bridge.getBus().subscribe(recorder);
+		tp.log("Recording " + myIntersection.getName() + " to " + f);
+	}
+
+	private void stopRecording() {
+		if (recorder == null) {
+			return;
+		}
+		recording.getBus().unsubscribe(recorder);
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		tp.log("Recorded " + recorder.recorded() + " changes");
+		recorder = null;
+		recording = null;
+	}
+
+	/**
+	 * Drive the current intersection's display from a signal log recorded
+	 * from it, without running its phase plan.
+	 */
+	private void replayRecording() {
+		ObservableBridge bridge = myIntersection == null ? null : bridges.get(myIntersection);
+		if (bridge == null) {
+			return;
+		}
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		final SignalLog log;
+		long first;
+		long last;
+		try {
+			log = new SignalLog(jfc.getSelectedFile());
+			first = log.firstTime();
+			last = log.lastTime();
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(null, e.getMessage(), "Can't Replay", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		PhaseTable table = bridge.getTable();
+		if (log.streamCount() != table.streamCount() || log.phaseCount() != table.phaseCount()) {
+			JOptionPane.showMessageDialog(null,
+					"This was recorded from " + log.getName() + ", which doesn't match the current intersection",
+					"Can't Replay", JOptionPane.ERROR_MESSAGE);
+			closeQuietly(log);
+			return;
+		}
+
+		String offset = JOptionPane.showInputDialog(this,
+				String.format("Start how many minutes in? (%.1f recorded)", (last - first) / 60000.0), "0");
+		if (offset == null) {
+			closeQuietly(log);
+			return;
+		}
+		long from;
+		try {
+			from = first + (long) (Double.parseDouble(offset.trim()) * 60000);
+		} catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(null, offset + " isn't a number", "Bad Offset", JOptionPane.ERROR_MESSAGE);
+			closeQuietly(log);
+			return;
+		}
+		Object[] speeds = { "1x", "10x", "Max" };
+		int choice = JOptionPane.showOptionDialog(this, "Replay speed", "Replay " + log.getName(),
+				JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, speeds, speeds[0]);
+		if (choice < 0) {
+			closeQuietly(log);
+			return;
+		}
+		double speed = choice == 0 ? 1 : choice == 1 ? 10 : SignalReplay.MAX_SPEED;
+
+		stopReplay();
+		if (running) {
+			myIntersection.finish();
+			running = false;
+		}
+		replay = new SignalReplay(log, displays.get(myIntersection), speed) {
+
+			@Override
+			protected void finished() {
+				closeQuietly(log);
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						tp.log("Replay of " + log.getName() + " ended");
+					}
+				});
+			}
+		};
+		tp.log("Replaying " + log.getName() + " at " + speeds[choice]);
+		replay.start(from);
+	}
+
+	private void stopReplay() {
+		if (replay != null) {
+			replay.stop();
+			replay = null;
+		}
+	}
+
+	private static void closeQuietly(SignalLog log) {
+		try {
+			log.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Load intersection from file system in binary or serialised form.
 	 */
 	private void loadSerialisedIntersection() {
 		File f;
@@ -522,31 +1234,45 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			f = jfc.getSelectedFile();
 			if (f.exists() && f.isFile() && f.canRead()) {
 				// so far, so good
-				try {
-					FileInputStream fileIn = new FileInputStream(f.getPath());
-			        ObjectInputStream in = new ObjectInputStream(fileIn);
-			        myIntersection = (Intersection) in.readObject();
-			        in.close();
-			        fileIn.close();
-					
-					if (myIntersection == null) {
-						// not good :-(
-						JOptionPane.showMessageDialog(null, "This intersection isn't valid and can't be displayed",
-								"Malformed Intersection", JOptionPane.ERROR_MESSAGE);
-						return;
+				final File chosen = f;
+				new IntersectionWorker("Malformed Intersection",
+						"This intersection isn't valid and can't be displayed") {
+
+					@Override
+					protected Intersection load() throws IOException, ClassNotFoundException, TrafficException {
+						publish("Reading saved intersection " + chosen.getName());
+						FileChannel ch = FileChannel.open(chosen.toPath(), StandardOpenOption.READ);
+						try {
+							ByteBuffer first = ByteBuffer.allocate(4);
+							ch.read(first);
+							first.flip();
+							if (IntersectionCodec.isEncoded(first)) {
+								ch.position(0);
+								return fromSpec(IntersectionCodec.read(ch));
+							}
+						} finally {
+							ch.close();
+						}
+
+						// Older saves are Java serialised
+						FileInputStream fileIn = new FileInputStream(chosen.getPath());
+						ObjectInputStream in = new ObjectInputStream(fileIn);
+						Intersection i = (Intersection) in.readObject();
+						in.close();
+						fileIn.close();
+
+						if (i != null) {
+							// Nothing checked it when it was saved
+							warnAbout(PlanValidator.check(PhaseTable.compile(i.getPlan()), null, "Plan"));
+							publish("Recovering observers");
+							i.recoverObservers();
+							if (i.getPlan() instanceof AdaptivePhasePlan) {
+								((AdaptivePhasePlan) i.getPlan()).recoverObservers();
+							}
+						}
+						return i;
 					}
-					myIntersection.recoverObservers();
-					mainPanel.add(intersectionGUI(myIntersection));
-					// super.validate();
-					super.getContentPane().validate();
-				} 
-				catch (IOException i) {
-					i.printStackTrace();
-				}
-				catch(ClassNotFoundException c)
-			    {
-			         c.printStackTrace();
-			    }
+				}.execute();
 			}
 			break;
 		case JFileChooser.CANCEL_OPTION:
@@ -556,11 +1282,174 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		}
 	}
 
+	/**
+	 * Loads or builds an intersection off the event dispatch thread. Progress
+	 * messages go to the transcript. The panel that displays it is built back
+	 * on the EDT, once the intersection is ready.
+	 */
+	private abstract class IntersectionWorker extends SwingWorker<Intersection, String> {
+		private final String errorTitle;
+		private final String errorMessage;
+		protected Intersection loaded;
+		/**
+		 * The description the intersection was built from, if known.
+		 */
+		protected IntersectionSpec spec;
+		/**
+		 * The Phase built for each phase of the description.
+		 */
+		protected Map<IntersectionSpec.PhaseSpec, Phase> builtPhases = new IdentityHashMap<IntersectionSpec.PhaseSpec, Phase>();
+
+		/**
+		 * @param errorTitle
+		 *            dialog title if no intersection could be produced
+		 * @param errorMessage
+		 *            dialog message if no intersection could be produced
+		 */
+		IntersectionWorker(String errorTitle, String errorMessage) {
+			this.errorTitle = errorTitle;
+			this.errorMessage = errorMessage;
+		}
+
+		/**
+		 * Produce the intersection. Runs on a background thread.
+		 * 
+		 * @return the intersection, or null if it isn't valid
+		 */
+		protected abstract Intersection load() throws Exception;
+
+		/**
+		 * Build the intersection from a description and remember the
+		 * description so it can be saved later.
+		 * 
+		 * @param description
+		 *            the description, or null if there isn't a valid one
+		 * @return the intersection, or null
+		 * @throws TrafficException
+		 */
+		protected Intersection fromSpec(IntersectionSpec description) throws TrafficException {
+			spec = description;
+			builtPhases.clear();
+			if (description == null) {
+				return null;
+			}
+			warnAbout(PlanValidator.check(description));
+			return description.build(builtPhases);
+		}
+
+		/**
+		 * Note in the transcript whatever {@link PlanValidator} found unsafe.
+		 * The intersection still loads, as it did before plans were checked.
+		 * 
+		 * @param findings
+		 *            what was found
+		 */
+		protected void warnAbout(List<String> findings) {
+			for (String finding : findings) {
+				publish("Warning: " + finding);
+			}
+		}
+
+		@Override
+		protected Intersection doInBackground() throws Exception {
+			return load();
+		}
+
+		/**
+		 * Display another intersection from the background thread. Its panel
+		 * is built on the EDT.
+		 * 
+		 * @param i
+		 *            the intersection
+		 * @param description
+		 *            its description, or null
+		 */
+		protected void attach(final Intersection i, final IntersectionSpec description) {
+			SwingUtilities.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					mainPanel.add(display(i, description));
+					getContentPane().validate();
+				}
+			});
+		}
+
+		@Override
+		protected void process(List<String> chunks) {
+			for (String msg : chunks) {
+				tp.log(msg);
+			}
+		}
+
+		@Override
+		protected void done() {
+			try {
+				loaded = get();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				tp.log(errorTitle + ": " + e.getCause().getMessage());
+			}
+			if (loaded == null) {
+				// not good :-(
+				JOptionPane.showMessageDialog(null, errorMessage, errorTitle, JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			ready();
+		}
+
+		/**
+		 * The intersection has been built: display it. Runs on the EDT.
+		 */
+		protected void ready() {
+			tp.log("Building display for " + loaded.getName());
+			loaded(display(loaded, spec));
+		}
+
+		/**
+		 * Show the finished intersection and make it the current one. Runs on
+		 * the EDT.
+		 * 
+		 * @param panel
+		 *            its display
+		 */
+		protected void loaded(JPanel panel) {
+			if (watcher != null) {
+				// it was watching for changes to the one before
+				watcher.close();
+				watcher = null;
+			}
+			pendingReload = null;
+			myIntersection = loaded;
+			mySpec = spec;
+			myPanel = panel;
+			myPhases = spec == null ? null : builtPhases;
+			myFirstPhase = firstPhase(loaded);
+			running = false;
+			mainPanel.add(panel);
+			getContentPane().validate();
+			tp.log("Loaded " + loaded.getName());
+		}
+	}
+
 	/**
 	 * Start intersection cycle
 	 */
 	private void start() {
 		myIntersection.start();
+		running = true;
+	}
+
+	/**
+	 * @return the phase an intersection's cycle starts from, or null
+	 */
+	private static Phase firstPhase(Intersection i) {
+		for (Phase p : i.getPlan().phases()) {
+			return p;
+		}
+		return null;
 	}
 
 	/**
@@ -577,7 +1466,7 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	 *            The state we're in.
 	 * @return the colour to use.
 	 */
-	private Color colourForState(State state) {
+	static Color colourForState(State state) {
 		Color col;
 
 		switch (state) {
@@ -601,57 +1490,342 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	}
 
 	/*
-	 * Which chips refer to each stream
+	 * Which faces show each stream
 	 */
-	private void addChip(TrafficStream ts, JPanel jp) {
-		if (streamStateChips.containsKey(ts)) {
-			ArrayList<JPanel> panels = streamStateChips.get(ts);
-			panels.add(jp);
-			streamStateChips.replace(ts, panels);
-		} else {
-			ArrayList<JPanel> panels = new ArrayList<JPanel>();
-			panels.add(jp);
-			streamStateChips.put(ts, panels);
+	private void addFace(TrafficStream ts, JComponent lights) {
+		List<JComponent> faces = streamFaces.get(ts);
+		if (faces == null) {
+			faces = new CopyOnWriteArrayList<JComponent>();
+			List<JComponent> existing = streamFaces.putIfAbsent(ts, faces);
+			if (existing != null) {
+				faces = existing;
+			}
 		}
-
+		faces.add(lights);
 	}
 
 	/**
-	 * Implement the Observable interface. We're possibly observing
-	 * TrafficStreams - when they change state they will notify us and we'll
-	 * update our GUI accordingly.
-	 * 
-	 * Could also be observing phases. Maybe highlight the current one?
+	 * Listens to one intersection's bus. When its TrafficStreams change state
+	 * or a new phase starts we update our GUI accordingly, highlighting the
+	 * current phase.
 	 * 
-	 * We could potentially notify other observers of our own (e.g. to update a
-	 * log)
-	 */
-	@Override
-	public void update(Observable o, Object arg) {
-		if ((arg instanceof State) && (o instanceof TrafficStream)) {
-			TrafficStream ts = (TrafficStream) o;
-			State state = (State) arg;
-			tp.log(ts + " going " + state);
-
-			//update(this.getGraphics());
-			repaint();
-		} else {
-			if (o instanceof Phase) {
-				Phase p = (Phase) o;
-				JPanel jp;
-				if (thePhase != null) {
-					jp = phasePanels.get(thePhase);
+	 * Events arrive on whatever thread is running the intersection, so
+	 * they're only queued here. {@link #drainChanges()} applies them on the
+	 * EDT once per frame.
+	 */
+	private class DisplayListener implements SignalListener {
+		private final ObservableBridge bridge;
+		private final PhaseTable table;
+
+		DisplayListener(ObservableBridge bridge) {
+			this.bridge = bridge;
+			this.table = bridge.getTable();
+		}
+
+		@Override
+		public void phaseChanged(long time, int phase) {
+			// The phase's own message, as the transcript has always shown
+			pendingChanges.add(new PendingChange(table, time, table.phase(phase), bridge.phaseText(phase)));
+		}
+
+		@Override
+		public void streamChanged(long time, int stream, State state) {
+			pendingChanges.add(new PendingChange(table, time, table.stream(stream), state));
+		}
+	}
+
+	/**
+	 * Apply the changes queued since the last frame. The signal faces showing
+	 * each changed stream, and the phase panels involved, are repainted once,
+	 * however many changes there were. Runs on the EDT.
+	 */
+	private void drainChanges() {
+		PendingChange change = pendingChanges.poll();
+		if (change == null) {
+			return;
+		}
+		Set<TrafficStream> dirtyStreams = new HashSet<TrafficStream>();
+		// The newest phase of each intersection that changed
+		Map<PhaseTable, Phase> newPhases = new IdentityHashMap<PhaseTable, Phase>();
+		boolean newCycle = false;
+		for (; change != null; change = pendingChanges.poll()) {
+			if (change.source instanceof TrafficStream) {
+				TrafficStream ts = (TrafficStream) change.source;
+				State state = (State) change.arg;
+				tp.logStream(change.time, ts, state);
+				dirtyStreams.add(ts);
+			} else {
+				Phase newPhase = (Phase) change.source;
+				tp.logPhase(change.time, newPhase, change.arg == null ? null : String.valueOf(change.arg));
+				newPhases.put(change.table, newPhase);
+				if (newPhase == myFirstPhase) {
+					newCycle = true;
+				}
+			}
+		}
+		tp.refresh();
+
+		for (Map.Entry<PhaseTable, Phase> e : newPhases.entrySet()) {
+			Phase newPhase = e.getValue();
+			Phase oldPhase = currentPhases.put(e.getKey(), newPhase);
+			if (newPhase == oldPhase) {
+				continue;
+			}
+			JPanel jp;
+			if (oldPhase != null) {
+				jp = phasePanels.get(oldPhase);
+				if (jp != null) {
 					jp.setBackground(inactivePhaseBackground);
 				}
-				jp = phasePanels.get(p);
+			}
+			jp = phasePanels.get(newPhase);
+			if (jp != null) {
 				jp.setBackground(activePhaseBackground);
-				thePhase = p;
-				// transcript.append((String) arg);
-				tp.log((String) arg);
-				//update(this.getGraphics());
-				repaint();
 			}
 		}
+		if (pendingReload != null && newCycle) {
+			// A new cycle has started: the moment to switch timings
+			applyReload();
+		}
+		Set<JComponent> dirtyFaces = new HashSet<JComponent>();
+		for (TrafficStream ts : dirtyStreams) {
+			List<JComponent> faces = streamFaces.get(ts);
+			if (faces != null) {
+				dirtyFaces.addAll(faces);
+			}
+		}
+		for (JComponent lights : dirtyFaces) {
+			lights.repaint();
+		}
+	}
+
+	/**
+	 * Open an intersection file and keep watching it. Each time it's saved
+	 * it's compared with what's running: changed min greens are applied to the
+	 * running phases, anything else rebuilds this intersection's display.
+	 * Either way the change waits for the start of the next cycle.
+	 */
+	private void watchIntersection() {
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		final File chosen = jfc.getSelectedFile();
+
+		new IntersectionWorker("Malformed Intersection", "This intersection isn't valid and can't be displayed") {
+
+			@Override
+			protected Intersection load() throws IOException, TrafficException {
+				publish("Loading " + chosen.getName());
+				return fromSpec(specCache.load(chosen));
+			}
+
+			@Override
+			protected void loaded(JPanel panel) {
+				super.loaded(panel);
+				try {
+					watcher = new IntersectionWatcher(chosen, new IntersectionWatcher.Listener() {
+
+						@Override
+						public void reloaded(final IntersectionSpec spec) {
+							SwingUtilities.invokeLater(new Runnable() {
+
+								@Override
+								public void run() {
+									reloadReady(spec);
+								}
+							});
+						}
+
+						@Override
+						public void reloadFailed(final Exception error) {
+							SwingUtilities.invokeLater(new Runnable() {
+
+								@Override
+								public void run() {
+									tp.log("Not reloading " + chosen.getName() + ": " + error);
+								}
+							});
+						}
+					});
+					tp.log("Watching " + chosen);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * The watched file has been reloaded. Work out what's changed and get it
+	 * ready to apply. Runs on the EDT.
+	 */
+	private void reloadReady(IntersectionSpec spec) {
+		if (mySpec == null || myIntersection == null) {
+			return;
+		}
+		final IntersectionDiff diff = IntersectionDiff.compare(mySpec, spec);
+		tp.log("Reloaded " + spec.getName() + ": " + diff);
+		if (diff.isEmpty()) {
+			return;
+		}
+		if (!diff.isStructural()) {
+			scheduleReload(new PendingReload(diff, null, null));
+			return;
+		}
+		// Build the replacement off the EDT; it's displayed when swapped in
+		new IntersectionWorker("Reload Failed", "The changed intersection can't be displayed") {
+
+			@Override
+			protected Intersection load() throws TrafficException {
+				publish("Rebuilding " + diff.getTo().getName());
+				return fromSpec(diff.getTo());
+			}
+
+			@Override
+			protected void ready() {
+				scheduleReload(new PendingReload(diff, loaded, builtPhases));
+			}
+		}.execute();
+	}
+
+	/**
+	 * Apply a reload now if the intersection isn't running, otherwise at the
+	 * start of its next cycle. A newer reload replaces one still waiting.
+	 */
+	private void scheduleReload(PendingReload reload) {
+		// A replacement still waiting has never been displayed, so there's
+		// nothing of it to retire
+		pendingReload = reload;
+		if (!running || myFirstPhase == null) {
+			applyReload();
+		} else {
+			tp.log("Changes will apply at the start of the next cycle");
+		}
+	}
+
+	/**
+	 * Apply the waiting reload. Runs on the EDT.
+	 */
+	private void applyReload() {
+		PendingReload reload = pendingReload;
+		pendingReload = null;
+		if (reload.diff.getFrom() != mySpec) {
+			// Something else has been loaded since
+			return;
+		}
+
+		if (!reload.diff.isStructural()) {
+			for (IntersectionDiff.TimingChange c : reload.diff.getTimingChanges()) {
+				IntersectionSpec.PhaseSpec ps = mySpec.getPlans().get(c.getPlan()).getPhases().get(c.getPhase());
+				ps.setMinGreen(c.getMinGreen());
+				Phase live = myPhases.get(ps);
+				if (live != null) {
+					live.setMinGreenInterval(c.getMinGreen());
+				}
+			}
+			tp.log("Applied " + reload.diff);
+			return;
+		}
+
+		// Let go of the old intersection so it and its display can be freed
+		boolean wasRunning = running;
+		if (wasRunning) {
+			myIntersection.finish();
+			running = false;
+		}
+		ObservableBridge bridge = bridges.get(myIntersection);
+		if (recording == bridge) {
+			stopRecording();
+		}
+		stopReplay();
+		PhaseTable old = bridge.getTable();
+		forget(myIntersection);
+		for (int s = 0; s < old.streamCount(); s++) {
+			streamFaces.remove(old.stream(s));
+		}
+		for (int p = 0; p < old.phaseCount(); p++) {
+			phasePanels.remove(old.phase(p));
+		}
+		currentPhases.remove(old);
+
+		int index = -1;
+		for (int n = 0; n < mainPanel.getComponentCount(); n++) {
+			if (mainPanel.getComponent(n) == myPanel) {
+				index = n;
+			}
+		}
+		if (index >= 0) {
+			mainPanel.remove(index);
+		}
+		// Only now does the replacement get its display and tile
+		JPanel panel = display(reload.intersection, reload.diff.getTo());
+		mainPanel.add(panel, index);
+		getContentPane().validate();
+		mainPanel.repaint();
+
+		myIntersection = reload.intersection;
+		mySpec = reload.diff.getTo();
+		myPanel = panel;
+		myPhases = reload.phases;
+		myFirstPhase = firstPhase(reload.intersection);
+		tp.log("Rebuilt " + mySpec.getName());
+		if (wasRunning) {
+			start();
+		}
+	}
+
+	/**
+	 * Stop displaying an intersection that's been replaced, so it and its
+	 * display can be freed. Runs on the EDT.
+	 */
+	private void forget(Intersection i) {
+		ObservableBridge bridge = bridges.remove(i);
+		if (bridge != null) {
+			bridge.close();
+		}
+		displays.remove(i);
+		DashboardTile tile = tiles.remove(i);
+		if (tile != null) {
+			dashboard.removeTile(tile);
+		}
+		panels.remove(i);
+		unbuilt.remove(i);
+	}
+
+	/**
+	 * Changes from a reload, waiting to be applied. For a structural change,
+	 * the replacement intersection is already built, but not yet displayed.
+	 */
+	private static class PendingReload {
+		final IntersectionDiff diff;
+		final Intersection intersection;
+		final Map<IntersectionSpec.PhaseSpec, Phase> phases;
+
+		PendingReload(IntersectionDiff diff, Intersection intersection, Map<IntersectionSpec.PhaseSpec, Phase> phases) {
+			this.diff = diff;
+			this.intersection = intersection;
+			this.phases = phases;
+		}
+	}
+
+	/**
+	 * A notification waiting to be applied on the EDT.
+	 */
+	private static class PendingChange {
+		/** The plan of the intersection it came from. */
+		final PhaseTable table;
+		/** When it happened, by the bus's clock. */
+		final long time;
+		final Object source;
+		final Object arg;
+
+		PendingChange(PhaseTable table, long time, Object source, Object arg) {
+			this.table = table;
+			this.time = time;
+			this.source = source;
+			this.arg = arg;
+		}
 	}
 
 }
@@ -0,0 +1,126 @@
+package traffic.diy;
+
+import java.util.Observable;
+import java.util.Observer;
+
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.util.State;
+
+/**
+ * Publishes the changes of a running traffic-package intersection, which only
+ * reports them through Observable, on a {@link SignalBus}. It observes each
+ * stream and phase of the plan once and turns each notification into a typed
+ * event, with the stream or phase identified by its index in the
+ * {@link PhaseTable}. Events are timed in wall clock milliseconds, but counted
+ * on System.nanoTime() from when the bridge was made, so they never go
+ * backwards if the wall clock is stepped.
+ *
+ * A phase's notification also carries the text the phase reports on starting,
+ * which the bus has no room for. The bridge keeps it, and listeners can ask
+ * for it with {@link #phaseText(int)} while the event is published.
+ */
+public class ObservableBridge {
+
+	private final PhaseTable table;
+	private final SignalBus bus;
+	private final Observer[] streamObservers;
+	private final Observer[] phaseObservers;
+	/** What each phase last reported on starting. */
+	private final String[] phaseTexts;
+	private final long epochMillis = System.currentTimeMillis();
+	private final long epochNanos = System.nanoTime();
+
+	/**
+	 * Start bridging a plan onto a new bus.
+	 *
+	 * @param table
+	 *            the compiled plan of the intersection
+	 */
+	public ObservableBridge(PhaseTable table) {
+		this(table, new SignalBus());
+	}
+
+	/**
+	 * Start bridging a plan.
+	 *
+	 * @param table
+	 *            the compiled plan of the intersection
+	 * @param bus
+	 *            where to publish its changes
+	 */
+	public ObservableBridge(PhaseTable table, SignalBus bus) {
+		this.table = table;
+		this.bus = bus;
+		this.streamObservers = new Observer[table.streamCount()];
+		this.phaseObservers = new Observer[table.phaseCount()];
+		this.phaseTexts = new String[table.phaseCount()];
+		for (int s = 0; s < streamObservers.length; s++) {
+			final int stream = s;
+			streamObservers[s] = new Observer() {
+
+				@Override
+				public void update(Observable o, Object arg) {
+					if (arg instanceof State) {
+						ObservableBridge.this.bus.streamChanged(now(), stream, (State) arg);
+					}
+				}
+			};
+			table.stream(s).addObserver(streamObservers[s]);
+		}
+		for (int p = 0; p < phaseObservers.length; p++) {
+			final int phase = p;
+			phaseObservers[p] = new Observer() {
+
+				@Override
+				public void update(Observable o, Object arg) {
+					if (arg != null) {
+						phaseTexts[phase] = String.valueOf(arg);
+					}
+					ObservableBridge.this.bus.phaseChanged(now(), phase);
+				}
+			};
+			table.phase(p).addObserver(phaseObservers[p]);
+		}
+	}
+
+	/**
+	 * @return the time to give an event
+	 */
+	private long now() {
+		return epochMillis + (System.nanoTime() - epochNanos) / 1000000L;
+	}
+
+	/**
+	 * @param phase
+	 *            index of the phase
+	 * @return the text the phase reported when it last started, or null if
+	 *         it hasn't reported any. Asked while its event is published, on
+	 *         the publishing thread, this is the text that came with it.
+	 */
+	public String phaseText(int phase) {
+		return phaseTexts[phase];
+	}
+
+	public PhaseTable getTable() {
+		return table;
+	}
+
+	public SignalBus getBus() {
+		return bus;
+	}
+
+	/**
+	 * Stop observing the intersection. Nothing more is published.
+	 */
+	public void close() {
+		for (int s = 0; s < streamObservers.length; s++) {
+			TrafficStream ts = table.stream(s);
+			ts.deleteObserver(streamObservers[s]);
+		}
+		for (int p = 0; p < phaseObservers.length; p++) {
+			Phase phase = table.phase(p);
+			phase.deleteObserver(phaseObservers[p]);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package traffic.diy;
+
+import traffic.util.State;
+
+/**
+ * Steps one phase plan of an intersection description through its phases on a
+ * virtual clock, without threads, timers or Swing. Whoever owns the clock asks
+ * {@link #nextChange()} when something next happens and calls
+ * {@link #advance()} once the clock gets there.
+ *
+ * Pre-timed plans hold each phase for its {@link SimulationTiming} time: the
+ * green time for a green interval (see
+ * {@link IntersectionSpec.PlanSpec#isGreenInterval(int)}), otherwise the
+ * yellow or all red time, even if an arrow stays green through it. Actuated
+ * plans hold a green interval for that long, then keep extending it while
+ * the {@link DemandModel} reports traffic on one of its green streams, up to
+ * the max green. Adaptive plans are actuated plans whose green intervals are
+ * resized at the start of every cycle by a {@link SplitAdapter}, from how much
+ * of each stream's green the DemandModel kept busy.
+ */
+public class PhaseController {
+	private final IntersectionSpec.PlanSpec plan;
+	private final SimulationTiming timing;
+	private final DemandModel demand;
+	private final boolean actuated;
+	private final SignalBus bus = new SignalBus();
+	/** The demand model, if it follows the signals; told of changes first. */
+	private final SignalListener demandListener;
+	/** Where changes go after the demand model: the bus, unless held back. */
+	private SignalListener output = bus;
+
+	private final PhaseTable table;
+	/** Base duration of each phase; adaptive plans change it every cycle. */
+	private final long[] durations;
+	/** The streams each phase shows GREEN. */
+	private final int[][] greens;
+	/** Which phases are green intervals, and so can be extended. */
+	private final boolean[] greenIntervals;
+
+	/** Shares out green time for an adaptive plan, otherwise null. */
+	private final SplitAdapter adapter;
+	/** When green occupancy was last sampled. */
+	private long sampled;
+
+	private int phase = -1;
+	private long phaseStart;
+	private long nextChange = Long.MAX_VALUE;
+
+	/**
+	 * @param spec
+	 *            the intersection
+	 * @param planIndex
+	 *            which of its plans to run
+	 * @param timing
+	 *            phase timings
+	 * @param demand
+	 *            traffic demand, used by actuated plans; told of every change
+	 *            before any listener if it's also a {@link SignalListener}
+	 */
+	public PhaseController(IntersectionSpec spec, int planIndex, SimulationTiming timing, DemandModel demand) {
+		this.plan = spec.getPlans().get(planIndex);
+		if (plan.getPhases().isEmpty()) {
+			throw new IllegalArgumentException("Plan has no phases");
+		}
+		this.timing = timing;
+		this.demand = demand;
+		this.actuated = plan.getType() != IntersectionSpec.PlanType.PRETIMED;
+		this.demandListener = demand instanceof SignalListener ? (SignalListener) demand : null;
+
+		this.table = PhaseTable.compile(spec, planIndex);
+		int streams = table.streamCount();
+		int phases = table.phaseCount();
+		this.durations = new long[phases];
+		this.greens = new int[phases][];
+		this.greenIntervals = new boolean[phases];
+		for (int p = 0; p < phases; p++) {
+			IntersectionSpec.PhaseSpec ps = plan.getPhases().get(p);
+			int greenCount = ps.countOf(State.GREEN);
+			boolean yellow = ps.countOf(State.YELLOW) > 0;
+			greenIntervals[p] = plan.isGreenInterval(p);
+			greens[p] = new int[greenCount];
+			for (int s = 0, g = 0; s < streams; s++) {
+				if (table.state(p, s) == State.GREEN) {
+					greens[p][g++] = s;
+				}
+			}
+			if (ps.getMinGreen() != IntersectionSpec.NO_MIN_GREEN) {
+				durations[p] = ps.getMinGreen() * 1000L;
+			} else if (greenIntervals[p]) {
+				durations[p] = timing.getGreen();
+			} else if (yellow) {
+				durations[p] = timing.getYellow();
+			} else {
+				durations[p] = timing.getAllRed();
+			}
+			// A zero length phase would stall the clock
+			durations[p] = Math.max(1, durations[p]);
+		}
+		this.adapter = plan.getType() == IntersectionSpec.PlanType.ADAPTIVE
+				? SplitAdapter.forPlan(plan, streams, timing) : null;
+	}
+
+	public void addListener(SignalListener l) {
+		bus.subscribe(l);
+	}
+
+	public void removeListener(SignalListener l) {
+		bus.unsubscribe(l);
+	}
+
+	/**
+	 * @return where the plan's changes are published; listeners may be added
+	 *         from any thread while it runs
+	 */
+	public SignalBus getBus() {
+		return bus;
+	}
+
+	/**
+	 * Send the plan's changes somewhere other than straight to the bus, for
+	 * whoever drives the controller to publish on it later. The demand model
+	 * is still told at once, as the plan depends on what it does.
+	 *
+	 * @param out
+	 *            where to send changes, or null to publish them directly
+	 */
+	public void setOutput(SignalListener out) {
+		output = out == null ? bus : out;
+	}
+
+	/**
+	 * Enter the first phase.
+	 *
+	 * @param time
+	 *            the time to start at
+	 */
+	public void start(long time) {
+		enter(0, time);
+	}
+
+	/**
+	 * @return true once {@link #start(long)} has been called
+	 */
+	public boolean isStarted() {
+		return phase >= 0;
+	}
+
+	/**
+	 * @return when the next change happens, or Long.MAX_VALUE if not started
+	 */
+	public long nextChange() {
+		return nextChange;
+	}
+
+	/**
+	 * @return index of the current phase, or -1 if not started
+	 */
+	public int currentPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return when the current phase started
+	 */
+	public long phaseStart() {
+		return phaseStart;
+	}
+
+	public int phaseCount() {
+		return durations.length;
+	}
+
+	/**
+	 * @param phase
+	 *            index of the phase
+	 * @return how long the phase lasts before any actuated extension; for an
+	 *         adaptive plan, in the current cycle
+	 */
+	public long duration(int phase) {
+		return durations[phase];
+	}
+
+	/**
+	 * @return how long one cycle of the plan takes before any actuated
+	 *         extension; the whole cycle for a pre-timed plan
+	 */
+	public long cycleLength() {
+		long total = 0;
+		for (long d : durations) {
+			total += d;
+		}
+		return total;
+	}
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @return its current state, or null if not started
+	 */
+	public State streamState(int stream) {
+		return phase < 0 ? null : table.state(phase, stream);
+	}
+
+	/**
+	 * Handle the change due at {@link #nextChange()}: extend the current
+	 * actuated green if there's demand, otherwise move to the next phase.
+	 */
+	public void advance() {
+		long time = nextChange;
+		if (adapter != null) {
+			sampleGreens(time);
+		}
+		if (actuated && greenIntervals[phase] && time - phaseStart < timing.getMaxGreen()
+				&& demandOnGreen(time)) {
+			nextChange = Math.min(time + timing.getExtension(), phaseStart + timing.getMaxGreen());
+			return;
+		}
+		enter((phase + 1) % durations.length, time);
+	}
+
+	private boolean demandOnGreen(long time) {
+		for (int s : greens[phase]) {
+			if (demand.hasDemand(s, time)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Count the time since the last sample towards the occupancy of the
+	 * current green streams, as occupied if they still have traffic.
+	 */
+	private void sampleGreens(long time) {
+		long elapsed = time - sampled;
+		for (int s : greens[phase]) {
+			adapter.record(s, elapsed, demand.hasDemand(s, time) ? elapsed : 0);
+		}
+		sampled = time;
+	}
+
+	private void enter(int p, long time) {
+		int previous = phase;
+		phase = p;
+		phaseStart = time;
+		sampled = time;
+		if (adapter != null && p == 0 && previous >= 0 && adapter.endCycle()) {
+			for (int n = 0; n < durations.length; n++) {
+				durations[n] = Math.max(1, adapter.duration(n));
+			}
+		}
+		nextChange = time + durations[p];
+		if (demandListener != null) {
+			demandListener.phaseChanged(time, p);
+		}
+		output.phaseChanged(time, p);
+		if (previous == (p + durations.length - 1) % durations.length) {
+			// The usual step to the next phase: the table knows what changes
+			for (int s : table.changesOnEntry(p)) {
+				notifyStream(time, s);
+			}
+		} else {
+			for (int s = 0; s < table.streamCount(); s++) {
+				if (previous < 0 || table.state(previous, s) != table.state(p, s)) {
+					notifyStream(time, s);
+				}
+			}
+		}
+	}
+
+	private void notifyStream(long time, int s) {
+		State state = table.state(phase, s);
+		if (demandListener != null) {
+			demandListener.streamChanged(time, s, state);
+		}
+		output.streamChanged(time, s, state);
+	}
+}
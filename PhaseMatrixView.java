@@ -0,0 +1,307 @@
+package traffic.diy;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.swing.JComponent;
+import javax.swing.ToolTipManager;
+
+import traffic.signal.SignalFace;
+import traffic.util.State;
+
+/**
+ * Shows a large intersection in a single component: a band of signal faces,
+ * a row with each stream's current state, then one row per phase with a cell
+ * for each stream's state in that phase. The running phase is highlighted.
+ *
+ * Nothing is a component of its own, so there's no layout to do however big
+ * the junction is. Painting only covers the cells inside the clip, and a change
+ * repaints only the cells it affects: a stream's current state cell and the
+ * faces showing it, or the rows of the phases starting and ending.
+ *
+ * It listens for changes itself and may be told about them on any thread.
+ */
+public class PhaseMatrixView extends JComponent implements SignalListener {
+	private static final long serialVersionUID = 1L;
+
+	private static final int CELL = 14;
+	private static final int NAME_WIDTH = 120;
+	private static final int FACE_WIDTH = 56;
+	private static final int FACE_HEIGHT = 44;
+	private static final int LAMP = 10;
+	private static final Color GRID = Color.LIGHT_GRAY;
+
+	private final PhaseTable table;
+	/** Where each face is and which way it faces, as labels. */
+	private final String[] faceAt;
+	private final String[] faceFacing;
+	/** The streams each face shows, or null if not known. */
+	private final int[][] faceStreams;
+	/** The faces showing each stream. */
+	private final int[][] streamFaces;
+	private final int facesPerRow;
+	private final int faceRows;
+	/** Top of the current state row, and of the first phase row. */
+	private final int liveTop;
+	private final int phasesTop;
+
+	private final AtomicReferenceArray<State> current;
+	private volatile int currentPhase = -1;
+
+	private final Color activePhase;
+	private final Color inactivePhase;
+
+	/**
+	 * @param table
+	 *            the intersection's compiled plan
+	 * @param faces
+	 *            its signal faces
+	 * @param faceSpecs
+	 *            the matching descriptions of the faces, to tell which
+	 *            streams they show; null if there's no description, in which
+	 *            case the faces' lamps are left unlit
+	 * @param activePhase
+	 *            background of the running phase's row
+	 * @param inactivePhase
+	 *            background of the other rows
+	 */
+	public PhaseMatrixView(PhaseTable table, List<SignalFace> faces, List<IntersectionSpec.FaceSpec> faceSpecs,
+			Color activePhase, Color inactivePhase) {
+		this.table = table;
+		this.activePhase = activePhase;
+		this.inactivePhase = inactivePhase;
+		int streams = table.streamCount();
+		this.current = new AtomicReferenceArray<State>(streams);
+
+		faceAt = new String[faces.size()];
+		faceFacing = new String[faces.size()];
+		faceStreams = new int[faces.size()][];
+		int[] perStream = new int[streams];
+		for (int f = 0; f < faces.size(); f++) {
+			faceAt[f] = faces.get(f).location().label();
+			faceFacing[f] = faces.get(f).orientation().label();
+			if (faceSpecs != null && f < faceSpecs.size()) {
+				IntersectionSpec.FaceSpec fs = faceSpecs.get(f);
+				faceStreams[f] = new int[fs.streamCount()];
+				for (int n = 0; n < fs.streamCount(); n++) {
+					faceStreams[f][n] = fs.getStream(n);
+					perStream[fs.getStream(n)]++;
+				}
+			}
+		}
+		streamFaces = new int[streams][];
+		for (int s = 0; s < streams; s++) {
+			streamFaces[s] = new int[perStream[s]];
+			perStream[s] = 0;
+		}
+		for (int f = 0; f < faceStreams.length; f++) {
+			if (faceStreams[f] != null) {
+				for (int s : faceStreams[f]) {
+					streamFaces[s][perStream[s]++] = f;
+				}
+			}
+		}
+
+		int width = NAME_WIDTH + streams * CELL;
+		facesPerRow = Math.max(1, width / FACE_WIDTH);
+		faceRows = (faces.size() + facesPerRow - 1) / facesPerRow;
+		liveTop = faceRows * FACE_HEIGHT + CELL / 2;
+		phasesTop = liveTop + 2 * CELL;
+		setPreferredSize(new Dimension(Math.max(width, Math.min(faces.size(), facesPerRow) * FACE_WIDTH),
+				phasesTop + table.phaseCount() * CELL));
+		setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+		setOpaque(true);
+		setBackground(Color.WHITE);
+		ToolTipManager.sharedInstance().registerComponent(this);
+	}
+
+	@Override
+	public void phaseChanged(long time, int phase) {
+		int previous = currentPhase;
+		currentPhase = phase;
+		if (previous >= 0) {
+			repaint(phaseRow(previous));
+		}
+		repaint(phaseRow(phase));
+	}
+
+	@Override
+	public void streamChanged(long time, int stream, State state) {
+		current.set(stream, state);
+		repaint(NAME_WIDTH + stream * CELL, liveTop, CELL, CELL);
+		for (int f : streamFaces[stream]) {
+			repaint(faceBounds(f));
+		}
+	}
+
+	@Override
+	public String getToolTipText(MouseEvent e) {
+		int x = e.getX();
+		int y = e.getY();
+		if (y < faceRows * FACE_HEIGHT) {
+			int f = (y / FACE_HEIGHT) * facesPerRow + x / FACE_WIDTH;
+			if (x / FACE_WIDTH < facesPerRow && f < faceAt.length) {
+				return faceAt[f] + " facing " + faceFacing[f];
+			}
+			return null;
+		}
+		int phase = y < phasesTop ? -1 : (y - phasesTop) / CELL;
+		if (phase >= table.phaseCount()) {
+			return null;
+		}
+		String phaseName = phase < 0 ? "Now" : table.phaseName(phase);
+		if (x < NAME_WIDTH) {
+			return phaseName;
+		}
+		int stream = (x - NAME_WIDTH) / CELL;
+		if (stream >= table.streamCount()) {
+			return null;
+		}
+		State state = phase < 0 ? current.get(stream) : table.state(phase, stream);
+		return phaseName + ": " + table.streamName(stream) + (state == null ? "" : " " + state);
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		}
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		g.setFont(getFont());
+		FontMetrics fm = g.getFontMetrics();
+
+		paintFaces(g, clip, fm);
+
+		// Only the streams and phases inside the clip
+		int firstStream = Math.max(0, (clip.x - NAME_WIDTH) / CELL);
+		int lastStream = Math.min(table.streamCount() - 1, (clip.x + clip.width - NAME_WIDTH) / CELL);
+		if (clip.y < phasesTop && clip.y + clip.height > liveTop) {
+			paintRow(g, fm, liveTop, "Now", null, -1, firstStream, lastStream, clip);
+		}
+		int firstPhase = Math.max(0, (clip.y - phasesTop) / CELL);
+		int lastPhase = Math.min(table.phaseCount() - 1, (clip.y + clip.height - phasesTop) / CELL);
+		int running = currentPhase;
+		for (int p = firstPhase; p <= lastPhase; p++) {
+			paintRow(g, fm, phasesTop + p * CELL, table.phaseName(p), p == running ? activePhase : inactivePhase, p,
+					firstStream, lastStream, clip);
+		}
+	}
+
+	private void paintRow(Graphics g, FontMetrics fm, int y, String name, Color background, int phase,
+			int firstStream, int lastStream, Rectangle clip) {
+		if (clip.x < NAME_WIDTH) {
+			if (background != null) {
+				g.setColor(background);
+				g.fillRect(0, y, NAME_WIDTH, CELL);
+			}
+			g.setColor(Color.BLACK);
+			g.drawString(clip(name, fm, NAME_WIDTH - 4), 2, y + CELL - fm.getDescent() - 1);
+		}
+		for (int s = firstStream; s <= lastStream; s++) {
+			State state = phase < 0 ? current.get(s) : table.state(phase, s);
+			int x = NAME_WIDTH + s * CELL;
+			if (state != null) {
+				g.setColor(MyIntersectionMonitor.colourForState(state));
+				g.fillRect(x, y, CELL, CELL);
+			}
+			g.setColor(GRID);
+			g.drawRect(x, y, CELL, CELL);
+		}
+	}
+
+	private void paintFaces(Graphics g, Rectangle clip, FontMetrics fm) {
+		if (clip.y >= faceRows * FACE_HEIGHT) {
+			return;
+		}
+		int firstRow = clip.y / FACE_HEIGHT;
+		int lastRow = Math.min(faceRows - 1, (clip.y + clip.height) / FACE_HEIGHT);
+		int firstColumn = clip.x / FACE_WIDTH;
+		int lastColumn = Math.min(facesPerRow - 1, (clip.x + clip.width) / FACE_WIDTH);
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				int f = row * facesPerRow + column;
+				if (f < faceAt.length) {
+					paintFace(g, fm, f, column * FACE_WIDTH, row * FACE_HEIGHT);
+				}
+			}
+		}
+	}
+
+	private void paintFace(Graphics g, FontMetrics fm, int f, int x, int y) {
+		g.setColor(GRID);
+		g.drawRect(x + 1, y + 1, FACE_WIDTH - 2, FACE_HEIGHT - 2);
+		g.setColor(Color.BLACK);
+		g.drawString(clip(faceAt[f], fm, FACE_WIDTH - 4), x + 3, y + fm.getAscent() + 1);
+		g.drawString(clip(faceFacing[f], fm, FACE_WIDTH - 4), x + 3, y + 2 * fm.getAscent() + 1);
+		State shown = faceState(f);
+		State[] lamps = { State.RED, State.YELLOW, State.GREEN };
+		int lampY = y + FACE_HEIGHT - LAMP - 3;
+		for (int n = 0; n < lamps.length; n++) {
+			int lampX = x + 4 + n * (LAMP + 4);
+			g.setColor(lamps[n] == shown ? MyIntersectionMonitor.colourForState(lamps[n]) : Color.DARK_GRAY);
+			g.fillOval(lampX, lampY, LAMP, LAMP);
+		}
+	}
+
+	/**
+	 * @return what a face is showing: the most permissive state of its
+	 *         streams, or null if that isn't known
+	 */
+	private State faceState(int f) {
+		if (faceStreams[f] == null) {
+			return null;
+		}
+		State shown = null;
+		for (int s : faceStreams[f]) {
+			State state = current.get(s);
+			if (state != null && (shown == null || rank(state) > rank(shown))) {
+				shown = state;
+			}
+		}
+		return shown;
+	}
+
+	private static int rank(State state) {
+		switch (state) {
+		case GREEN:
+			return 3;
+		case YELLOW:
+			return 2;
+		case RED:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private Rectangle phaseRow(int phase) {
+		return new Rectangle(0, phasesTop + phase * CELL, getWidth(), CELL + 1);
+	}
+
+	private Rectangle faceBounds(int f) {
+		return new Rectangle((f % facesPerRow) * FACE_WIDTH, (f / facesPerRow) * FACE_HEIGHT, FACE_WIDTH, FACE_HEIGHT);
+	}
+
+	/**
+	 * @return the text, cut short with "..." if it's wider than width
+	 */
+	static String clip(String text, FontMetrics fm, int width) {
+		if (text == null || fm.stringWidth(text) <= width) {
+			return text == null ? "" : text;
+		}
+		int end = text.length();
+		while (end > 0 && fm.stringWidth(text.substring(0, end) + "...") > width) {
+			end--;
+		}
+		return text.substring(0, end) + "...";
+	}
+}
@@ -0,0 +1,250 @@
+package traffic.diy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.phaseplan.PhasePlan;
+import traffic.util.State;
+
+/**
+ * A phase plan compiled into flat arrays. Streams are numbered densely, each
+ * phase's states are one row of a byte table, and for every phase the streams
+ * whose state differs from the phase before it (cyclically) are worked out up
+ * front. A phase change then only needs to touch the streams that actually
+ * change, with no map lookups.
+ */
+public class PhaseTable {
+	/** Marks a stream that isn't part of a phase. */
+	private static final byte ABSENT = -1;
+	private static final State[] STATES = State.values();
+
+	private final int streamCount;
+	private final String[] streamNames;
+	private final String[] phaseNames;
+	/** State ordinals, phase by phase: row p starts at p * streamCount. */
+	private final byte[] table;
+	/** For each phase, the streams whose state changes on entering it. */
+	private final int[][] changes;
+	/** The live streams by number, or null if compiled from a description. */
+	private final TrafficStream[] streams;
+	private final List<Phase> phases;
+
+	private PhaseTable(String[] streamNames, String[] phaseNames, byte[] table, TrafficStream[] streams,
+			List<Phase> phases) {
+		this.streamCount = streamNames.length;
+		this.streamNames = streamNames;
+		this.phaseNames = phaseNames;
+		this.table = table;
+		this.streams = streams;
+		this.phases = phases;
+
+		int phaseCount = phaseNames.length;
+		this.changes = new int[phaseCount][];
+		int[] changed = new int[streamCount];
+		for (int p = 0; p < phaseCount; p++) {
+			int row = p * streamCount;
+			int prev = ((p + phaseCount - 1) % phaseCount) * streamCount;
+			int n = 0;
+			for (int s = 0; s < streamCount; s++) {
+				if (table[row + s] != table[prev + s]) {
+					changed[n++] = s;
+				}
+			}
+			changes[p] = Arrays.copyOf(changed, n);
+		}
+	}
+
+	/**
+	 * Compile a live plan, numbering its streams in the order they're first
+	 * met. That's the order a Phase's map happens to give them in, so it only
+	 * suits a plan with no description to match.
+	 *
+	 * @param plan
+	 *            the plan
+	 * @return its table
+	 */
+	public static PhaseTable compile(PhasePlan plan) {
+		return compile(plan, null);
+	}
+
+	/**
+	 * Compile a live plan built from a description, numbering its streams as
+	 * the description does, so the description's stream indexes (in faces,
+	 * say) can be used with the table. Streams are matched by name; any the
+	 * description doesn't name are numbered after its own, in the order
+	 * they're first met.
+	 *
+	 * @param plan
+	 *            the plan
+	 * @param spec
+	 *            the description it was built from, or null for none
+	 * @return its table
+	 */
+	public static PhaseTable compile(PhasePlan plan, IntersectionSpec spec) {
+		List<Phase> phases = new ArrayList<Phase>(plan.phases());
+		int named = spec == null ? 0 : spec.getStreams().size();
+		TrafficStream[] byIndex = new TrafficStream[named];
+		List<TrafficStream> others = new ArrayList<TrafficStream>();
+		Map<TrafficStream, Integer> numbers = new IdentityHashMap<TrafficStream, Integer>();
+		for (Phase p : phases) {
+			for (TrafficStream ts : p.getTrafficStreams()) {
+				if (numbers.containsKey(ts)) {
+					continue;
+				}
+				int n = spec == null ? -1 : spec.streamIndex(ts.getname());
+				if (n >= 0 && byIndex[n] == null) {
+					byIndex[n] = ts;
+					numbers.put(ts, n);
+				} else {
+					numbers.put(ts, -1);
+					others.add(ts);
+				}
+			}
+		}
+		List<TrafficStream> streams = new ArrayList<TrafficStream>();
+		for (TrafficStream ts : byIndex) {
+			if (ts != null) {
+				numbers.put(ts, streams.size());
+				streams.add(ts);
+			}
+		}
+		for (TrafficStream ts : others) {
+			numbers.put(ts, streams.size());
+			streams.add(ts);
+		}
+
+		int streamCount = streams.size();
+		String[] streamNames = new String[streamCount];
+		for (int s = 0; s < streamCount; s++) {
+			streamNames[s] = streams.get(s).getname();
+		}
+		String[] names = new String[phases.size()];
+		byte[] table = new byte[phases.size() * streamCount];
+		Arrays.fill(table, ABSENT);
+		for (int p = 0; p < phases.size(); p++) {
+			Phase phase = phases.get(p);
+			names[p] = phase.getName();
+			Map<TrafficStream, State> states = phase.streamStates();
+			for (TrafficStream ts : phase.getTrafficStreams()) {
+				State state = states.get(ts);
+				if (state != null) {
+					table[p * streamCount + numbers.get(ts)] = (byte) state.ordinal();
+				}
+			}
+		}
+		return new PhaseTable(streamNames, names, table, streams.toArray(new TrafficStream[streamCount]), phases);
+	}
+
+	/**
+	 * Compile a plan from a description. Streams keep the description's
+	 * numbering.
+	 *
+	 * @param spec
+	 *            the intersection
+	 * @param planIndex
+	 *            which of its plans
+	 * @return its table
+	 */
+	public static PhaseTable compile(IntersectionSpec spec, int planIndex) {
+		List<IntersectionSpec.PhaseSpec> phases = spec.getPlans().get(planIndex).getPhases();
+		int streamCount = spec.getStreams().size();
+		String[] streamNames = new String[streamCount];
+		for (int s = 0; s < streamCount; s++) {
+			streamNames[s] = spec.getStreams().get(s).getName();
+		}
+		String[] names = new String[phases.size()];
+		byte[] table = new byte[phases.size() * streamCount];
+		for (int p = 0; p < phases.size(); p++) {
+			IntersectionSpec.PhaseSpec ps = phases.get(p);
+			names[p] = ps.getName();
+			for (int s = 0; s < streamCount; s++) {
+				table[p * streamCount + s] = (byte) ps.getState(s).ordinal();
+			}
+		}
+		return new PhaseTable(streamNames, names, table, null, null);
+	}
+
+	public int streamCount() {
+		return streamCount;
+	}
+
+	public int phaseCount() {
+		return phaseNames.length;
+	}
+
+	public String streamName(int stream) {
+		return streamNames[stream];
+	}
+
+	public String phaseName(int phase) {
+		return phaseNames[phase];
+	}
+
+	/**
+	 * @param phase
+	 *            index of the phase
+	 * @param stream
+	 *            number of the stream
+	 * @return the stream's state during the phase, or null if the phase doesn't
+	 *         include it
+	 */
+	public State state(int phase, int stream) {
+		byte b = table[phase * streamCount + stream];
+		return b == ABSENT ? null : STATES[b];
+	}
+
+	/**
+	 * Set a bit for every stream in a phase in the mask for its state.
+	 *
+	 * @param phase
+	 *            index of the phase
+	 * @param masks
+	 *            one bitset per State, indexed by ordinal, each with a long for
+	 *            every 64 streams; cleared first
+	 */
+	public void stateMasks(int phase, long[][] masks) {
+		for (long[] mask : masks) {
+			Arrays.fill(mask, 0);
+		}
+		int row = phase * streamCount;
+		for (int s = 0; s < streamCount; s++) {
+			byte b = table[row + s];
+			if (b != ABSENT) {
+				masks[b][s >>> 6] |= 1L << s;
+			}
+		}
+	}
+
+	/**
+	 * @param phase
+	 *            index of the phase
+	 * @return numbers of the streams whose state on entering the phase differs
+	 *         from the phase before it. Not to be modified.
+	 */
+	public int[] changesOnEntry(int phase) {
+		return changes[phase];
+	}
+
+	/**
+	 * @param stream
+	 *            number of the stream
+	 * @return the live stream, or null if compiled from a description
+	 */
+	public TrafficStream stream(int stream) {
+		return streams == null ? null : streams[stream];
+	}
+
+	/**
+	 * @param phase
+	 *            index of the phase
+	 * @return the live phase, or null if compiled from a description
+	 */
+	public Phase phase(int phase) {
+		return phases == null ? null : phases.get(phase);
+	}
+}
@@ -0,0 +1,60 @@
+package traffic.diy;
+
+/**
+ * Vehicles arriving in bunches, as they do downstream of another set of
+ * signals: a platoon of a fixed size every period, its vehicles a fixed
+ * headway apart.
+ */
+public class PlatoonArrivals implements ArrivalSource {
+	private final long period;
+	private final int size;
+	private final long headway;
+	private final long[] offset;
+	/** How many vehicles each stream has handed out. */
+	private final long[] count;
+
+	/**
+	 * @param streams
+	 *            how many streams
+	 * @param period
+	 *            milliseconds between the starts of platoons
+	 * @param size
+	 *            vehicles in each platoon
+	 * @param headway
+	 *            milliseconds between vehicles within a platoon
+	 */
+	public PlatoonArrivals(int streams, long period, int size, long headway) {
+		if (period <= 0 || size < 1 || (size - 1) * headway >= period) {
+			throw new IllegalArgumentException("Platoons must fit within their period");
+		}
+		this.period = period;
+		this.size = size;
+		this.headway = headway;
+		this.offset = new long[streams];
+		this.count = new long[streams];
+	}
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @param offset
+	 *            when, in milliseconds, the stream's first platoon arrives
+	 */
+	public PlatoonArrivals setOffset(int stream, long offset) {
+		this.offset[stream] = offset;
+		return this;
+	}
+
+	/**
+	 * @return the average rate this gives on each stream
+	 */
+	public double vehiclesPerHour() {
+		return size * 3600000.0 / period;
+	}
+
+	@Override
+	public long nextArrival(int stream) {
+		long n = count[stream]++;
+		return offset[stream] + (n / size) * period + (n % size) * headway;
+	}
+}
@@ -0,0 +1,56 @@
+package traffic.diy;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Vehicles arriving independently at random, at a steady average rate per
+ * stream. Seeded so a run can be repeated exactly.
+ */
+public class PoissonArrivals implements ArrivalSource {
+	private final Random random;
+	/** Mean gap between vehicles on each stream in milliseconds. */
+	private final double[] meanGap;
+	private final long[] last;
+
+	/**
+	 * @param seed
+	 *            random seed
+	 * @param streams
+	 *            how many streams
+	 * @param vehiclesPerHour
+	 *            the rate on every stream, until changed by
+	 *            {@link #setRate(int, double)}
+	 */
+	public PoissonArrivals(long seed, int streams, double vehiclesPerHour) {
+		this.random = new Random(seed);
+		this.meanGap = new double[streams];
+		this.last = new long[streams];
+		Arrays.fill(meanGap, gap(vehiclesPerHour));
+	}
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @param vehiclesPerHour
+	 *            its average rate; 0 for no traffic
+	 */
+	public PoissonArrivals setRate(int stream, double vehiclesPerHour) {
+		meanGap[stream] = gap(vehiclesPerHour);
+		return this;
+	}
+
+	@Override
+	public long nextArrival(int stream) {
+		if (meanGap[stream] == Double.POSITIVE_INFINITY || last[stream] == Long.MAX_VALUE) {
+			return last[stream] = Long.MAX_VALUE;
+		}
+		// Exponential gaps between arrivals make a Poisson process
+		last[stream] += (long) (-Math.log(1 - random.nextDouble()) * meanGap[stream]);
+		return last[stream];
+	}
+
+	private static double gap(double vehiclesPerHour) {
+		return vehiclesPerHour <= 0 ? Double.POSITIVE_INFINITY : 3600000 / vehiclesPerHour;
+	}
+}
@@ -0,0 +1,179 @@
+package traffic.diy;
+
+import java.util.Arrays;
+
+import traffic.util.State;
+
+/**
+ * The simulated counterpart of a detector on each stream. Vehicles from an
+ * {@link ArrivalSource} join a queue on their stream and leave it one every
+ * saturation headway while the stream is GREEN, or OFF and so left to give
+ * way by itself. There's demand on a stream while its queue isn't empty, so an
+ * actuated phase stays green until its queues have cleared or it reaches its
+ * max green.
+ *
+ * Registers itself with the {@link PhaseController} it's given to, to follow
+ * which streams are green. Queues are only brought up to date when asked
+ * about, so quiet streams cost nothing.
+ *
+ * Only simulated runs are driven by queues. Live actuated plans built by
+ * {@link IntersectionSpec#build()} still get a RandomDetector per stream:
+ * {@link traffic.misc.Detector} can be named, but the methods a plan calls on
+ * it come from the traffic library, so there's nothing to implement a queue
+ * behind.
+ */
+public class QueueDemand implements DemandModel, SignalListener {
+	private final ArrivalSource arrivals;
+	private final long headway;
+
+	private final long[] nextArrival;
+	private final boolean[] green;
+	/** Earliest time the next vehicle can leave while green. */
+	private final long[] nextDeparture;
+	/** How far each stream has been brought up to date. */
+	private final long[] updated;
+	/** Arrival times of the vehicles queued on each stream, oldest first. */
+	private final long[][] queue;
+	private final int[] head;
+	private final int[] length;
+	private final long[] served;
+
+	/**
+	 * @param arrivals
+	 *            where vehicles come from
+	 * @param streams
+	 *            how many streams
+	 * @param timing
+	 *            gives the saturation headway
+	 */
+	public QueueDemand(ArrivalSource arrivals, int streams, SimulationTiming timing) {
+		this.arrivals = arrivals;
+		this.headway = timing.getHeadway();
+		this.nextArrival = new long[streams];
+		this.green = new boolean[streams];
+		this.nextDeparture = new long[streams];
+		this.updated = new long[streams];
+		this.queue = new long[streams][16];
+		this.head = new int[streams];
+		this.length = new int[streams];
+		this.served = new long[streams];
+		for (int s = 0; s < streams; s++) {
+			nextArrival[s] = arrivals.nextArrival(s);
+		}
+		Arrays.fill(updated, Long.MIN_VALUE);
+	}
+
+	@Override
+	public boolean hasDemand(int stream, long time) {
+		return queueLength(stream, time) > 0;
+	}
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @param time
+	 *            simulated time in milliseconds, no earlier than the last time
+	 *            asked
+	 * @return how many vehicles are waiting on the stream
+	 */
+	public int queueLength(int stream, long time) {
+		update(stream, time);
+		return length[stream];
+	}
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @return how many vehicles have left the stream's queue so far
+	 */
+	public long served(int stream) {
+		return served[stream];
+	}
+
+	@Override
+	public void phaseChanged(long time, int phase) {
+	}
+
+	@Override
+	public void streamChanged(long time, int stream, State state) {
+		update(stream, time);
+		boolean nowGreen = state == State.GREEN || state == State.OFF;
+		if (nowGreen && !green[stream]) {
+			// The first vehicle needs a headway to get moving
+			nextDeparture[stream] = time + headway;
+		}
+		green[stream] = nowGreen;
+	}
+
+	/**
+	 * Hook for subclasses, called as each vehicle leaves a queue.
+	 *
+	 * @param stream
+	 *            index of the stream
+	 * @param arrived
+	 *            when it joined the queue
+	 * @param departed
+	 *            when it left
+	 */
+	protected void departed(int stream, long arrived, long departed) {
+	}
+
+	/**
+	 * Hook for subclasses, called as each vehicle joins a queue.
+	 *
+	 * @param stream
+	 *            index of the stream
+	 * @param time
+	 *            when it arrived
+	 * @param length
+	 *            the queue's length including it
+	 */
+	protected void arrived(int stream, long time, int length) {
+	}
+
+	/**
+	 * Play arrivals and departures on a stream forward to a time.
+	 */
+	private void update(int s, long time) {
+		if (time < updated[s]) {
+			return;
+		}
+		updated[s] = time;
+		while (true) {
+			long a = nextArrival[s];
+			long d = green[s] && length[s] > 0 ? nextDeparture[s] : Long.MAX_VALUE;
+			if (a <= d && a <= time) {
+				if (length[s] == 0 && green[s]) {
+					// Nobody ahead of it, so it can go as soon as it's here
+					nextDeparture[s] = Math.max(nextDeparture[s], a);
+				}
+				push(s, a);
+				arrived(s, a, length[s]);
+				nextArrival[s] = arrivals.nextArrival(s);
+			} else if (d <= time) {
+				long arrivedAt = queue[s][head[s]];
+				head[s] = (head[s] + 1) % queue[s].length;
+				length[s]--;
+				served[s]++;
+				departed(s, arrivedAt, d);
+				nextDeparture[s] = d + headway;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void push(int s, long time) {
+		long[] q = queue[s];
+		if (length[s] == q.length) {
+			long[] grown = new long[q.length * 2];
+			for (int n = 0; n < length[s]; n++) {
+				grown[n] = q[(head[s] + n) % q.length];
+			}
+			queue[s] = q = grown;
+			head[s] = 0;
+		}
+		q[(head[s] + length[s]) % q.length] = time;
+		length[s]++;
+	}
+}
@@ -0,0 +1,28 @@
+package traffic.diy;
+
+import java.util.Random;
+
+/**
+ * Coin-flip demand, the simulated counterpart of RandomDetector. Seeded so a
+ * run can be repeated exactly.
+ */
+public class RandomDemand implements DemandModel {
+	private final Random random;
+	private final double probability;
+
+	/**
+	 * @param seed
+	 *            random seed
+	 * @param probability
+	 *            chance of demand each time a stream is checked
+	 */
+	public RandomDemand(long seed, double probability) {
+		this.random = new Random(seed);
+		this.probability = probability;
+	}
+
+	@Override
+	public boolean hasDemand(int stream, long time) {
+		return random.nextDouble() < probability;
+	}
+}
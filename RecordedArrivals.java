@@ -0,0 +1,101 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import traffic.load.TrafficSyntaxException;
+
+/**
+ * Replays vehicle arrivals logged at a real intersection. The log is a text
+ * file with one vehicle per line: the time in milliseconds and the name of the
+ * stream it arrived on, separated by a tab. Blank lines and lines starting with
+ * // are ignored, as in description files. Lines needn't be in time order.
+ */
+public class RecordedArrivals implements ArrivalSource {
+	private final long[][] times;
+	private final int[] next;
+
+	/**
+	 * Read a log of arrivals.
+	 *
+	 * @param spec
+	 *            the intersection the log was recorded at, to look up stream
+	 *            names
+	 * @param br
+	 *            the log
+	 * @throws TrafficSyntaxException
+	 *             if a line is malformed or names an unknown stream
+	 * @throws IOException
+	 */
+	public RecordedArrivals(IntersectionSpec spec, BufferedReader br) throws TrafficSyntaxException, IOException {
+		int streams = spec.getStreams().size();
+		long[][] read = new long[streams][16];
+		int[] counts = new int[streams];
+		TabTokenizer scan = new TabTokenizer(br);
+		while (scan.nextLine() != null) {
+			String field = scan.next();
+			long time;
+			try {
+				time = Long.parseLong(field);
+			} catch (NumberFormatException e) {
+				throw scan.error("Expected a time in milliseconds, found " + field);
+			}
+			String name = scan.next();
+			int s = spec.streamIndex(name);
+			if (s < 0) {
+				throw scan.error("Unknown TrafficStream: " + name);
+			}
+			if (counts[s] == read[s].length) {
+				read[s] = Arrays.copyOf(read[s], counts[s] * 2);
+			}
+			read[s][counts[s]++] = time;
+		}
+		this.times = new long[streams][];
+		for (int s = 0; s < streams; s++) {
+			times[s] = Arrays.copyOf(read[s], counts[s]);
+			Arrays.sort(times[s]);
+		}
+		this.next = new int[streams];
+	}
+
+	/**
+	 * Replay the same log again from the start. The log itself is shared, so
+	 * copies are cheap and can be used on different threads.
+	 *
+	 * @param other
+	 *            the arrivals to copy
+	 */
+	public RecordedArrivals(RecordedArrivals other) {
+		this.times = other.times;
+		this.next = new int[times.length];
+	}
+
+	/**
+	 * Read a log of arrivals from a file.
+	 */
+	public static RecordedArrivals load(IntersectionSpec spec, String fileName)
+			throws TrafficSyntaxException, IOException {
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		try {
+			return new RecordedArrivals(spec, br);
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @return how many vehicles were logged on it
+	 */
+	public int count(int stream) {
+		return times[stream].length;
+	}
+
+	@Override
+	public long nextArrival(int stream) {
+		return next[stream] < times[stream].length ? times[stream][next[stream]++] : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,46 @@
+package traffic.diy;
+
+import java.util.Random;
+
+/**
+ * Runs thousands of copies of the demo intersection on one
+ * {@link IntersectionScheduler} and reports throughput and timer lateness.
+ *
+ * Usage: SchedulerBenchmark [intersections] [threads] [timeScale] [seconds]
+ */
+public class SchedulerBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		double timeScale = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+		IntersectionSpec spec = ModelIntersection.fullyActivatedSpec();
+		SimulationTiming timing = new SimulationTiming();
+		IntersectionScheduler scheduler = new IntersectionScheduler(threads, timeScale);
+		IntersectionScheduler.Handle[] handles = new IntersectionScheduler.Handle[count];
+		Random random = new Random(1);
+		for (int n = 0; n < count; n++) {
+			handles[n] = scheduler.add(new PhaseController(spec, 0, timing, new RandomDemand(n, 0.5)));
+		}
+		// Stagger the starts over one green so changes don't all land together
+		for (int n = 0; n < count; n++) {
+			handles[n].start(random.nextInt((int) timing.getGreen()));
+		}
+
+		Thread.sleep(1000);
+		long firedBefore = scheduler.eventsFired();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long fired = scheduler.eventsFired() - firedBefore;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		Histogram late = scheduler.lateness();
+		scheduler.shutdown();
+
+		System.out.println(String.format("%d intersections, %d threads, %.0fx real time", count, threads, timeScale));
+		System.out.println(String.format("%.0f changes/s", fired / elapsed));
+		System.out.println(String.format("lateness us: mean %.0f  p50 %d  p99 %d  p99.9 %d  max %d", late.mean(),
+				late.percentile(50), late.percentile(99), late.percentile(99.9), late.max()));
+	}
+}
@@ -0,0 +1,92 @@
+package traffic.diy;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import traffic.util.State;
+
+/**
+ * Hands phase and stream changes to any number of {@link SignalListener}s, such
+ * as the monitor, metrics and a recorder. Unlike Observable there's no lock on
+ * publishing and nothing is boxed: events are passed as a time, an index and a
+ * State.
+ *
+ * Subscribers are kept in an array that's replaced, never changed, when someone
+ * subscribes or unsubscribes, so publishing just reads the current array.
+ * Subscribing from another thread while events are being published is safe; a
+ * new subscriber sees events from some point after it subscribed. Listeners
+ * are called on the publishing thread, in the order they subscribed.
+ */
+public class SignalBus implements SignalListener {
+
+	private static final SignalListener[] NONE = new SignalListener[0];
+
+	private final AtomicReference<SignalListener[]> subscribers = new AtomicReference<SignalListener[]>(NONE);
+
+	/**
+	 * @param l
+	 *            the listener to add; adding one twice means it's called twice
+	 */
+	public void subscribe(SignalListener l) {
+		if (l == null) {
+			throw new IllegalArgumentException("No listener");
+		}
+		SignalListener[] current;
+		SignalListener[] next;
+		do {
+			current = subscribers.get();
+			next = Arrays.copyOf(current, current.length + 1);
+			next[current.length] = l;
+		} while (!subscribers.compareAndSet(current, next));
+	}
+
+	/**
+	 * @param l
+	 *            the listener to remove (once, if it was added more than once)
+	 * @return whether it was subscribed
+	 */
+	public boolean unsubscribe(SignalListener l) {
+		SignalListener[] current;
+		SignalListener[] next;
+		do {
+			current = subscribers.get();
+			int at = -1;
+			for (int n = 0; n < current.length && at < 0; n++) {
+				if (current[n] == l) {
+					at = n;
+				}
+			}
+			if (at < 0) {
+				return false;
+			}
+			next = new SignalListener[current.length - 1];
+			System.arraycopy(current, 0, next, 0, at);
+			System.arraycopy(current, at + 1, next, at, next.length - at);
+		} while (!subscribers.compareAndSet(current, next));
+		return true;
+	}
+
+	public int subscriberCount() {
+		return subscribers.get().length;
+	}
+
+	/**
+	 * Publish a phase starting.
+	 */
+	@Override
+	public void phaseChanged(long time, int phase) {
+		for (SignalListener l : subscribers.get()) {
+			l.phaseChanged(time, phase);
+		}
+	}
+
+	/**
+	 * Publish a stream changing state.
+	 */
+	@Override
+	public void streamChanged(long time, int stream, State state) {
+		for (SignalListener l : subscribers.get()) {
+			l.streamChanged(time, stream, state);
+		}
+	}
+}
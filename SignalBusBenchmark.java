@@ -0,0 +1,113 @@
+package traffic.diy;
+
+import java.util.Observable;
+import java.util.Observer;
+
+import traffic.util.State;
+
+/**
+ * Compares publishing stream changes through Observable, the way the traffic
+ * classes do, against {@link SignalBus}: time per event with a few consumers
+ * (standing in for the monitor, metrics and a recorder), from one publishing
+ * thread and from several at once.
+ *
+ * Usage: SignalBusBenchmark [consumers] [events] [threads]
+ */
+public class SignalBusBenchmark {
+
+	/** An Observable that can be told to notify, like a TrafficStream. */
+	private static class Source extends Observable {
+		void publish(State state) {
+			setChanged();
+			notifyObservers(state);
+		}
+	}
+
+	/** Counts what it's told so the work can't be optimised away. */
+	private static class Consumer implements Observer, SignalListener {
+		long seen;
+
+		@Override
+		public void update(Observable o, Object arg) {
+			seen += ((State) arg).ordinal() + 1;
+		}
+
+		@Override
+		public void phaseChanged(long time, int phase) {
+			seen += phase;
+		}
+
+		@Override
+		public void streamChanged(long time, int stream, State state) {
+			seen += state.ordinal() + 1;
+		}
+	}
+
+	private static final State[] STATES = { State.GREEN, State.YELLOW, State.RED };
+
+	public static void main(String[] args) throws InterruptedException {
+		int consumers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		final int events = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		final Source source = new Source();
+		final SignalBus bus = new SignalBus();
+		for (int n = 0; n < consumers; n++) {
+			Consumer c = new Consumer();
+			source.addObserver(c);
+			bus.subscribe(c);
+		}
+
+		Runnable observable = new Runnable() {
+
+			@Override
+			public void run() {
+				for (int e = 0; e < events; e++) {
+					source.publish(STATES[e % STATES.length]);
+				}
+			}
+		};
+		Runnable typed = new Runnable() {
+
+			@Override
+			public void run() {
+				for (int e = 0; e < events; e++) {
+					bus.streamChanged(e, e & 63, STATES[e % STATES.length]);
+				}
+			}
+		};
+
+		// Warm up
+		time(observable, 1);
+		time(typed, 1);
+
+		System.out.println(String.format("%d consumers, %d events per thread", consumers, events));
+		System.out.println(String.format("%-12s %14s %14s", "", "1 thread ns", threads + " threads ns"));
+		report("Observable", time(observable, 1), time(observable, threads), events);
+		report("SignalBus", time(typed, 1), time(typed, threads), events);
+	}
+
+	private static void report(String label, long single, long contended, int events) {
+		System.out.println(String.format("%-12s %14.1f %14.1f", label, (double) single / events,
+				(double) contended / events));
+	}
+
+	/**
+	 * @return wall time in nanoseconds to run the task on that many threads
+	 *         at once
+	 */
+	private static long time(Runnable task, int threads) throws InterruptedException {
+		Thread[] running = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			running[t] = new Thread(task);
+		}
+		long start = System.nanoTime();
+		for (Thread t : running) {
+			t.start();
+		}
+		for (Thread t : running) {
+			t.join();
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,31 @@
+package traffic.diy;
+
+import traffic.util.State;
+
+/**
+ * Told about phase and stream state changes of a simulated intersection.
+ */
+public interface SignalListener {
+
+	/**
+	 * A new phase has started.
+	 *
+	 * @param time
+	 *            simulated time in milliseconds
+	 * @param phase
+	 *            index of the phase in its plan
+	 */
+	void phaseChanged(long time, int phase);
+
+	/**
+	 * A stream has changed state.
+	 *
+	 * @param time
+	 *            simulated time in milliseconds
+	 * @param stream
+	 *            index of the stream
+	 * @param state
+	 *            its new state
+	 */
+	void streamChanged(long time, int stream, State state);
+}
@@ -0,0 +1,262 @@
+package traffic.diy;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import traffic.util.State;
+
+/**
+ * Reads a log written by {@link SignalRecorder}. Records are numbered from 0
+ * in the order they were written; since they're all the same size, any one can
+ * be read directly, and the record at a given time found with a binary search
+ * rather than by reading everything before it.
+ *
+ * Times are in milliseconds. A version 2 log stores them relative to its first
+ * event, and they're read back added to the wall clock time recording started,
+ * so the first event reads back at that time whatever clock it was published
+ * on.
+ */
+public class SignalLog implements Closeable {
+
+	private static final int CHUNK_RECORDS = 4096;
+
+	private final FileChannel in;
+	private final int headerBytes;
+	private final String name;
+	private final int streams;
+	private final int phases;
+	private final long started;
+	/** Added to each stored time: the start for version 2 logs, else 0. */
+	private final long base;
+	/** The log's State dictionary. */
+	private final State[] states;
+	private final long size;
+
+	/**
+	 * @param f
+	 *            the log
+	 * @throws IOException
+	 *             if it can't be read or isn't a signal log
+	 */
+	public SignalLog(File f) throws IOException {
+		in = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer fixed = ByteBuffer.allocate(8);
+			readFully(fixed, 0);
+			if (fixed.getInt() != SignalRecorder.MAGIC) {
+				throw new IOException("Not a signal log");
+			}
+			short version = fixed.getShort();
+			if (version < 1 || version > SignalRecorder.VERSION) {
+				throw new IOException("Unsupported signal log version " + version);
+			}
+			headerBytes = fixed.getShort();
+			ByteBuffer header = ByteBuffer.allocate(headerBytes);
+			readFully(header, 0);
+			header.position(8);
+			streams = header.getInt();
+			phases = header.getInt();
+			started = header.getLong();
+			base = version >= 2 ? started : 0;
+			byte[] nameBytes = new byte[header.getShort()];
+			header.get(nameBytes);
+			name = new String(nameBytes, StandardCharsets.UTF_8);
+			states = new State[header.get() & 0xff];
+			for (int n = 0; n < states.length; n++) {
+				byte[] stateName = new byte[header.get() & 0xff];
+				header.get(stateName);
+				states[n] = State.valueOf(new String(stateName, StandardCharsets.UTF_8));
+			}
+			// Ignore a partial record left by a crash
+			size = (in.size() - headerBytes) / SignalRecorder.RECORD_BYTES;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		} catch (RuntimeException e) {
+			// Running off the end of the header, unknown State names...
+			in.close();
+			throw new IOException("Corrupt signal log header: " + e, e);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int streamCount() {
+		return streams;
+	}
+
+	public int phaseCount() {
+		return phases;
+	}
+
+	/**
+	 * @return when recording started, in wall clock milliseconds
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * @return how many records there are
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @param record
+	 *            a record number
+	 * @return the time of that record
+	 * @throws IOException
+	 */
+	public long time(long record) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		readFully(buf, offset(record));
+		return base + buf.getLong();
+	}
+
+	/**
+	 * @return the time of the first record, or 0 if there are none
+	 * @throws IOException
+	 */
+	public long firstTime() throws IOException {
+		return size == 0 ? 0 : time(0);
+	}
+
+	/**
+	 * @return the time of the last record, or 0 if there are none
+	 * @throws IOException
+	 */
+	public long lastTime() throws IOException {
+		return size == 0 ? 0 : time(size - 1);
+	}
+
+	/**
+	 * @param time
+	 *            a time in the log
+	 * @return the first record at or after that time, or size() if there are
+	 *         none
+	 * @throws IOException
+	 */
+	public long find(long time) throws IOException {
+		long low = 0;
+		long high = size;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (time(mid) < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Work out where things stood just before a record, by reading backwards
+	 * from it until every stream and the phase are known.
+	 *
+	 * @param record
+	 *            a record number
+	 * @param streamStates
+	 *            filled in with each stream's last state, or null for streams
+	 *            that hadn't changed yet
+	 * @return the phase running, or -1 if none had started
+	 * @throws IOException
+	 */
+	public int stateBefore(long record, State[] streamStates) throws IOException {
+		Arrays.fill(streamStates, null);
+		int unknown = streamStates.length;
+		int phase = -1;
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_RECORDS * SignalRecorder.RECORD_BYTES);
+		long end = Math.min(record, size);
+		while (end > 0 && (unknown > 0 || phase < 0)) {
+			long start = Math.max(0, end - CHUNK_RECORDS);
+			readRecords(buf, start, end);
+			for (int n = (int) (end - start) - 1; n >= 0; n--) {
+				int at = n * SignalRecorder.RECORD_BYTES;
+				int index = buf.getInt(at + 8);
+				if (buf.get(at + 12) == SignalRecorder.PHASE) {
+					if (phase < 0) {
+						phase = index;
+					}
+				} else if (index < streamStates.length && streamStates[index] == null) {
+					streamStates[index] = states[buf.get(at + 13)];
+					unknown--;
+				}
+			}
+			end = start;
+		}
+		return phase;
+	}
+
+	/**
+	 * Pass a run of records to a listener, in order.
+	 *
+	 * @param from
+	 *            the first record
+	 * @param to
+	 *            the record after the last one
+	 * @param l
+	 *            told about each
+	 * @throws IOException
+	 */
+	public void replay(long from, long to, SignalListener l) throws IOException {
+		to = Math.min(to, size);
+		if (from >= to) {
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(to - from, CHUNK_RECORDS) * SignalRecorder.RECORD_BYTES);
+		for (long start = from; start < to; start += CHUNK_RECORDS) {
+			long end = Math.min(to, start + CHUNK_RECORDS);
+			readRecords(buf, start, end);
+			while (buf.hasRemaining()) {
+				long time = base + buf.getLong();
+				int index = buf.getInt();
+				byte kind = buf.get();
+				byte state = buf.get();
+				buf.getShort();
+				if (kind == SignalRecorder.PHASE) {
+					l.phaseChanged(time, index);
+				} else {
+					l.streamChanged(time, index, states[state]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private long offset(long record) {
+		return headerBytes + record * SignalRecorder.RECORD_BYTES;
+	}
+
+	private void readRecords(ByteBuffer buf, long start, long end) throws IOException {
+		buf.clear();
+		buf.limit((int) (end - start) * SignalRecorder.RECORD_BYTES);
+		readFully(buf, offset(start));
+	}
+
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = in.read(buf, position);
+			if (n < 0) {
+				throw new EOFException("Truncated signal log");
+			}
+			position += n;
+		}
+		buf.flip();
+	}
+}
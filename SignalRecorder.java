@@ -0,0 +1,223 @@
+package traffic.diy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import traffic.util.State;
+
+/**
+ * Writes every phase and stream change it's told about to an append-only
+ * binary log, to be read back with {@link SignalLog}. Subscribe one to an
+ * intersection's {@link SignalBus}.
+ *
+ * The log starts with a header: magic number, format version, header length,
+ * stream and phase counts, the wall clock time recording started, the
+ * intersection's name and a dictionary of State names (so the log survives
+ * reordering of State). Then come fixed-size {@link #RECORD_BYTES} byte
+ * records, each the event time, the stream or phase index, the kind of event
+ * and the state's index in the dictionary. Because every record is the same
+ * size, a reader can find any moment in a long log with a binary search.
+ *
+ * Events are stored at the time their publisher gives them, so a recording of
+ * a {@link PhaseController}'s simulated clock replays on that clock. From
+ * version 2 times are stored relative to the first event, and read back added
+ * to the time recording started. Version 1 logs hold each event's time as it
+ * arrived. Live intersections publish through an {@link ObservableBridge},
+ * whose clock never goes backwards.
+ *
+ * Records are gathered in a buffer and written when it fills, on
+ * {@link #flush()} and on {@link #close()}. A log cut short by a crash just
+ * loses its last, partial record. If a write fails, recording stops and
+ * {@link #failed(IOException)} is called.
+ */
+public class SignalRecorder implements SignalListener, Closeable {
+
+	/** "TSIG" */
+	public static final int MAGIC = 0x54534947;
+	public static final short VERSION = 2;
+	public static final int RECORD_BYTES = 16;
+
+	static final byte PHASE = 0;
+	static final byte STREAM = 1;
+
+	private static final int BUFFER_RECORDS = 4096;
+
+	private final FileChannel out;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES);
+	/** The first event's time, which the stored times are relative to. */
+	private long origin;
+	private long recorded;
+	private IOException failure;
+
+	/**
+	 * Start a new log, replacing any file already there.
+	 *
+	 * @param f
+	 *            the file to write
+	 * @param name
+	 *            the intersection's name
+	 * @param streams
+	 *            how many streams it has
+	 * @param phases
+	 *            how many phases its plan has
+	 * @throws IOException
+	 */
+	public SignalRecorder(File f, String name, int streams, int phases) throws IOException {
+		out = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		State[] states = State.values();
+		byte[][] stateNames = new byte[states.length][];
+		int length = 4 + 2 + 2 + 4 + 4 + 8 + 2 + nameBytes.length + 1;
+		for (int n = 0; n < states.length; n++) {
+			stateNames[n] = states[n].name().getBytes(StandardCharsets.UTF_8);
+			length += 1 + stateNames[n].length;
+		}
+		if (length > Short.MAX_VALUE) {
+			out.close();
+			throw new IOException("Intersection name too long to record");
+		}
+		ByteBuffer header = ByteBuffer.allocate(length);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putShort((short) length);
+		header.putInt(streams);
+		header.putInt(phases);
+		header.putLong(System.currentTimeMillis());
+		header.putShort((short) nameBytes.length);
+		header.put(nameBytes);
+		header.put((byte) states.length);
+		for (byte[] s : stateNames) {
+			header.put((byte) s.length);
+			header.put(s);
+		}
+		header.flip();
+		while (header.hasRemaining()) {
+			out.write(header);
+		}
+	}
+
+	/**
+	 * Start a new log for an intersection's plan.
+	 *
+	 * @param f
+	 *            the file to write
+	 * @param name
+	 *            the intersection's name
+	 * @param table
+	 *            its compiled plan
+	 * @throws IOException
+	 */
+	public SignalRecorder(File f, String name, PhaseTable table) throws IOException {
+		this(f, name, table.streamCount(), table.phaseCount());
+	}
+
+	@Override
+	public void phaseChanged(long time, int phase) {
+		append(time, phase, PHASE, -1);
+	}
+
+	@Override
+	public void streamChanged(long time, int stream, State state) {
+		append(time, stream, STREAM, state.ordinal());
+	}
+
+	/**
+	 * @return how many events have been recorded
+	 */
+	public synchronized long recorded() {
+		return recorded;
+	}
+
+	/**
+	 * @return why recording stopped early, or null if it hasn't
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Called, on the thread publishing the event, if writing the log fails.
+	 * Nothing more is recorded.
+	 *
+	 * @param e
+	 *            what went wrong
+	 */
+	protected void failed(IOException e) {
+		e.printStackTrace();
+	}
+
+	/**
+	 * Write out any buffered records.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out.isOpen()) {
+			try {
+				flush();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private void append(long time, int index, byte kind, int state) {
+		IOException failed = null;
+		synchronized (this) {
+			if (!out.isOpen()) {
+				return;
+			}
+			if (!buf.hasRemaining()) {
+				try {
+					flush();
+				} catch (IOException e) {
+					// Listeners can't throw; stop recording rather than
+					// carry on with events missing part way through
+					failure = e;
+					failed = e;
+					try {
+						out.close();
+					} catch (IOException ignored) {
+						// already failing
+					}
+				}
+			}
+			if (failed == null) {
+				if (recorded == 0) {
+					origin = time;
+				}
+				record(time - origin, index, kind, state);
+			}
+		}
+		if (failed != null) {
+			failed(failed);
+		}
+	}
+
+	/**
+	 * Add a record to the buffer, which has room. Caller holds the lock.
+	 */
+	private void record(long time, int index, byte kind, int state) {
+		buf.putLong(time);
+		buf.putInt(index);
+		buf.put(kind);
+		buf.put((byte) state);
+		buf.putShort((short) 0);
+		recorded++;
+	}
+}
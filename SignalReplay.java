@@ -0,0 +1,159 @@
+package traffic.diy;
+
+import java.io.IOException;
+
+import traffic.util.State;
+
+/**
+ * Plays a {@link SignalLog} back to a listener on its own thread, at real time,
+ * some multiple of it, or as fast as the listener can sensibly take it. Nothing
+ * about the phase plan is run: the listener just sees the recorded events
+ * again, so a display can be driven from it exactly as it was during the run.
+ *
+ * Events are handed over a frame at a time, each frame covering
+ * {@link #FRAME_MILLIS} of real time. At {@link #MAX_SPEED} a frame is
+ * {@link #MAX_EVENTS_PER_FRAME} events, however much log time they span.
+ */
+public class SignalReplay {
+
+	public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+	public static final long FRAME_MILLIS = 40;
+	public static final int MAX_EVENTS_PER_FRAME = 5000;
+
+	private final SignalLog log;
+	private final SignalListener target;
+	private final double speed;
+	private volatile boolean stopped;
+	private volatile long position;
+	private Thread thread;
+
+	/**
+	 * @param log
+	 *            what to play
+	 * @param target
+	 *            where to play it, called on the replay thread
+	 * @param speed
+	 *            how many times faster than recorded, or {@link #MAX_SPEED}
+	 */
+	public SignalReplay(SignalLog log, SignalListener target, double speed) {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("Replay speed must be positive");
+		}
+		this.log = log;
+		this.target = target;
+		this.speed = speed;
+	}
+
+	/**
+	 * Start playing from a point in the log. The listener is first told where
+	 * things stood at that point: the running phase, then each stream's state.
+	 *
+	 * @param from
+	 *            a time in the log
+	 */
+	public synchronized void start(final long from) {
+		if (thread != null) {
+			throw new IllegalStateException("Already started");
+		}
+		position = from;
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					play(from);
+				} catch (IOException e) {
+					failed(e);
+				} finally {
+					finished();
+				}
+			}
+		}, "SignalReplay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop playing. Events already handed over stay handed over.
+	 */
+	public void stop() {
+		stopped = true;
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	/**
+	 * @return the log time played up to
+	 */
+	public long position() {
+		return position;
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Called on the replay thread once it's stopped or got to the end.
+	 */
+	protected void finished() {
+	}
+
+	/**
+	 * Called on the replay thread if the log can't be read.
+	 *
+	 * @param e
+	 *            what went wrong
+	 */
+	protected void failed(IOException e) {
+		e.printStackTrace();
+	}
+
+	private void play(long from) throws IOException {
+		long record = log.find(from);
+		State[] streams = new State[log.streamCount()];
+		int phase = log.stateBefore(record, streams);
+		if (phase >= 0) {
+			target.phaseChanged(from, phase);
+		}
+		for (int s = 0; s < streams.length; s++) {
+			if (streams[s] != null) {
+				target.streamChanged(from, s, streams[s]);
+			}
+		}
+
+		long logTime = from;
+		long frameDue = System.nanoTime();
+		while (!stopped && record < log.size()) {
+			long next;
+			if (speed == MAX_SPEED) {
+				next = Math.min(log.size(), record + MAX_EVENTS_PER_FRAME);
+				logTime = log.time(next - 1);
+			} else {
+				logTime += (long) (FRAME_MILLIS * speed);
+				next = log.find(logTime + 1);
+			}
+			log.replay(record, next, target);
+			record = next;
+			position = logTime;
+
+			frameDue += FRAME_MILLIS * 1000000L;
+			long wait = frameDue - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException e) {
+					return;
+				}
+			} else {
+				// Behind: don't try to catch up with a burst
+				frameDue = System.nanoTime();
+			}
+		}
+	}
+}
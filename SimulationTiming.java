@@ -0,0 +1,89 @@
+package traffic.diy;
+
+/**
+ * How long phases last when an intersection is simulated rather than run by
+ * its own PhasePlan. A phase's min green interval, when the description sets
+ * one, is its green time in seconds; otherwise the defaults here apply
+ * according to what the phase shows. All times are in milliseconds.
+ */
+public class SimulationTiming {
+	private long green = 10000;
+	private long yellow = 3000;
+	private long allRed = 2000;
+	private long extension = 2000;
+	private long maxGreen = 40000;
+	private long headway = 2000;
+
+	/**
+	 * @return time given to a phase with a GREEN stream and no min green
+	 */
+	public long getGreen() {
+		return green;
+	}
+
+	public SimulationTiming setGreen(long green) {
+		this.green = green;
+		return this;
+	}
+
+	/**
+	 * @return time given to a phase with a YELLOW stream and no min green
+	 */
+	public long getYellow() {
+		return yellow;
+	}
+
+	public SimulationTiming setYellow(long yellow) {
+		this.yellow = yellow;
+		return this;
+	}
+
+	/**
+	 * @return time given to a phase with neither GREEN nor YELLOW streams
+	 */
+	public long getAllRed() {
+		return allRed;
+	}
+
+	public SimulationTiming setAllRed(long allRed) {
+		this.allRed = allRed;
+		return this;
+	}
+
+	/**
+	 * @return how much longer an actuated phase stays green each time there's
+	 *         demand on one of its green streams
+	 */
+	public long getExtension() {
+		return extension;
+	}
+
+	public SimulationTiming setExtension(long extension) {
+		this.extension = extension;
+		return this;
+	}
+
+	/**
+	 * @return the longest an actuated phase can be extended to
+	 */
+	public long getMaxGreen() {
+		return maxGreen;
+	}
+
+	public SimulationTiming setMaxGreen(long maxGreen) {
+		this.maxGreen = maxGreen;
+		return this;
+	}
+
+	/**
+	 * @return the time between vehicles leaving a queue on a green stream
+	 */
+	public long getHeadway() {
+		return headway;
+	}
+
+	public SimulationTiming setHeadway(long headway) {
+		this.headway = headway;
+		return this;
+	}
+}
@@ -0,0 +1,305 @@
+package traffic.diy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Many saved intersections packed into one file, indexed by name. Each save of
+ * a name appends a new revision; nothing already written is ever rewritten.
+ *
+ * The file is memory-mapped for reading. Opening it only walks the small
+ * record headers to build the index, so loading one junction decodes that
+ * junction's record and nothing else.
+ *
+ * Layout: an 8 byte file header (magic, version) then records of
+ * [record magic][name length][name UTF-8][saved at millis][intersection in
+ * {@link IntersectionCodec} format]. A record left half written at the end of
+ * the file by a crash is ignored, and dropped when the store is next opened
+ * for appending. Damage anywhere else is an error; nothing after it is thrown
+ * away.
+ */
+public class SnapshotStore implements Closeable {
+
+	/** "TRFS" */
+	public static final int MAGIC = 0x54524653;
+	public static final short VERSION = 1;
+	private static final int FILE_HEADER_BYTES = 8;
+	/** "SNAP" */
+	private static final int RECORD_MAGIC = 0x534e4150;
+
+	/**
+	 * Where one revision lives in the file.
+	 */
+	public static class Revision {
+		private final int number;
+		private final long savedAt;
+		private final long offset;
+		private final int length;
+
+		Revision(int number, long savedAt, long offset, int length) {
+			this.number = number;
+			this.savedAt = savedAt;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return the revision number, starting at 1
+		 */
+		public int getNumber() {
+			return number;
+		}
+
+		/**
+		 * @return when it was saved, in milliseconds since the epoch
+		 */
+		public long getSavedAt() {
+			return savedAt;
+		}
+	}
+
+	private final FileChannel channel;
+	private final boolean writable;
+	private final Map<String, List<Revision>> index = new TreeMap<String, List<Revision>>();
+	private MappedByteBuffer map;
+	/** End of the last complete record; appends go here. */
+	private long end;
+
+	/**
+	 * Open a store for appending, creating the file if it doesn't exist yet.
+	 *
+	 * @param f
+	 *            the store file
+	 * @throws IOException
+	 *             if the file isn't a snapshot store, or is damaged
+	 */
+	public SnapshotStore(File f) throws IOException {
+		this(f, true);
+	}
+
+	/**
+	 * Open a store.
+	 *
+	 * @param f
+	 *            the store file
+	 * @param writable
+	 *            true to append to it, creating the file if need be; false
+	 *            only to read it, leaving the file exactly as it is
+	 * @throws IOException
+	 *             if the file can't be opened, isn't a snapshot store, or is
+	 *             damaged
+	 */
+	public SnapshotStore(File f, boolean writable) throws IOException {
+		this.writable = writable;
+		channel = writable
+				? FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE)
+				: FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			if (writable && channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+				header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).flip();
+				while (header.hasRemaining()) {
+					channel.write(header, header.position());
+				}
+			}
+			remap();
+			if (map.limit() < FILE_HEADER_BYTES || map.getInt(0) != MAGIC) {
+				throw new IOException(f + " isn't a snapshot store");
+			}
+			if (map.getShort(4) != VERSION) {
+				throw new IOException("Unsupported snapshot store version " + map.getShort(4));
+			}
+			scan(f);
+			if (writable && channel.size() > end) {
+				// Drop a half written record left by a crash
+				channel.truncate(end);
+				remap();
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the names of all the intersections in the store, sorted
+	 */
+	public synchronized Set<String> names() {
+		return new TreeSet<String>(index.keySet());
+	}
+
+	/**
+	 * @param name
+	 *            an intersection name
+	 * @return its revisions, oldest first, or an empty list if there are none
+	 */
+	public synchronized List<Revision> revisions(String name) {
+		List<Revision> revs = index.get(name);
+		return revs == null ? Collections.<Revision> emptyList() : new ArrayList<Revision>(revs);
+	}
+
+	/**
+	 * Append a new revision of an intersection, stored under its own name.
+	 *
+	 * @param spec
+	 *            the intersection description
+	 * @return the new revision
+	 * @throws IOException
+	 */
+	public Revision append(IntersectionSpec spec) throws IOException {
+		return append(spec.getName(), spec);
+	}
+
+	/**
+	 * Append a new revision of an intersection.
+	 *
+	 * @param name
+	 *            the name to file it under
+	 * @param spec
+	 *            the intersection description
+	 * @return the new revision
+	 * @throws IOException
+	 */
+	public synchronized Revision append(String name, IntersectionSpec spec) throws IOException {
+		if (!writable) {
+			throw new IOException("Snapshot store opened read-only");
+		}
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > 0xffff) {
+			throw new IllegalArgumentException("Name too long");
+		}
+		ByteBuffer body = IntersectionCodec.encode(spec);
+		long savedAt = System.currentTimeMillis();
+		ByteBuffer header = ByteBuffer.allocate(4 + 2 + nameBytes.length + 8);
+		header.putInt(RECORD_MAGIC).putShort((short) nameBytes.length).put(nameBytes).putLong(savedAt).flip();
+
+		long offset = end;
+		long pos = offset;
+		while (header.hasRemaining()) {
+			pos += channel.write(header, pos);
+		}
+		long bodyOffset = pos;
+		while (body.hasRemaining()) {
+			pos += channel.write(body, pos);
+		}
+		channel.force(false);
+		end = pos;
+
+		return addToIndex(name, savedAt, bodyOffset, (int) (pos - bodyOffset));
+	}
+
+	/**
+	 * Load the latest revision of an intersection.
+	 *
+	 * @param name
+	 *            the intersection name
+	 * @return the description, or null if there's no such intersection
+	 * @throws IOException
+	 */
+	public synchronized IntersectionSpec load(String name) throws IOException {
+		List<Revision> revs = index.get(name);
+		return revs == null ? null : load(revs.get(revs.size() - 1));
+	}
+
+	/**
+	 * Load a particular revision of an intersection.
+	 *
+	 * @param revision
+	 *            from {@link #revisions(String)}
+	 * @return the description
+	 * @throws IOException
+	 */
+	public synchronized IntersectionSpec load(Revision revision) throws IOException {
+		if (revision.offset + revision.length > map.capacity()) {
+			// Appended since we last mapped the file
+			remap();
+		}
+		ByteBuffer record = map.duplicate();
+		record.position((int) revision.offset);
+		record.limit((int) (revision.offset + revision.length));
+		return IntersectionCodec.decode(record);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		map = null;
+		channel.close();
+	}
+
+	private void remap() throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot store too large to map");
+		}
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	/**
+	 * Build the index by walking the record headers, skipping the bodies.
+	 * Stops at the end of the last complete record; only a record cut short
+	 * by the end of the file may follow it.
+	 *
+	 * @throws IOException
+	 *             if a record is damaged
+	 */
+	private void scan(File f) throws IOException {
+		ByteBuffer buf = map.duplicate();
+		int pos = FILE_HEADER_BYTES;
+		while (true) {
+			end = pos;
+			if (pos == buf.limit()) {
+				break;
+			}
+			// magic, name length; a crash can leave less than that
+			if (buf.limit() - pos < 6) {
+				break;
+			}
+			if (buf.getInt(pos) != RECORD_MAGIC) {
+				throw new IOException(f + " is damaged at byte " + pos);
+			}
+			int nameLength = buf.getShort(pos + 4) & 0xffff;
+			int bodyOffset = pos + 6 + nameLength + 8;
+			if (buf.limit() - bodyOffset < IntersectionCodec.HEADER_BYTES) {
+				break;
+			}
+			int bodyLength = IntersectionCodec.HEADER_BYTES + buf.getInt(bodyOffset + 6);
+			if (buf.getInt(bodyOffset) != IntersectionCodec.MAGIC || bodyLength < IntersectionCodec.HEADER_BYTES) {
+				throw new IOException(f + " is damaged at byte " + bodyOffset);
+			}
+			if (buf.limit() - bodyOffset < bodyLength) {
+				break;
+			}
+			byte[] nameBytes = new byte[nameLength];
+			buf.position(pos + 6);
+			buf.get(nameBytes);
+			long savedAt = buf.getLong(pos + 6 + nameLength);
+			addToIndex(new String(nameBytes, StandardCharsets.UTF_8), savedAt, bodyOffset, bodyLength);
+			pos = bodyOffset + bodyLength;
+		}
+	}
+
+	private Revision addToIndex(String name, long savedAt, long offset, int length) {
+		List<Revision> revs = index.get(name);
+		if (revs == null) {
+			revs = new ArrayList<Revision>();
+			index.put(name, revs);
+		}
+		Revision rev = new Revision(revs.size() + 1, savedAt, offset, length);
+		revs.add(rev);
+		return rev;
+	}
+}
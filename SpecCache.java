@@ -0,0 +1,283 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import traffic.load.TrafficException;
+
+/**
+ * Descriptions read from files, keyed by a SHA-256 hash of each file's
+ * contents, so reopening a file that hasn't changed skips parsing it.
+ *
+ * Entries are held in memory, least recently used first out once the files
+ * cached add up to more than a set size. Given a directory, the cache also
+ * keeps each description there in {@link IntersectionCodec} format, named by
+ * its hash, so it outlives the process.
+ *
+ * A changed file hashes differently and so never matches its old entry; the
+ * old entry is dropped from both tiers as soon as the change is seen, unless
+ * another file still has the same contents. The directory isn't otherwise
+ * trimmed. Only files that load cleanly are cached. Every load returns its
+ * own copy, so callers may change what they get. Safe to share between
+ * threads.
+ */
+public class SpecCache {
+
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+	private static final String SUFFIX = ".trfx";
+
+	private static class Entry {
+		final IntersectionSpec spec;
+		/** Size of the file it was read from. */
+		final long size;
+
+		Entry(IntersectionSpec spec, long size) {
+			this.spec = spec;
+			this.size = size;
+		}
+	}
+
+	private final long maxBytes;
+	private final File dir;
+	/** By hash, least recently used first. */
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/** The hash of each file's contents when it was last loaded. */
+	private final Map<String, String> hashOfPath = new HashMap<String, String>();
+	private long bytes;
+
+	private long hits;
+	private long diskHits;
+	private long misses;
+
+	/**
+	 * A cache held in memory only.
+	 *
+	 * @param maxBytes
+	 *            the most file contents to keep descriptions for
+	 */
+	public SpecCache(long maxBytes) {
+		this(maxBytes, null);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the most file contents to keep descriptions for in memory
+	 * @param dir
+	 *            where to keep compiled descriptions, or null for none;
+	 *            created if need be
+	 * @throws IllegalArgumentException
+	 *             if the directory can't be created
+	 */
+	public SpecCache(long maxBytes, File dir) {
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Can't create cache directory " + dir);
+		}
+		this.maxBytes = maxBytes;
+		this.dir = dir;
+	}
+
+	/**
+	 * Load a description file, from the cache if its contents have been
+	 * loaded before.
+	 *
+	 * @param f
+	 *            the description file
+	 * @return the description
+	 * @throws IOException
+	 *             if the file can't be read
+	 * @throws TrafficException
+	 *             if it isn't a valid description
+	 */
+	public IntersectionSpec load(File f) throws IOException, TrafficException {
+		byte[] content = Files.readAllBytes(f.toPath());
+		String hash = hash(content);
+		synchronized (this) {
+			String previous = hashOfPath.put(f.getAbsolutePath(), hash);
+			if (previous != null && !previous.equals(hash) && !hashOfPath.containsValue(previous)) {
+				forget(previous);
+			}
+			Entry e = memory.get(hash);
+			if (e != null) {
+				hits++;
+				return e.spec.copy();
+			}
+		}
+
+		IntersectionSpec spec = fromDisk(hash);
+		if (spec != null) {
+			synchronized (this) {
+				diskHits++;
+				remember(hash, spec, content.length);
+			}
+			return spec.copy();
+		}
+
+		MyIntersectionLoader loader = new MyIntersectionLoader(new BufferedReader(
+				new InputStreamReader(new ByteArrayInputStream(content), Charset.defaultCharset())));
+		spec = loader.buildSpec();
+		if (spec == null) {
+			Exception error = loader.getError();
+			if (error instanceof TrafficException) {
+				throw (TrafficException) error;
+			} else if (error instanceof IOException) {
+				throw (IOException) error;
+			}
+			throw new TrafficException("Malformed intersection " + f);
+		}
+		toDisk(hash, spec);
+		synchronized (this) {
+			misses++;
+			remember(hash, spec, content.length);
+		}
+		return spec.copy();
+	}
+
+	/**
+	 * Drop everything from memory. What's on disk stays.
+	 */
+	public synchronized void clear() {
+		memory.clear();
+		hashOfPath.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return loads answered from memory
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * @return loads answered from the directory
+	 */
+	public synchronized long diskHits() {
+		return diskHits;
+	}
+
+	/**
+	 * @return loads that had to parse the file
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * @return how many descriptions are held in memory
+	 */
+	public synchronized int size() {
+		return memory.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return memory.size() + " cached (" + bytes / 1024 + " KiB), " + hits + " hits, " + diskHits + " disk hits, "
+				+ misses + " misses";
+	}
+
+	private void remember(String hash, IntersectionSpec spec, long size) {
+		if (size > maxBytes || memory.containsKey(hash)) {
+			return;
+		}
+		memory.put(hash, new Entry(spec, size));
+		bytes += size;
+		Iterator<Entry> eldest = memory.values().iterator();
+		while (bytes > maxBytes) {
+			bytes -= eldest.next().size;
+			eldest.remove();
+		}
+	}
+
+	private void forget(String hash) {
+		Entry e = memory.remove(hash);
+		if (e != null) {
+			bytes -= e.size;
+		}
+		if (dir != null) {
+			new File(dir, hash + SUFFIX).delete();
+		}
+	}
+
+	/**
+	 * @return the description kept on disk for a hash, or null if there isn't
+	 *         a readable one
+	 */
+	private IntersectionSpec fromDisk(String hash) {
+		if (dir == null) {
+			return null;
+		}
+		File f = new File(dir, hash + SUFFIX);
+		if (!f.isFile()) {
+			return null;
+		}
+		try {
+			FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			try {
+				return IntersectionCodec.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Written by a different version, or damaged: parse again
+			f.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Keep a description on disk. Written under another name and then moved,
+	 * so a reader never sees half a file.
+	 */
+	private void toDisk(String hash, IntersectionSpec spec) {
+		if (dir == null) {
+			return;
+		}
+		File f = new File(dir, hash + SUFFIX);
+		try {
+			File temp = File.createTempFile(hash, ".tmp", dir);
+			try {
+				FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+				try {
+					IntersectionCodec.write(spec, out);
+				} finally {
+					out.close();
+				}
+				Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			// Only the disk tier is lost; memory still has it
+		}
+	}
+
+	private static String hash(byte[] content) {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every Java platform has SHA-256", e);
+		}
+		byte[] digest = sha.digest(content);
+		StringBuilder hex = new StringBuilder(2 * digest.length);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,78 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import traffic.load.TrafficException;
+
+/**
+ * Times loading a generated intersection description by parsing it, from a
+ * {@link SpecCache} held in memory, and from the cache's directory alone.
+ *
+ * Usage: SpecCacheBenchmark [streams] [phases] [faces] [iterations]
+ */
+public class SpecCacheBenchmark {
+
+	public static void main(String[] args) throws IOException, TrafficException {
+		int streams = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int phases = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+		int faces = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+		File f = File.createTempFile("intersection", ".txt");
+		f.deleteOnExit();
+		LoaderBenchmark.generate(f, streams, phases, faces);
+		File dir = Files.createTempDirectory("spec-cache").toFile();
+		System.out.println("Generated " + f + " (" + f.length() + " bytes)");
+
+		try {
+			// Warm up every path before timing anything
+			SpecCache memory = new SpecCache(SpecCache.DEFAULT_MAX_BYTES, dir);
+			for (int i = 0; i < iterations; i++) {
+				parse(f);
+				memory.load(f);
+				new SpecCache(SpecCache.DEFAULT_MAX_BYTES, dir).load(f);
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				parse(f);
+			}
+			report("Parse", System.nanoTime() - start, iterations);
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				memory.load(f);
+			}
+			report("Memory hit", System.nanoTime() - start, iterations);
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				new SpecCache(SpecCache.DEFAULT_MAX_BYTES, dir).load(f);
+			}
+			report("Disk hit", System.nanoTime() - start, iterations);
+			System.out.println(memory);
+		} finally {
+			for (File cached : dir.listFiles()) {
+				cached.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static IntersectionSpec parse(File f) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			return new MyIntersectionLoader(br).buildSpec();
+		} finally {
+			br.close();
+		}
+	}
+
+	private static void report(String label, long nanos, int iterations) {
+		System.out.println(String.format("%-12s %10.1f us/load", label, nanos / 1e3 / iterations));
+	}
+}
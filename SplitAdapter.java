@@ -0,0 +1,295 @@
+package traffic.diy;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import traffic.util.State;
+
+/**
+ * Shares out the green time of a plan's cycle between its phases according
+ * to how busy their streams are, in the spirit of SCATS: each cycle a phase
+ * gets green in proportion to the highest occupancy among the streams it
+ * shows GREEN. Only green intervals are resized (see
+ * {@link IntersectionSpec.PlanSpec#isGreenInterval(int)}); yellows and
+ * clearances keep their times, even where an arrow stays green through them.
+ * Whatever one phase loses to the minimum or maximum, or to rounding to whole
+ * seconds, goes to the others, so the splits always add up to the green time
+ * they started with and the cycle length stays the same.
+ *
+ * Occupancy is the fraction of time a stream's detector reports traffic,
+ * smoothed from cycle to cycle so one odd cycle doesn't swing the splits. A
+ * cycle in which nothing was recorded leaves the splits as they were.
+ * Occupancy is recorded and splits recomputed in place, without allocating,
+ * so it can run every cycle of a long simulation.
+ */
+public class SplitAdapter implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** How much of each new cycle's occupancy goes into the rolling figure. */
+	public static final double SMOOTHING = 0.3;
+	/** No phase is treated as quieter than this, so none is starved. */
+	public static final double FLOOR = 0.05;
+
+	/** The streams each green interval shows GREEN; empty for other phases. */
+	private final int[][] greens;
+	private final long[] base;
+	private final long[] split;
+	/** Green time shared between the green intervals. */
+	private final long greenTime;
+	private final long minimum;
+	private final long maximum;
+
+	private final double[] occupancy;
+	private final long[] occupied;
+	private final long[] observed;
+
+	/** Scratch for {@link #endCycle()}: each phase's share, in seconds. */
+	private transient double[] share;
+	/** Scratch for {@link #endCycle()}: whether a share is held at a limit. */
+	private transient boolean[] held;
+
+	/**
+	 * @param greens
+	 *            for each phase to adapt, the streams it shows GREEN; an
+	 *            empty array for a phase to leave alone
+	 * @param base
+	 *            each phase's duration before adapting, in milliseconds
+	 * @param streams
+	 *            how many streams
+	 * @param minimum
+	 *            the shortest an adapted phase can be given
+	 * @param maximum
+	 *            the longest an adapted phase can be given
+	 */
+	public SplitAdapter(int[][] greens, long[] base, int streams, long minimum, long maximum) {
+		if (greens.length != base.length || minimum > maximum) {
+			throw new IllegalArgumentException("Inconsistent split limits");
+		}
+		this.greens = greens;
+		this.base = base.clone();
+		this.split = base.clone();
+		this.minimum = minimum;
+		this.maximum = maximum;
+		long total = 0;
+		for (int p = 0; p < greens.length; p++) {
+			if (greens[p].length > 0) {
+				total += base[p];
+			}
+		}
+		this.greenTime = total;
+		this.occupancy = new double[streams];
+		this.occupied = new long[streams];
+		this.observed = new long[streams];
+	}
+
+	/**
+	 * An adapter for one plan of a description, starting from the phase
+	 * durations a {@link PhaseController} would give it. Green intervals range
+	 * from half the default green up to the max green.
+	 *
+	 * @param plan
+	 *            the plan
+	 * @param streams
+	 *            how many streams the intersection has
+	 * @param timing
+	 *            the default phase times
+	 */
+	public static SplitAdapter forPlan(IntersectionSpec.PlanSpec plan, int streams, SimulationTiming timing) {
+		List<IntersectionSpec.PhaseSpec> phases = plan.getPhases();
+		int[][] greens = new int[phases.size()][];
+		long[] base = new long[phases.size()];
+		for (int p = 0; p < phases.size(); p++) {
+			IntersectionSpec.PhaseSpec ps = phases.get(p);
+			int greenCount = ps.countOf(State.GREEN);
+			boolean greenInterval = plan.isGreenInterval(p);
+			greens[p] = new int[greenInterval ? greenCount : 0];
+			for (int s = 0, g = 0; s < streams && g < greens[p].length; s++) {
+				if (ps.getState(s) == State.GREEN) {
+					greens[p][g++] = s;
+				}
+			}
+			if (ps.getMinGreen() != IntersectionSpec.NO_MIN_GREEN) {
+				base[p] = ps.getMinGreen() * 1000L;
+			} else if (greenInterval) {
+				base[p] = timing.getGreen();
+			} else if (ps.countOf(State.YELLOW) > 0) {
+				base[p] = timing.getYellow();
+			} else {
+				base[p] = timing.getAllRed();
+			}
+		}
+		return new SplitAdapter(greens, base, streams, timing.getGreen() / 2, timing.getMaxGreen());
+	}
+
+	public int phaseCount() {
+		return split.length;
+	}
+
+	/**
+	 * Record part of the cycle.
+	 *
+	 * @param stream
+	 *            index of the stream
+	 * @param millis
+	 *            how long was watched
+	 * @param occupiedMillis
+	 *            how much of that time there was traffic on the detector
+	 */
+	public void record(int stream, long millis, long occupiedMillis) {
+		observed[stream] += millis;
+		occupied[stream] += occupiedMillis;
+	}
+
+	/**
+	 * Fold this cycle's occupancy into the rolling figures and share out the
+	 * next cycle's green time.
+	 *
+	 * @return whether the splits were shared out again; false if nothing was
+	 *         recorded this cycle, which leaves them as they were
+	 */
+	public boolean endCycle() {
+		boolean any = false;
+		for (int s = 0; s < occupancy.length; s++) {
+			if (observed[s] > 0) {
+				double now = (double) occupied[s] / observed[s];
+				occupancy[s] += SMOOTHING * (now - occupancy[s]);
+				any = true;
+			}
+			observed[s] = 0;
+			occupied[s] = 0;
+		}
+		if (!any) {
+			return false;
+		}
+		if (share == null) {
+			share = new double[split.length];
+			held = new boolean[split.length];
+		}
+
+		// Whole seconds, as a min green interval is
+		long seconds = greenTime / 1000;
+		long low = (minimum + 999) / 1000;
+		long high = maximum / 1000;
+		Arrays.fill(held, false);
+		boolean changed = true;
+		while (changed) {
+			// Share out what the held phases leave, and hold any share past a
+			// limit at it. Raise the short ones first: that only takes time from
+			// the rest, so it can't push another past the maximum.
+			double left = seconds;
+			double total = 0;
+			for (int p = 0; p < greens.length; p++) {
+				if (greens[p].length == 0) {
+					continue;
+				} else if (held[p]) {
+					left -= share[p];
+				} else {
+					total += weight(p);
+				}
+			}
+			boolean shortShare = false;
+			for (int p = 0; p < greens.length; p++) {
+				if (greens[p].length > 0 && !held[p]) {
+					share[p] = left * weight(p) / total;
+					shortShare |= share[p] < low;
+				}
+			}
+			changed = false;
+			for (int p = 0; p < greens.length; p++) {
+				if (greens[p].length == 0 || held[p]) {
+					continue;
+				} else if (share[p] < low) {
+					share[p] = low;
+					held[p] = changed = true;
+				} else if (share[p] > high && !shortShare) {
+					share[p] = high;
+					held[p] = changed = true;
+				}
+			}
+		}
+
+		// Round down, then hand the seconds that leaves over to the largest
+		// fractions
+		long given = 0;
+		for (int p = 0; p < greens.length; p++) {
+			if (greens[p].length > 0) {
+				split[p] = (long) share[p];
+				share[p] -= split[p];
+				given += split[p];
+			}
+		}
+		for (; given < seconds; given++) {
+			int next = -1;
+			for (int p = 0; p < greens.length; p++) {
+				if (greens[p].length > 0 && split[p] < high && (next < 0 || share[p] > share[next])) {
+					next = p;
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			split[next]++;
+			share[next] = -1;
+		}
+		// Any part of a second left goes to the shortest
+		int shortest = -1;
+		for (int p = 0; p < greens.length; p++) {
+			if (greens[p].length > 0) {
+				split[p] *= 1000;
+				if (shortest < 0 || split[p] < split[shortest]) {
+					shortest = p;
+				}
+			}
+		}
+		if (shortest >= 0) {
+			split[shortest] += greenTime % 1000;
+		}
+		return true;
+	}
+
+	/**
+	 * @param phase
+	 *            index of the phase
+	 * @return how long the phase gets this cycle, in milliseconds
+	 */
+	public long duration(int phase) {
+		return split[phase];
+	}
+
+	/**
+	 * @param phase
+	 *            index of the phase
+	 * @return whether its time is adapted, because it's a green interval
+	 */
+	public boolean adapts(int phase) {
+		return greens[phase].length > 0;
+	}
+
+	/**
+	 * @param stream
+	 *            index of the stream
+	 * @return its rolling occupancy, between 0 and 1
+	 */
+	public double occupancy(int stream) {
+		return occupancy[stream];
+	}
+
+	/**
+	 * Go back to the starting splits and forget all occupancy.
+	 */
+	public void reset() {
+		System.arraycopy(base, 0, split, 0, split.length);
+		Arrays.fill(occupancy, 0);
+		Arrays.fill(occupied, 0);
+		Arrays.fill(observed, 0);
+	}
+
+	private double weight(int phase) {
+		double busiest = FLOOR;
+		for (int s : greens[phase]) {
+			busiest = Math.max(busiest, occupancy[s]);
+		}
+		return busiest;
+	}
+}
@@ -0,0 +1,175 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import traffic.load.TrafficSyntaxException;
+
+/**
+ * Splits the lines of an intersection description file into tab separated
+ * fields. Works straight off the underlying reader, one line at a time, without
+ * a regex backed Scanner per line. Keeps track of the line and column of the
+ * current field so that syntax errors can say where they happened.
+ */
+public class TabTokenizer {
+	private static final char DELIMITER = '\t';
+
+	private final BufferedReader reader;
+	private String line;
+	private int lineNumber;
+	/** Index into line of the start of the next field, or -1 once used up. */
+	private int pos;
+	/** Index into line of the start of the field most recently returned. */
+	private int fieldStart;
+
+	public TabTokenizer(BufferedReader reader) {
+		this.reader = reader;
+		this.line = null;
+		this.lineNumber = 0;
+		this.pos = -1;
+		this.fieldStart = 0;
+	}
+
+	/**
+	 * Advances to the next line, discarding whitespace and comments.
+	 *
+	 * @return the trimmed line, or null at end of file
+	 * @throws IOException
+	 */
+	public String nextLine() throws IOException {
+		String inputLine;
+		do {
+			inputLine = this.reader.readLine();
+			if (inputLine == null) {
+				this.line = null;
+				this.pos = -1;
+				return null;
+			}
+			this.lineNumber++;
+			inputLine = inputLine.trim();
+		} while (inputLine.length() == 0 || inputLine.startsWith("//"));
+
+		this.line = inputLine;
+		this.pos = 0;
+		this.fieldStart = 0;
+		return inputLine;
+	}
+
+	/**
+	 * @return the current line, or null at end of file
+	 */
+	public String line() {
+		return this.line;
+	}
+
+	/**
+	 * @return the 1-based number of the current line in the file
+	 */
+	public int lineNumber() {
+		return this.lineNumber;
+	}
+
+	/**
+	 * @return the 1-based column of the field most recently returned
+	 */
+	public int column() {
+		return this.fieldStart + 1;
+	}
+
+	/**
+	 * @return true if the current line has another field
+	 */
+	public boolean hasNext() {
+		return this.pos >= 0;
+	}
+
+	/**
+	 * Returns the next field on the current line.
+	 *
+	 * @return the field, which may be empty if two tabs are adjacent
+	 * @throws TrafficSyntaxException
+	 *             if the line has no more fields
+	 */
+	public String next() throws TrafficSyntaxException {
+		if (this.pos < 0) {
+			this.fieldStart = this.line == null ? 0 : this.line.length();
+			throw this.error("Missing field");
+		}
+		int end = this.fieldEnd();
+		this.fieldStart = this.pos;
+		String field = this.line.substring(this.pos, end);
+		this.pos = end < this.line.length() ? end + 1 : -1;
+		return field;
+	}
+
+	/**
+	 * @return true if the next field on the current line is an integer
+	 */
+	public boolean hasNextInt() {
+		if (this.pos < 0) {
+			return false;
+		}
+		int end = this.fieldEnd();
+		int i = this.pos;
+		if (i < end && (this.line.charAt(i) == '-' || this.line.charAt(i) == '+')) {
+			i++;
+		}
+		if (i == end || end - i > 9) {
+			return false;
+		}
+		for (; i < end; i++) {
+			char c = this.line.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the next field as an integer without allocating a substring.
+	 *
+	 * @return the value of the field
+	 * @throws TrafficSyntaxException
+	 *             if there is no field or it isn't an integer
+	 */
+	public int nextInt() throws TrafficSyntaxException {
+		if (!this.hasNextInt()) {
+			if (this.pos >= 0) {
+				this.fieldStart = this.pos;
+			}
+			throw this.error("Expected an integer");
+		}
+		int end = this.fieldEnd();
+		int i = this.pos;
+		boolean negative = false;
+		char first = this.line.charAt(i);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			i++;
+		}
+		int value = 0;
+		for (; i < end; i++) {
+			value = value * 10 + (this.line.charAt(i) - '0');
+		}
+		this.fieldStart = this.pos;
+		this.pos = end < this.line.length() ? end + 1 : -1;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Builds an exception that reports the current line and column.
+	 *
+	 * @param message
+	 *            what went wrong
+	 * @return the exception, ready to throw
+	 */
+	public TrafficSyntaxException error(String message) {
+		return new TrafficSyntaxException("Line " + this.lineNumber + ", column " + this.column() + ": " + message);
+	}
+
+	private int fieldEnd() {
+		int end = this.line.indexOf(DELIMITER, this.pos);
+		return end < 0 ? this.line.length() : end;
+	}
+}
@@ -0,0 +1,544 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import traffic.load.TrafficSyntaxException;
+import traffic.util.State;
+
+/**
+ * Tunes the min green intervals and phase order of one plan of an intersection
+ * to minimise total delay under a given demand. Each candidate timing is scored
+ * by headless simulations against the same arrivals, and each round of
+ * candidates is scored in parallel across all cores.
+ *
+ * The search is a pattern search over the min green of every green interval
+ * (see {@link IntersectionSpec.PlanSpec#isGreenInterval(int)}): try each one a
+ * step longer and shorter, take the best improvement, and halve the step when
+ * nothing improves. Yellows and clearances are left alone, even where an arrow
+ * stays green through them. Phase order is searched by rearranging whole
+ * stages, where a stage is a run of phases ending in an all red phase, so
+ * every green keeps its own clearance after it.
+ *
+ * Usage: TimingOptimiser in out [vehiclesPerHour | arrivals] [hours]
+ * [replications]
+ */
+public class TimingOptimiser {
+
+	/**
+	 * Supplies a fresh copy of the demand for each simulation.
+	 */
+	public interface ArrivalFactory {
+
+		/**
+		 * @param replication
+		 *            which replication of a candidate this is for; the same
+		 *            number gives the same arrivals, so candidates are compared
+		 *            on equal terms
+		 */
+		ArrivalSource create(int replication);
+	}
+
+	/**
+	 * Poisson arrivals at the same rate on every stream.
+	 */
+	public static ArrivalFactory poisson(final int streams, final double vehiclesPerHour) {
+		return new ArrivalFactory() {
+
+			@Override
+			public ArrivalSource create(int replication) {
+				return new PoissonArrivals(replication + 1, streams, vehiclesPerHour);
+			}
+		};
+	}
+
+	/**
+	 * A recorded log of arrivals, replayed unchanged for every replication.
+	 */
+	public static ArrivalFactory recorded(final RecordedArrivals log) {
+		return new ArrivalFactory() {
+
+			@Override
+			public ArrivalSource create(int replication) {
+				return new RecordedArrivals(log);
+			}
+		};
+	}
+
+	/**
+	 * A timing to try: an order for the phases and a min green for each.
+	 */
+	private static class Candidate {
+		/** Indices of the original phases, in their new order. */
+		final int[] order;
+		/** Min green in seconds, by original phase index. */
+		final int[] minGreen;
+
+		Candidate(int[] order, int[] minGreen) {
+			this.order = order;
+			this.minGreen = minGreen;
+		}
+	}
+
+	/**
+	 * The outcome of a tuning run.
+	 */
+	public static class Result {
+		private final IntersectionSpec tuned;
+		private final double baselineDelay;
+		private final double tunedDelay;
+		private final int evaluations;
+
+		Result(IntersectionSpec tuned, double baselineDelay, double tunedDelay, int evaluations) {
+			this.tuned = tuned;
+			this.baselineDelay = baselineDelay;
+			this.tunedDelay = tunedDelay;
+			this.evaluations = evaluations;
+		}
+
+		/**
+		 * @return a copy of the intersection with the tuned plan
+		 */
+		public IntersectionSpec getTuned() {
+			return tuned;
+		}
+
+		/**
+		 * @return total delay with the original timing, in vehicle hours per
+		 *         simulation
+		 */
+		public double getBaselineDelay() {
+			return baselineDelay;
+		}
+
+		/**
+		 * @return total delay with the tuned timing, in vehicle hours per
+		 *         simulation
+		 */
+		public double getTunedDelay() {
+			return tunedDelay;
+		}
+
+		public int getEvaluations() {
+			return evaluations;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("total delay %.1f -> %.1f veh.h (%.1f%%) after %d candidates", baselineDelay,
+					tunedDelay, baselineDelay == 0 ? 0 : 100 * (tunedDelay - baselineDelay) / baselineDelay,
+					evaluations);
+		}
+	}
+
+	/** Most phase orders tried; beyond this a random sample is taken. */
+	private static final int MAX_ORDERS = 120;
+	private static final int MAX_MOVES = 100;
+
+	private final IntersectionSpec spec;
+	private final int planIndex;
+	private final SimulationTiming timing;
+	private final ArrivalFactory arrivals;
+	private final long duration;
+	private final int replications;
+	private final ExecutorService pool;
+	private int minBound = 5;
+	private int maxBound = 60;
+	private int evaluations;
+
+	/**
+	 * @param spec
+	 *            the intersection
+	 * @param planIndex
+	 *            which of its plans to tune
+	 * @param timing
+	 *            timings for phases the search doesn't set
+	 * @param arrivals
+	 *            the demand to tune for
+	 * @param duration
+	 *            milliseconds simulated per replication
+	 * @param replications
+	 *            simulations averaged per candidate
+	 * @param threads
+	 *            how many simulations to run at once
+	 */
+	public TimingOptimiser(IntersectionSpec spec, int planIndex, SimulationTiming timing, ArrivalFactory arrivals,
+			long duration, int replications, int threads) {
+		this.spec = spec;
+		this.planIndex = planIndex;
+		this.timing = timing;
+		this.arrivals = arrivals;
+		this.duration = duration;
+		this.replications = replications;
+		this.pool = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * @param minBound
+	 *            shortest min green to try, in seconds
+	 * @param maxBound
+	 *            longest min green to try, in seconds
+	 */
+	public TimingOptimiser setBounds(int minBound, int maxBound) {
+		if (minBound < 1 || maxBound < minBound) {
+			throw new IllegalArgumentException("Bounds must satisfy 1 <= min <= max");
+		}
+		this.minBound = minBound;
+		this.maxBound = maxBound;
+		return this;
+	}
+
+	/**
+	 * Tune the plan.
+	 *
+	 * @return the tuned intersection and how much it helped
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for simulations
+	 */
+	public Result optimise() throws InterruptedException {
+		List<IntersectionSpec.PhaseSpec> phases = spec.getPlans().get(planIndex).getPhases();
+		int[] identity = new int[phases.size()];
+		int[] start = new int[phases.size()];
+		for (int p = 0; p < identity.length; p++) {
+			identity[p] = p;
+			int mg = phases.get(p).getMinGreen();
+			start[p] = mg != IntersectionSpec.NO_MIN_GREEN ? mg : (int) Math.max(1, timing.getGreen() / 1000);
+		}
+		double baseline = score(Arrays.asList(spec)).get(0);
+
+		// Tune the greens in the current order, then see whether another
+		// order does better with them and, if so, tune again from there
+		Candidate best = descend(new Candidate(identity, start));
+		List<int[]> orders = orders(phases);
+		if (orders.size() > 1) {
+			List<Candidate> reordered = new ArrayList<Candidate>();
+			for (int[] order : orders) {
+				reordered.add(new Candidate(order, best.minGreen));
+			}
+			List<Double> scores = evaluate(reordered);
+			int b = argmin(scores);
+			if (b != 0) {
+				best = descend(reordered.get(b));
+			}
+		}
+		double tuned = evaluate(Arrays.asList(best)).get(0);
+		if (tuned >= baseline) {
+			return new Result(copy(null), baseline, baseline, evaluations);
+		}
+		return new Result(copy(best), baseline, tuned, evaluations);
+	}
+
+	/**
+	 * Stop the simulation threads.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Pattern search over the min greens of the green intervals. Stages are
+	 * only ever moved whole, so a phase is a green interval in every order
+	 * tried if it is in the plan's own.
+	 */
+	private Candidate descend(Candidate from) throws InterruptedException {
+		IntersectionSpec.PlanSpec plan = spec.getPlans().get(planIndex);
+		List<IntersectionSpec.PhaseSpec> phases = plan.getPhases();
+		Candidate current = from;
+		double currentScore = evaluate(Arrays.asList(current)).get(0);
+		int step = Math.max(1, (maxBound - minBound) / 8);
+		for (int moves = 0; step >= 1 && moves < MAX_MOVES; moves++) {
+			List<Candidate> neighbours = new ArrayList<Candidate>();
+			for (int p = 0; p < phases.size(); p++) {
+				if (!plan.isGreenInterval(p)) {
+					continue;
+				}
+				for (int dir = -1; dir <= 1; dir += 2) {
+					int value = Math.max(minBound, Math.min(maxBound, current.minGreen[p] + dir * step));
+					if (value != current.minGreen[p]) {
+						int[] mg = current.minGreen.clone();
+						mg[p] = value;
+						neighbours.add(new Candidate(current.order, mg));
+					}
+				}
+			}
+			if (neighbours.isEmpty()) {
+				break;
+			}
+			List<Double> scores = evaluate(neighbours);
+			int b = argmin(scores);
+			if (scores.get(b) < currentScore) {
+				current = neighbours.get(b);
+				currentScore = scores.get(b);
+			} else {
+				step /= 2;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Score candidates in parallel.
+	 */
+	private List<Double> evaluate(List<Candidate> candidates) throws InterruptedException {
+		List<IntersectionSpec> specs = new ArrayList<IntersectionSpec>(candidates.size());
+		for (Candidate c : candidates) {
+			specs.add(copy(c));
+		}
+		return score(specs);
+	}
+
+	/**
+	 * Total delay of each description's plan, averaged over the replications,
+	 * in vehicle hours.
+	 */
+	private List<Double> score(List<IntersectionSpec> specs) throws InterruptedException {
+		List<Callable<Double>> runs = new ArrayList<Callable<Double>>(specs.size() * replications);
+		for (final IntersectionSpec s : specs) {
+			for (int r = 0; r < replications; r++) {
+				final int replication = r;
+				runs.add(new Callable<Double>() {
+
+					@Override
+					public Double call() {
+						IntersectionMetrics m = HeadlessSimulation.measure(s, planIndex, timing,
+								arrivals.create(replication), duration);
+						// Queue length over time is the total time spent
+						// waiting, including by anyone still waiting at the end
+						double delay = 0;
+						for (int st = 0; st < m.streamCount(); st++) {
+							delay += m.averageQueue(st) * m.measuredMillis();
+						}
+						return delay / 3.6e6;
+					}
+				});
+			}
+		}
+		List<Future<Double>> results = pool.invokeAll(runs);
+		List<Double> scores = new ArrayList<Double>(specs.size());
+		try {
+			for (int c = 0; c < specs.size(); c++) {
+				double total = 0;
+				for (int r = 0; r < replications; r++) {
+					total += results.get(c * replications + r).get();
+				}
+				scores.add(total / replications);
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Simulation failed", e.getCause());
+		}
+		evaluations += specs.size();
+		return scores;
+	}
+
+	/**
+	 * Phase orders to try: the current order first, then rearrangements of its
+	 * stages with the first stage kept first. Only plans that end in an all
+	 * red phase are split into stages, since otherwise the last stage's
+	 * clearance is whatever happens to follow it.
+	 */
+	private static List<int[]> orders(List<IntersectionSpec.PhaseSpec> phases) {
+		List<int[]> stages = new ArrayList<int[]>();
+		int stageStart = 0;
+		for (int p = 0; p < phases.size(); p++) {
+			if (allRed(phases.get(p))) {
+				int[] stage = new int[p - stageStart + 1];
+				for (int i = 0; i < stage.length; i++) {
+					stage[i] = stageStart + i;
+				}
+				stages.add(stage);
+				stageStart = p + 1;
+			}
+		}
+
+		List<int[]> orders = new ArrayList<int[]>();
+		int[] identity = new int[phases.size()];
+		for (int p = 0; p < identity.length; p++) {
+			identity[p] = p;
+		}
+		orders.add(identity);
+		if (stageStart != phases.size() || stages.size() < 3) {
+			// Rotating the stages of a cycle changes nothing
+			return orders;
+		}
+
+		int rest = stages.size() - 1;
+		long permutations = 1;
+		for (int n = 2; n <= rest && permutations <= MAX_ORDERS; n++) {
+			permutations *= n;
+		}
+		List<int[]> arrangements = new ArrayList<int[]>();
+		int[] perm = new int[rest];
+		for (int i = 0; i < rest; i++) {
+			perm[i] = i + 1;
+		}
+		if (permutations <= MAX_ORDERS) {
+			while (nextPermutation(perm)) {
+				arrangements.add(perm.clone());
+			}
+		} else {
+			Random random = new Random(1);
+			for (int n = 0; n < MAX_ORDERS; n++) {
+				for (int i = rest - 1; i > 0; i--) {
+					int j = random.nextInt(i + 1);
+					int t = perm[i];
+					perm[i] = perm[j];
+					perm[j] = t;
+				}
+				arrangements.add(perm.clone());
+			}
+		}
+		for (int[] arrangement : arrangements) {
+			int[] order = new int[phases.size()];
+			int n = 0;
+			for (int p : stages.get(0)) {
+				order[n++] = p;
+			}
+			for (int stage : arrangement) {
+				for (int p : stages.get(stage)) {
+					order[n++] = p;
+				}
+			}
+			orders.add(order);
+		}
+		return orders;
+	}
+
+	/**
+	 * Step to the next permutation in lexicographic order.
+	 *
+	 * @return false once the last has been passed
+	 */
+	private static boolean nextPermutation(int[] a) {
+		int i = a.length - 2;
+		while (i >= 0 && a[i] >= a[i + 1]) {
+			i--;
+		}
+		if (i < 0) {
+			return false;
+		}
+		int j = a.length - 1;
+		while (a[j] <= a[i]) {
+			j--;
+		}
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+		for (int l = i + 1, r = a.length - 1; l < r; l++, r--) {
+			t = a[l];
+			a[l] = a[r];
+			a[r] = t;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the intersection with a candidate timing applied to the tuned
+	 * plan, or unchanged if the candidate is null.
+	 */
+	private IntersectionSpec copy(Candidate c) {
+		IntersectionSpec out = new IntersectionSpec(spec.getName(), spec.getDescription());
+		for (IntersectionSpec.StreamSpec s : spec.getStreams()) {
+			out.addStream(s.getName(), s.getDescription());
+		}
+		int streamCount = spec.getStreams().size();
+		for (int s = 0; s < streamCount; s++) {
+			BitSet others = spec.getConflicts(s);
+			for (int o = others.nextSetBit(s + 1); o >= 0; o = others.nextSetBit(o + 1)) {
+				out.addConflict(s, o);
+			}
+		}
+		State[] states = new State[streamCount];
+		for (int pl = 0; pl < spec.getPlans().size(); pl++) {
+			IntersectionSpec.PlanSpec plan = spec.getPlans().get(pl);
+			IntersectionSpec.PlanSpec copied = out.addPlan(plan.getType());
+			List<IntersectionSpec.PhaseSpec> phases = plan.getPhases();
+			for (int n = 0; n < phases.size(); n++) {
+				int p = c != null && pl == planIndex ? c.order[n] : n;
+				IntersectionSpec.PhaseSpec ps = phases.get(p);
+				for (int s = 0; s < streamCount; s++) {
+					states[s] = ps.getState(s);
+				}
+				int minGreen = ps.getMinGreen();
+				if (c != null && pl == planIndex && plan.isGreenInterval(p)) {
+					minGreen = c.minGreen[p];
+				}
+				out.addPhase(copied, ps.getName(), ps.getDescription(), states, minGreen);
+			}
+		}
+		for (IntersectionSpec.FaceSpec f : spec.getFaces()) {
+			int[] observed = new int[f.streamCount()];
+			for (int n = 0; n < observed.length; n++) {
+				observed[n] = f.getStream(n);
+			}
+			out.addFace(f.getLocation(), f.getOrientation(), f.getKind(), observed);
+		}
+		return out;
+	}
+
+	private static boolean allRed(IntersectionSpec.PhaseSpec ps) {
+		return ps.countOf(State.GREEN) == 0 && ps.countOf(State.YELLOW) == 0;
+	}
+
+	private static int argmin(List<Double> values) {
+		int best = 0;
+		for (int i = 1; i < values.size(); i++) {
+			if (values.get(i) < values.get(best)) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: TimingOptimiser in out [vehiclesPerHour | arrivals] [hours] [replications]");
+			return;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(args[0]));
+		IntersectionSpec spec = new MyIntersectionLoader(br).buildSpec();
+		br.close();
+		if (spec == null) {
+			System.err.println(args[0] + " isn't a valid intersection");
+			return;
+		}
+		String demand = args.length > 2 ? args[2] : "400";
+		double hours = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+		int replications = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+		ArrivalFactory arrivals;
+		try {
+			arrivals = poisson(spec.getStreams().size(), Double.parseDouble(demand));
+		} catch (NumberFormatException e) {
+			try {
+				arrivals = recorded(RecordedArrivals.load(spec, demand));
+			} catch (TrafficSyntaxException tse) {
+				System.err.println(demand + ": " + tse.getMessage());
+				return;
+			}
+		}
+
+		long start = System.nanoTime();
+		TimingOptimiser optimiser = new TimingOptimiser(spec, 0, new SimulationTiming(), arrivals,
+				(long) (hours * 3600000), replications, Runtime.getRuntime().availableProcessors());
+		Result r;
+		try {
+			r = optimiser.optimise();
+		} finally {
+			optimiser.shutdown();
+		}
+		IntersectionWriter.write(r.getTuned(), args[1]);
+		System.out.println(spec.getName() + ": " + r);
+		System.out.println(String.format("Wrote %s in %.1f s", args[1], (System.nanoTime() - start) / 1e9));
+	}
+}
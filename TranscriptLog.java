@@ -0,0 +1,223 @@
+package traffic.diy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import traffic.util.State;
+
+/**
+ * A bounded transcript of what an intersection has been doing. Events are
+ * kept in a fixed-size ring buffer, so a run of any length uses the same
+ * memory; once full, the oldest events are overwritten. Events are stored as
+ * their parts (time, subject, state, text) and only turned into text when
+ * they're displayed or saved. Stream and phase changes keep the time they
+ * happened, however late they're logged; messages are timed as they're
+ * logged.
+ */
+public class TranscriptLog {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static final byte MESSAGE = 0;
+	private static final byte STREAM = 1;
+	private static final byte PHASE = 2;
+
+	/** Saves run here so they never hold up whoever is logging. */
+	private static final ExecutorService saver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "TranscriptLog-save");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final long[] times;
+	private final byte[] kinds;
+	private final Object[] subjects;
+	private final State[] states;
+	private final String[] texts;
+	/** Total events ever appended; the newest is at (appended - 1) % capacity. */
+	private long appended;
+	/** Events before this were cleared. */
+	private long clearedTo;
+
+	public TranscriptLog() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the most events to keep
+	 */
+	public TranscriptLog(int capacity) {
+		times = new long[capacity];
+		kinds = new byte[capacity];
+		subjects = new Object[capacity];
+		states = new State[capacity];
+		texts = new String[capacity];
+	}
+
+	/**
+	 * Log a free text message.
+	 */
+	public void message(String text) {
+		append(System.currentTimeMillis(), MESSAGE, null, null, text);
+	}
+
+	/**
+	 * Log a stream changing state.
+	 *
+	 * @param time
+	 *            when it changed, in wall clock milliseconds
+	 * @param stream
+	 *            the stream, formatted with toString() when displayed
+	 * @param state
+	 *            its new state
+	 */
+	public void streamChanged(long time, Object stream, State state) {
+		append(time, STREAM, stream, state, null);
+	}
+
+	/**
+	 * Log a phase starting.
+	 *
+	 * @param time
+	 *            when it started, in wall clock milliseconds
+	 * @param phase
+	 *            the phase
+	 * @param text
+	 *            what the phase reported
+	 */
+	public void phaseChanged(long time, Object phase, String text) {
+		append(time, PHASE, phase, null, text);
+	}
+
+	/**
+	 * @return how many events are held
+	 */
+	public synchronized int size() {
+		return (int) Math.min(appended - clearedTo, times.length);
+	}
+
+	/**
+	 * @return how many events have been logged since the last clear,
+	 *         including any that have been overwritten
+	 */
+	public synchronized long totalLogged() {
+		return appended - clearedTo;
+	}
+
+	/**
+	 * Format one held event.
+	 *
+	 * @param n
+	 *            0 for the oldest held event up to size() - 1 for the newest
+	 * @param timeFormat
+	 *            how to show the time; only used by the calling thread
+	 * @return the event as a line of text
+	 */
+	public synchronized String format(int n, SimpleDateFormat timeFormat) {
+		int slot = (int) ((appended - size() + n) % times.length);
+		return format(timeFormat, times[slot], kinds[slot], subjects[slot], states[slot], texts[slot]);
+	}
+
+	public synchronized void clear() {
+		clearedTo = appended;
+		Arrays.fill(subjects, null);
+		Arrays.fill(texts, null);
+	}
+
+	/**
+	 * Write the held events to a file in the background. The events are
+	 * copied first, so logging carries on undisturbed while the file is
+	 * written.
+	 *
+	 * @param f
+	 *            the file to write
+	 * @return completes with the number of events written
+	 */
+	public Future<Integer> saveAsync(final File f) {
+		final int count;
+		final long[] t;
+		final byte[] k;
+		final Object[] subj;
+		final State[] st;
+		final String[] txt;
+		synchronized (this) {
+			count = size();
+			t = new long[count];
+			k = new byte[count];
+			subj = new Object[count];
+			st = new State[count];
+			txt = new String[count];
+			int first = (int) ((appended - count) % times.length);
+			for (int n = 0; n < count; n++) {
+				int slot = (first + n) % times.length;
+				t[n] = times[slot];
+				k[n] = kinds[slot];
+				subj[n] = subjects[slot];
+				st[n] = states[slot];
+				txt[n] = texts[slot];
+			}
+		}
+		return saver.submit(new Callable<Integer>() {
+
+			@Override
+			public Integer call() throws IOException {
+				SimpleDateFormat timeFormat = timeFormat();
+				BufferedWriter out = new BufferedWriter(new FileWriter(f));
+				try {
+					for (int n = 0; n < count; n++) {
+						out.write(format(timeFormat, t[n], k[n], subj[n], st[n], txt[n]));
+						out.newLine();
+					}
+				} finally {
+					out.close();
+				}
+				return count;
+			}
+		});
+	}
+
+	/**
+	 * @return the time format used for transcript lines
+	 */
+	public static SimpleDateFormat timeFormat() {
+		return new SimpleDateFormat("HH:mm:ss.SSS");
+	}
+
+	private synchronized void append(long time, byte kind, Object subject, State state, String text) {
+		int slot = (int) (appended % times.length);
+		times[slot] = time;
+		kinds[slot] = kind;
+		subjects[slot] = subject;
+		states[slot] = state;
+		texts[slot] = text;
+		appended++;
+	}
+
+	private static String format(SimpleDateFormat timeFormat, long time, byte kind, Object subject, State state,
+			String text) {
+		String when = timeFormat.format(new Date(time)) + "  ";
+		switch (kind) {
+		case STREAM:
+			return when + subject + " going " + state;
+		case PHASE:
+			return when + (text != null ? text : subject + " started");
+		default:
+			return when + text;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package traffic.diy;
+
+import java.awt.BorderLayout;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JFileChooser;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.SwingWorker;
+
+import traffic.util.State;
+
+/**
+ * Shows a {@link TranscriptLog} in a list. Only the rows scrolled into view are
+ * ever formatted, so a full log costs no more to display than an empty one.
+ * Call {@link #refresh()} on the EDT to pick up new events.
+ */
+public class TranscriptView extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+
+	private final TranscriptLog log;
+	private final Model model = new Model();
+	private final JList<String> list = new JList<String>(model);
+	private final SimpleDateFormat timeFormat = TranscriptLog.timeFormat();
+	private int shown;
+	private long shownTotal;
+
+	/**
+	 * @param rows
+	 *            how many rows to show
+	 */
+	public TranscriptView(int rows) {
+		this(new TranscriptLog(), rows);
+	}
+
+	public TranscriptView(TranscriptLog log, int rows) {
+		super(new BorderLayout());
+		this.log = log;
+		list.setVisibleRowCount(rows);
+		// A prototype stops the list measuring every row to size itself
+		list.setPrototypeCellValue("00:00:00.000  XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
+		add(new JScrollPane(list), BorderLayout.CENTER);
+	}
+
+	public TranscriptLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Log a message and show it straight away. For use on the EDT.
+	 */
+	public void log(String text) {
+		log.message(text);
+		refresh();
+	}
+
+	public void logStream(long time, Object stream, State state) {
+		log.streamChanged(time, stream, state);
+	}
+
+	public void logPhase(long time, Object phase, String text) {
+		log.phaseChanged(time, phase, text);
+	}
+
+	public void clear() {
+		log.clear();
+		refresh();
+	}
+
+	/**
+	 * Catch the display up with the log, keeping the newest row in view.
+	 */
+	public void refresh() {
+		int size = log.size();
+		long total = log.totalLogged();
+		if (total == shownTotal && size == shown) {
+			return;
+		}
+		int old = shown;
+		shown = size;
+		shownTotal = total;
+		model.changed(old, size);
+		if (size > 0) {
+			list.ensureIndexIsVisible(size - 1);
+		}
+	}
+
+	/**
+	 * Ask for a file and write the transcript to it in the background.
+	 */
+	public void saveToFile() {
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		final File f = jfc.getSelectedFile();
+		final Future<Integer> saving = log.saveAsync(f);
+		new SwingWorker<Integer, Void>() {
+
+			@Override
+			protected Integer doInBackground() throws Exception {
+				return saving.get();
+			}
+
+			@Override
+			protected void done() {
+				try {
+					log("Saved " + get() + " transcript lines to " + f);
+				} catch (InterruptedException e) {
+					return;
+				} catch (ExecutionException e) {
+					log("Couldn't save transcript: " + e.getCause());
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Rows are formatted on demand, when the list paints them.
+	 */
+	private class Model extends AbstractListModel<String> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int getSize() {
+			return shown;
+		}
+
+		@Override
+		public String getElementAt(int index) {
+			return index < log.size() ? log.format(index, timeFormat) : "";
+		}
+
+		void changed(int oldSize, int newSize) {
+			if (newSize < oldSize) {
+				fireIntervalRemoved(this, newSize, oldSize - 1);
+			} else if (newSize > oldSize) {
+				fireIntervalAdded(this, oldSize, newSize - 1);
+			}
+			if (newSize > 0) {
+				// Once the log wraps, every row moves up
+				fireContentsChanged(this, 0, newSize - 1);
+			}
+		}
+	}
+}